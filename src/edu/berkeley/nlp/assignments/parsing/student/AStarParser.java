@@ -0,0 +1,513 @@
+package edu.berkeley.nlp.assignments.parsing.student;
+
+import edu.berkeley.nlp.assignments.parsing.Parser;
+import edu.berkeley.nlp.assignments.parsing.ParserFactory;
+import edu.berkeley.nlp.assignments.parsing.student.util.CKYChart;
+import edu.berkeley.nlp.assignments.parsing.student.util.ChartTreeBuilder;
+import edu.berkeley.nlp.assignments.parsing.student.util.CompiledGrammar;
+import edu.berkeley.nlp.assignments.parsing.student.util.CompiledLexicon;
+import edu.berkeley.nlp.assignments.parsing.student.util.CompiledUnaryClosure;
+import edu.berkeley.nlp.assignments.parsing.student.util.OutsideEstimates;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParserModel;
+import edu.berkeley.nlp.ling.Tree;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agenda-based A* parser (Klein & Manning, 2003) over the model of CKYNaiveParser: the same chart of
+ * labels before and after unaries, built by the same rules with the same score arithmetic, but edges
+ * are only built in order of their score plus an estimate of their best outside score. The estimate of
+ * an edge is the sum of
+ * - the grammar-only SX bound of the model (see OutsideEstimates, tag scores taken as 0), for contexts
+ *   short enough to be in its table, and 0 beyond
+ * - the sum of the best tag score of each word outside the edge, which is specific to the sentence
+ * The sum is an upper bound of the outside score, and consistent, so the first time ROOT over the
+ * sentence is popped it has its Viterbi score. To be safe from the rounding of the estimates, popping goes on
+ * while the agenda holds edges within a relative 1e-10 of it (and finished edges are expanded again if
+ * their score ever improves). Every edge of every Viterbi tree has a priority of at least the score of
+ * ROOT, so all of them are popped, with their CKY scores, and every way of building them from popped
+ * edges is tried. Ties on a score are broken as CKYNaiveParser breaks them, on the smallest (split, left
+ * child, right child) for binaries and the smallest child for unaries, whatever the order edges come
+ * in: the tree is the one of CKYNaiveParser, not only a tree with its score.
+ *
+ * The chart is filled as CKYNaiveParser fills it, so its trees are built by the same ChartTreeBuilder.
+ * Reentrant: concurrent parses each work on their own chart and agenda.
+ */
+public class AStarParser implements Parser
+{
+    public static class AStarParserFactory implements ParserFactory {
+
+        public Parser getParser(List<Tree<String>> trainTrees) {
+            return new AStarParser(ParserModel.train(trainTrees, CKYNaiveParser.vOrder, CKYNaiveParser.hOrder));
+        }
+    }
+
+    /**
+     * Tree of an A* parse, with its score and the work the agenda did
+     */
+    public static class AStarParse {
+        private final Tree<String> tree;
+        private final double score;
+        private final long pops;
+        private final long pushes;
+
+        AStarParse(Tree<String> tree, double score, long pops, long pushes) {
+            this.tree = tree;
+            this.score = score;
+            this.pops = pops;
+            this.pushes = pushes;
+        }
+
+        /**
+         * @return best parse, or null when there is no parse
+         */
+        public Tree<String> getTree() {
+            return tree;
+        }
+        /**
+         * @return score of ROOT over the sentence, Double.NEGATIVE_INFINITY when there is no parse
+         */
+        public double getScore() {
+            return score;
+        }
+        public long getPops() {
+            return pops;
+        }
+        public long getPushes() {
+            return pushes;
+        }
+    }
+
+    // =========================FIELDS=========================
+    private static final int UNARY_LAYER = 0;
+    private static final int BINARY_LAYER = 1;
+    // popping goes on while the agenda has edges within this relative margin of the score of ROOT
+    private static final double ROUNDING_MARGIN = 1e-10;
+
+    // Shared, never modified after construction: safe to use from any number of threads
+    private final ParserModel model;
+    private final CompiledGrammar compiledGrammar;
+    private final CompiledLexicon compiledLexicon;
+    private final CompiledUnaryClosure unaryClosure;
+    private final OutsideEstimates outsideEstimates;
+    private final int numNonTerminals;
+    // builds the trees from the chart
+    private final ChartTreeBuilder treeBuilder;
+
+    // One workspace per concurrent parse, reused across sentences
+    private final ConcurrentLinkedDeque<Workspace> idleWorkspaces = new ConcurrentLinkedDeque<>();
+
+    private final AtomicLong numSentences = new AtomicLong();
+    private final AtomicLong numPops = new AtomicLong();
+    private final AtomicLong numPushes = new AtomicLong();
+    // =========================END OF FIELDS=========================
+
+    // =========================CONSTRUCTOR=========================
+    /**
+     * Parser over an already trained model; its outside estimates are computed now if the model has none yet
+     * @param model
+     */
+    public AStarParser(ParserModel model) {
+        this.model = model;
+        this.compiledGrammar = model.getCompiledGrammar();
+        this.compiledLexicon = model.getCompiledLexicon();
+        this.unaryClosure = model.getCompiledUnaryClosure();
+        this.outsideEstimates = model.getOutsideEstimates();
+        this.numNonTerminals = model.getNumNonTerminals();
+        this.treeBuilder = new ChartTreeBuilder(model.getGrammar().getLabelIndexer(), unaryClosure);
+    }
+    // =========================END OF CONSTRUCTOR=========================
+
+    public Tree<String> getBestParse(List<String> sentence) {
+        Tree<String> bestParse = parse(sentence).getTree();
+        // uncapble of parsing correctly
+        if (bestParse == null)
+            return new Tree<>("ROOT", Collections.singletonList(new Tree<>("JUNK")));
+        return bestParse;
+    }
+
+    /**
+     * Best parse of the sentence, with its score and the number of edges popped from the agenda
+     */
+    public AStarParse parse(List<String> sentence) {
+        int n = sentence.size();
+        Workspace workspace = borrow(n);
+        try {
+            CKYChart chart = workspace.chart;
+            boolean parsed = n > 0 && search(sentence, workspace);
+            numSentences.incrementAndGet();
+            numPops.addAndGet(workspace.pops);
+            numPushes.addAndGet(workspace.pushes);
+            if (!parsed) {
+                return new AStarParse(null, Double.NEGATIVE_INFINITY, workspace.pops, workspace.pushes);
+            }
+            return new AStarParse(treeBuilder.buildTree(chart, sentence, 0, 0, n), chart.getUnaryScore(0, n, 0),
+                    workspace.pops, workspace.pushes);
+        } finally {
+            idleWorkspaces.offerFirst(workspace);
+        }
+    }
+
+    // =========================SEARCH=========================
+    /**
+     * Fill the chart in order of score plus outside estimate, until no edge left on the agenda can
+     * beat ROOT over the sentence
+     * @return whether ROOT was built over the sentence
+     */
+    private boolean search(List<String> sentence, Workspace workspace) {
+        int n = sentence.size();
+        CKYChart chart = workspace.chart;
+
+        // best tag score of each word, summed from the start of the sentence
+        double[] wordBound = workspace.wordBound;
+        wordBound[0] = 0.0;
+        for (int i = 0; i < n; i++) {
+            int wordId = compiledLexicon.getWordId(sentence.get(i));
+            int[] tags = compiledLexicon.getTags(wordId);
+            double[] tagScores = compiledLexicon.getScores(wordId);
+            double best = Double.NEGATIVE_INFINITY;
+            for (int t = 0; t < tags.length; t++) {
+                best = Math.max(best, tagScores[t]);
+            }
+            wordBound[i + 1] = wordBound[i] + best;
+        }
+        // the tags of each word, as CKY sets them: before unaries, and after unaries until a unary does better
+        for (int i = 0; i < n; i++) {
+            int wordId = compiledLexicon.getWordId(sentence.get(i));
+            int[] tags = compiledLexicon.getTags(wordId);
+            double[] tagScores = compiledLexicon.getScores(wordId);
+            for (int t = 0; t < tags.length; t++) {
+                double estimate = outsideEstimate(workspace, BINARY_LAYER, tags[t], i, i + 1);
+                if (estimate == Double.NEGATIVE_INFINITY) continue;
+                chart.setBinaryScore(i, i + 1, tags[t], tagScores[t]);
+                workspace.push(tagScores[t] + estimate, tagScores[t], edge(BINARY_LAYER, i, i + 1, tags[t]));
+                relaxUnary(workspace, i, i + 1, tags[t], tagScores[t], -1);
+            }
+        }
+
+        int rootIndex = chart.offset(0, n);
+        while (workspace.size > 0) {
+            double rootScore = chart.unaryScore[rootIndex];
+            if (rootScore != Double.NEGATIVE_INFINITY
+                    && workspace.peekPriority() < rootScore - ROUNDING_MARGIN * (1.0 - rootScore)) {
+                break;
+            }
+            double score = workspace.peekScore();
+            long edge = workspace.pop();
+            int layer = getLayer(edge);
+            int begin = getBegin(edge);
+            int end = getEnd(edge);
+            int label = getLabel(edge);
+            int index = chart.offset(begin, end) + label;
+            // stale: the edge was pushed again with a better score
+            double[] scores = (layer == UNARY_LAYER) ? chart.unaryScore : chart.binaryScore;
+            if (score != scores[index]) continue;
+            workspace.pops++;
+            if (layer == BINARY_LAYER) {
+                expandUnaries(workspace, begin, end, label, score);
+            } else {
+                if (workspace.finished[index] != workspace.stamp) {
+                    workspace.finished[index] = workspace.stamp;
+                    workspace.addFinished(begin, end, label);
+                }
+                expandBinaries(workspace, begin, end, label, score);
+            }
+        }
+        return chart.unaryScore[rootIndex] != Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Closed unary rules A -> B over the edge B before unaries, as in CKYNaiveParser.handleUnariesForBinary
+     */
+    private void expandUnaries(Workspace workspace, int begin, int end, int B, double scoreB) {
+        for (int r = unaryClosure.childStart[B], rulesEnd = unaryClosure.childStart[B + 1]; r < rulesEnd; r++) {
+            double prob = unaryClosure.score[r] + scoreB;
+            relaxUnary(workspace, begin, end, unaryClosure.parent[r], prob, B);
+        }
+    }
+
+    /**
+     * Binary rules with the finished edge after unaries as left child, then as right child,
+     * and a finished adjacent edge as the other child
+     */
+    private void expandBinaries(Workspace workspace, int begin, int end, int label, double score) {
+        CKYChart chart = workspace.chart;
+        double[] unaryScore = chart.unaryScore;
+        int[] nodeNext = workspace.nodeNext;
+        int[] nodeBound = workspace.nodeBound;
+        // label -> ... C, with C finished over [end, k]
+        int[] headByBegin = workspace.headByBegin;
+        int beginOffset = end * numNonTerminals;
+        for (int r = compiledGrammar.leftChildStart[label], rulesEnd = compiledGrammar.leftChildStart[label + 1]; r < rulesEnd; r++) {
+            int C = compiledGrammar.rightChild[r];
+            for (int node = headByBegin[beginOffset + C]; node >= 0; node = nodeNext[node]) {
+                int k = nodeBound[node];
+                double rightScore = unaryScore[chart.offset(end, k) + C];
+                double prob = score + rightScore + compiledGrammar.score[r];
+                relaxBinary(workspace, begin, k, compiledGrammar.parent[r], prob, end, label, C);
+            }
+        }
+        // ... -> B label, with B finished over [k, begin]
+        int[] headByEnd = workspace.headByEnd;
+        int endOffset = begin * numNonTerminals;
+        for (int i = compiledGrammar.rightChildStart[label], rulesEnd = compiledGrammar.rightChildStart[label + 1]; i < rulesEnd; i++) {
+            int r = compiledGrammar.rulesByRightChild[i];
+            int B = compiledGrammar.leftChild[r];
+            for (int node = headByEnd[endOffset + B]; node >= 0; node = nodeNext[node]) {
+                int k = nodeBound[node];
+                double leftScore = unaryScore[chart.offset(k, begin) + B];
+                double prob = leftScore + score + compiledGrammar.score[r];
+                relaxBinary(workspace, k, end, compiledGrammar.parent[r], prob, begin, B, label);
+            }
+        }
+    }
+
+    /**
+     * Ties keep the smallest child, as CKYNaiveParser: only the back pointer changes, so nothing is pushed
+     */
+    private void relaxUnary(Workspace workspace, int begin, int end, int label, double score, int child) {
+        CKYChart chart = workspace.chart;
+        int index = chart.offset(begin, end) + label;
+        double best = chart.unaryScore[index];
+        if (score < best) return;
+        if (score == best) {
+            if (child < chart.uniBackPointer[index]) chart.uniBackPointer[index] = child;
+            return;
+        }
+        double estimate = outsideEstimate(workspace, UNARY_LAYER, label, begin, end);
+        if (estimate == Double.NEGATIVE_INFINITY) return;
+        chart.setUnary(begin, end, label, score, child);
+        workspace.push(score + estimate, score, edge(UNARY_LAYER, begin, end, label));
+    }
+
+    /**
+     * Ties keep the smallest (split, left child, right child), as CKYNaiveParser
+     */
+    private void relaxBinary(Workspace workspace, int begin, int end, int label, double score, int split,
+                             int leftChild, int rightChild) {
+        CKYChart chart = workspace.chart;
+        int index = chart.offset(begin, end) + label;
+        double best = chart.binaryScore[index];
+        if (score < best) return;
+        if (score == best) {
+            long backPointer = CKYChart.packBinaryBackPointer(split, leftChild, rightChild);
+            if (backPointer < chart.biBackPointer[index]) chart.biBackPointer[index] = backPointer;
+            return;
+        }
+        double estimate = outsideEstimate(workspace, BINARY_LAYER, label, begin, end);
+        if (estimate == Double.NEGATIVE_INFINITY) return;
+        chart.setBinary(begin, end, label, score, split, leftChild, rightChild);
+        workspace.push(score + estimate, score, edge(BINARY_LAYER, begin, end, label));
+    }
+
+    /**
+     * Upper bound of the outside score of the edge: the grammar-only SX bound (tag scores taken as 0)
+     * plus the sum of the best tag score of each word outside [begin, end]
+     */
+    private double outsideEstimate(Workspace workspace, int layer, int label, int begin, int end) {
+        int n = workspace.chart.length;
+        double[] wordBound = workspace.wordBound;
+        double estimate = wordBound[begin] + (wordBound[n] - wordBound[end]);
+        if (begin + n - end <= outsideEstimates.getMaxContext()) {
+            double sx = (layer == UNARY_LAYER) ? outsideEstimates.getUnaryOutside(label, begin, n - end)
+                    : outsideEstimates.getBinaryOutside(label, begin, n - end);
+            estimate += sx;
+        }
+        return estimate;
+    }
+    // =========================END OF SEARCH=========================
+
+    // =========================EDGE PACKING=========================
+    // label in the low 21 bits (as in CKYChart back pointers), then the layer, end and begin
+    private static final int LABEL_BITS = 21;
+    private static final int POSITION_BITS = 12;
+
+    private static long edge(int layer, int begin, int end, int label) {
+        return ((long) begin << (LABEL_BITS + 1 + POSITION_BITS)) | ((long) end << (LABEL_BITS + 1))
+                | ((long) layer << LABEL_BITS) | label;
+    }
+
+    private static int getLabel(long edge) {
+        return (int) (edge & ((1L << LABEL_BITS) - 1));
+    }
+
+    private static int getLayer(long edge) {
+        return (int) ((edge >>> LABEL_BITS) & 1);
+    }
+
+    private static int getEnd(long edge) {
+        return (int) ((edge >>> (LABEL_BITS + 1)) & ((1L << POSITION_BITS) - 1));
+    }
+
+    private static int getBegin(long edge) {
+        return (int) (edge >>> (LABEL_BITS + 1 + POSITION_BITS));
+    }
+    // =========================END OF EDGE PACKING=========================
+
+    // =========================WORKSPACE=========================
+    private Workspace borrow(int length) {
+        if (length >= (1 << POSITION_BITS)) {
+            throw new IllegalArgumentException("Sentence too long for the A* parser: " + length + " words");
+        }
+        Workspace workspace = idleWorkspaces.pollFirst();
+        if (workspace == null) {
+            workspace = new Workspace(numNonTerminals);
+        }
+        workspace.reset(length);
+        return workspace;
+    }
+
+    /**
+     * Chart, agenda and finished edges of one parse, reused across sentences
+     */
+    private static class Workspace {
+        final int numLabels;
+        final CKYChart chart;
+        // [chart index] => stamp of the last parse in which the edge after unaries was finished
+        int[] finished = new int[0];
+        int stamp = 0;
+        // finished edges after unaries, as linked lists by (begin, label) of their ends
+        // and by (end, label) of their begins
+        int[] headByBegin = new int[0];
+        int[] headByEnd = new int[0];
+        int[] nodeNext = new int[1024];
+        int[] nodeBound = new int[1024];
+        int numNodes;
+        // best tag scores of the words, summed: [i] => sum over the words before i
+        double[] wordBound = new double[1];
+
+        // max-heap on priority
+        double[] priorities = new double[1024];
+        double[] scores = new double[1024];
+        long[] edges = new long[1024];
+        int size;
+
+        long pops;
+        long pushes;
+
+        Workspace(int numLabels) {
+            this.numLabels = numLabels;
+            this.chart = new CKYChart(numLabels);
+        }
+
+        void reset(int length) {
+            chart.reset(length);
+            int numEntries = chart.capacity * (chart.capacity + 1) / 2 * numLabels;
+            if (finished.length < numEntries) {
+                finished = new int[numEntries];
+                stamp = 0;
+            }
+            stamp++;
+            int numPositions = (length + 1) * numLabels;
+            if (headByBegin.length < numPositions) {
+                headByBegin = new int[numPositions];
+                headByEnd = new int[numPositions];
+            }
+            Arrays.fill(headByBegin, 0, numPositions, -1);
+            Arrays.fill(headByEnd, 0, numPositions, -1);
+            numNodes = 0;
+            if (wordBound.length < length + 1) {
+                wordBound = new double[length + 1];
+            }
+            size = 0;
+            pops = 0;
+            pushes = 0;
+        }
+
+        void addFinished(int begin, int end, int label) {
+            if (numNodes + 2 > nodeNext.length) {
+                nodeNext = Arrays.copyOf(nodeNext, 2 * nodeNext.length);
+                nodeBound = Arrays.copyOf(nodeBound, 2 * nodeBound.length);
+            }
+            int byBegin = begin * numLabels + label;
+            nodeBound[numNodes] = end;
+            nodeNext[numNodes] = headByBegin[byBegin];
+            headByBegin[byBegin] = numNodes++;
+            int byEnd = end * numLabels + label;
+            nodeBound[numNodes] = begin;
+            nodeNext[numNodes] = headByEnd[byEnd];
+            headByEnd[byEnd] = numNodes++;
+        }
+
+        void push(double priority, double score, long edge) {
+            if (size == priorities.length) {
+                priorities = Arrays.copyOf(priorities, 2 * size);
+                scores = Arrays.copyOf(scores, 2 * size);
+                edges = Arrays.copyOf(edges, 2 * size);
+            }
+            pushes++;
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (priorities[parent] >= priority) break;
+                priorities[i] = priorities[parent];
+                scores[i] = scores[parent];
+                edges[i] = edges[parent];
+                i = parent;
+            }
+            priorities[i] = priority;
+            scores[i] = score;
+            edges[i] = edge;
+        }
+
+        double peekPriority() {
+            return priorities[0];
+        }
+
+        double peekScore() {
+            return scores[0];
+        }
+
+        /**
+         * Remove the top of the heap
+         * @return its edge
+         */
+        long pop() {
+            long top = edges[0];
+            size--;
+            double priority = priorities[size];
+            double score = scores[size];
+            long edge = edges[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && priorities[child + 1] > priorities[child]) child++;
+                if (priorities[child] <= priority) break;
+                priorities[i] = priorities[child];
+                scores[i] = scores[child];
+                edges[i] = edges[child];
+                i = child;
+            }
+            priorities[i] = priority;
+            scores[i] = score;
+            edges[i] = edge;
+            return top;
+        }
+    }
+    // =========================END OF WORKSPACE=========================
+
+    // =========================STATISTICS=========================
+    public ParserModel getModel() {
+        return model;
+    }
+
+    public long getNumPops() {
+        return numPops.get();
+    }
+
+    public long getNumPushes() {
+        return numPushes.get();
+    }
+
+    public String getStatistics() {
+        long sentences = numSentences.get();
+        return String.format("A*: %d sentences, %d edges popped (%.1f per sentence), %d pushed",
+                sentences, numPops.get(), sentences == 0 ? 0.0 : numPops.get() / (double) sentences, numPushes.get());
+    }
+    // =========================END OF STATISTICS=========================
+}
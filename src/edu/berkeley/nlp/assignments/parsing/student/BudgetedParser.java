@@ -0,0 +1,217 @@
+package edu.berkeley.nlp.assignments.parsing.student;
+
+import edu.berkeley.nlp.assignments.parsing.Parser;
+import edu.berkeley.nlp.assignments.parsing.ParserFactory;
+import edu.berkeley.nlp.assignments.parsing.student.util.CompiledLexicon;
+import edu.berkeley.nlp.assignments.parsing.student.util.LabelProjection;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParserModel;
+import edu.berkeley.nlp.assignments.parsing.student.util.TreeMarkovAnnotation;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Parser with a latency budget per sentence. Each level of the fallback chain gets a share of the budget,
+ * and is given up for the next one when its share is spent or when it finds no parse:
+ * - FULL: exhaustive CKY over the fine grammar
+ * - PRUNED: CKY over the fine grammar with a tight per-cell beam, skipped when FULL filled its chart but
+ *   found no parse, since the beam cannot find one either
+ * - COARSE: exhaustive CKY over the coarse grammar (X-bar labels), if there is one
+ * - RIGHT_BRANCHING: right-branching tree over the best tag of each word, always within the budget
+ * So every sentence gets a well formed tree, and the level it came from is recorded.
+ * CKY levels check the deadline before each word and cell, and every few thousand rules scanned by the binary
+ * loop, then clear the part of the chart they filled, so a level overruns its share by well under a millisecond.
+ * The last tenth of the budget is left to RIGHT_BRANCHING, which is linear in the sentence. The first parses may
+ * still overrun the budget while the charts grow to the longest sentence and the JIT compiles, and so may a GC
+ * pause.
+ */
+public class BudgetedParser implements Parser
+{
+    public static class BudgetedParserFactory implements ParserFactory {
+
+        private final long budgetNanos;
+
+        public BudgetedParserFactory(long budgetNanos) {
+            this.budgetNanos = budgetNanos;
+        }
+
+        public Parser getParser(List<Tree<String>> trainTrees) {
+            ParserModel[] models = CoarseToFineParser.trainFineAndCoarseModels(trainTrees, LabelProjection.X_BAR);
+            return new BudgetedParser(models[0], models[1], budgetNanos);
+        }
+    }
+
+    public enum FallbackLevel { FULL, PRUNED, COARSE, RIGHT_BRANCHING }
+
+    /**
+     * Tree of a budgeted parse, with the fallback level which built it
+     */
+    public static class BudgetedParse {
+        private final Tree<String> tree;
+        private final FallbackLevel level;
+        private final long nanos;
+
+        BudgetedParse(Tree<String> tree, FallbackLevel level, long nanos) {
+            this.tree = tree;
+            this.level = level;
+            this.nanos = nanos;
+        }
+
+        public Tree<String> getTree() {
+            return tree;
+        }
+        public FallbackLevel getLevel() {
+            return level;
+        }
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    // =========================FIELDS=========================
+    // share of the budget after which each CKY level is given up (from the start of the parse)
+    private static final double FULL_SHARE = 0.5;
+    private static final double PRUNED_SHARE = 0.75;
+    private static final double COARSE_SHARE = 0.9;
+    // beam of the PRUNED level
+    public static final int DEFAULT_PRUNED_BEAM_SIZE = 200;
+    public static final double DEFAULT_PRUNED_BEAM_THRESHOLD = -8.0;
+    // label of the constituents of the right-branching trees
+    private static final String RIGHT_BRANCHING_LABEL = "S";
+
+    private final CKYNaiveParser fineParser;
+    private final CKYNaiveParser coarseParser;
+    private final CompiledLexicon compiledLexicon;
+    private final Indexer<String> labelIndexer;
+    // best tag of an unknown word (among the open-class tags), for the words without any tag
+    private final int unknownWordTag;
+    private final long budgetNanos;
+    private final int prunedBeamSize;
+    private final double prunedBeamThreshold;
+
+    // [level] => number of sentences parsed at that level
+    private final AtomicLongArray levelCounts = new AtomicLongArray(FallbackLevel.values().length);
+    // =========================END OF FIELDS=========================
+
+    // =========================CONSTRUCTOR=========================
+    /**
+     * @param coarseModel null to go from the PRUNED level straight to the RIGHT_BRANCHING one
+     * @param budgetNanos default budget of getBestParse
+     */
+    public BudgetedParser(ParserModel fineModel, ParserModel coarseModel, long budgetNanos) {
+        this(fineModel, coarseModel, budgetNanos, DEFAULT_PRUNED_BEAM_SIZE, DEFAULT_PRUNED_BEAM_THRESHOLD);
+    }
+
+    public BudgetedParser(ParserModel fineModel, ParserModel coarseModel, long budgetNanos, int prunedBeamSize,
+                          double prunedBeamThreshold) {
+        if (budgetNanos <= 0) {
+            throw new IllegalArgumentException("Budget must be positive, not " + budgetNanos);
+        }
+        this.fineParser = new CKYNaiveParser(fineModel);
+        this.coarseParser = (coarseModel == null) ? null : new CKYNaiveParser(coarseModel);
+        this.compiledLexicon = fineModel.getCompiledLexicon();
+        this.labelIndexer = fineModel.getGrammar().getLabelIndexer();
+        this.unknownWordTag = bestTag(CompiledLexicon.UNKNOWN_WORD);
+        if (unknownWordTag < 0) {
+            throw new IllegalArgumentException("Lexicon has no tag for unknown words");
+        }
+        this.budgetNanos = budgetNanos;
+        this.prunedBeamSize = prunedBeamSize;
+        this.prunedBeamThreshold = prunedBeamThreshold;
+    }
+    // =========================END OF CONSTRUCTOR=========================
+
+    public Tree<String> getBestParse(List<String> sentence) {
+        return parse(sentence, budgetNanos).getTree();
+    }
+
+    /**
+     * Parse within the budget, falling back to cheaper levels as the shares of the budget are spent
+     * Reentrant, as CKYNaiveParser
+     */
+    public BudgetedParse parse(List<String> sentence, long budgetNanos) {
+        long start = System.nanoTime();
+        CKYNaiveParser.TimedParse fullParse = fineParser.parse(sentence, start + (long) (FULL_SHARE * budgetNanos));
+        Tree<String> tree = fullParse.getTree();
+        FallbackLevel level = FallbackLevel.FULL;
+        // a beam over the same grammar cannot find a parse the completed exhaustive chart did not have
+        if (tree == null && !fullParse.isCompleted()) {
+            level = FallbackLevel.PRUNED;
+            tree = fineParser.parse(sentence, prunedBeamSize, prunedBeamThreshold,
+                    start + (long) (PRUNED_SHARE * budgetNanos)).getTree();
+        }
+        if (tree == null && coarseParser != null) {
+            level = FallbackLevel.COARSE;
+            tree = coarseParser.getBestParse(sentence, start + (long) (COARSE_SHARE * budgetNanos));
+        }
+        if (tree == null) {
+            level = FallbackLevel.RIGHT_BRANCHING;
+            tree = rightBranchingTree(sentence);
+        }
+        levelCounts.incrementAndGet(level.ordinal());
+        return new BudgetedParse(tree, level, System.nanoTime() - start);
+    }
+
+    /**
+     * ROOT over a right-branching binary tree whose leaves are the words under their best tag,
+     * or ROOT -> JUNK for an empty sentence as the other parsers
+     */
+    private Tree<String> rightBranchingTree(List<String> sentence) {
+        if (sentence.isEmpty()) {
+            return new Tree<>("ROOT", Collections.singletonList(new Tree<>("JUNK")));
+        }
+        Tree<String> tree = preterminal(sentence.get(sentence.size() - 1));
+        for (int i = sentence.size() - 2; i >= 0; i--) {
+            tree = new Tree<>(RIGHT_BRANCHING_LABEL, Arrays.asList(preterminal(sentence.get(i)), tree));
+        }
+        // tags are annotated (e.g. NN^NP): keep their base symbol
+        return TreeMarkovAnnotation.unAnnotateTree(new Tree<>("ROOT", Collections.singletonList(tree)));
+    }
+
+    private Tree<String> preterminal(String word) {
+        int tag = bestTag(compiledLexicon.getWordId(word));
+        // a word without any tag is tagged as an unknown word would be
+        if (tag < 0) tag = unknownWordTag;
+        return new Tree<>(labelIndexer.get(tag), Collections.singletonList(new Tree<>(word)));
+    }
+
+    /**
+     * @return label of the best tag of the word, or -1 if it has none
+     */
+    private int bestTag(int wordId) {
+        int[] tags = compiledLexicon.getTags(wordId);
+        double[] scores = compiledLexicon.getScores(wordId);
+        int best = -1;
+        for (int t = 0; t < tags.length; t++) {
+            if (best < 0 || scores[t] > scores[best]) best = t;
+        }
+        return (best < 0) ? -1 : tags[best];
+    }
+
+    /**
+     * @return [level ordinal] => number of sentences parsed at that level so far
+     */
+    public long[] getLevelCounts() {
+        long[] counts = new long[levelCounts.length()];
+        for (int level = 0; level < counts.length; level++) {
+            counts[level] = levelCounts.get(level);
+        }
+        return counts;
+    }
+
+    public CKYNaiveParser getFineParser() {
+        return fineParser;
+    }
+
+    public String getLevelStatistics() {
+        StringBuilder sb = new StringBuilder("Fallback levels:");
+        for (FallbackLevel level : FallbackLevel.values()) {
+            sb.append(' ').append(level).append(' ').append(levelCounts.get(level.ordinal()));
+        }
+        return sb.toString();
+    }
+}
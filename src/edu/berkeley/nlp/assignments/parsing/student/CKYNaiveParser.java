@@ -1,14 +1,27 @@
 package edu.berkeley.nlp.assignments.parsing.student;
 
 import edu.berkeley.nlp.assignments.parsing.*;
+import edu.berkeley.nlp.assignments.parsing.student.util.CKYChart;
+import edu.berkeley.nlp.assignments.parsing.student.util.CKYChartPool;
+import edu.berkeley.nlp.assignments.parsing.student.util.ChartTreeBuilder;
+import edu.berkeley.nlp.assignments.parsing.student.util.ChartConstraint;
+import edu.berkeley.nlp.assignments.parsing.student.util.CompiledGrammar;
+import edu.berkeley.nlp.assignments.parsing.student.util.CompiledLexicon;
+import edu.berkeley.nlp.assignments.parsing.student.util.CompiledUnaryClosure;
+import edu.berkeley.nlp.assignments.parsing.student.util.KBestExtractor;
+import edu.berkeley.nlp.assignments.parsing.student.util.LabelProjection;
+import edu.berkeley.nlp.assignments.parsing.student.util.MaxRuleDecoder;
 import edu.berkeley.nlp.assignments.parsing.student.util.Lexicon;
 import edu.berkeley.nlp.assignments.parsing.student.util.Grammar;
-import edu.berkeley.nlp.assignments.parsing.student.util.TreeMarkovAnnotation;
-import edu.berkeley.nlp.assignments.parsing.student.util.Triple;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParseMetrics;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParseStats;
+import edu.berkeley.nlp.assignments.parsing.student.util.PruningStatistics;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParserModel;
 import edu.berkeley.nlp.ling.Tree;
 import edu.berkeley.nlp.util.Indexer;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public class CKYNaiveParser implements Parser
 {
@@ -19,23 +32,73 @@ public class CKYNaiveParser implements Parser
         }
     }
 
+    /**
+     * Outcome of a parse with a deadline: its tree, and whether the chart was filled before the deadline,
+     * which tells a sentence with no parse from one given up
+     */
+    public static class TimedParse {
+        private final Tree<String> tree;
+        private final boolean completed;
+
+        TimedParse(Tree<String> tree, boolean completed) {
+            this.tree = tree;
+            this.completed = completed;
+        }
+
+        /**
+         * @return Tree<String> of best parse, or null when there is no parse or the deadline passed first
+         */
+        public Tree<String> getTree() {
+            return tree;
+        }
+        /**
+         * @return false if the deadline passed before the chart was filled
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+    }
+
     // =========================FIELDS=========================
-    // List of score and back pointer tables
-    // Key of all internal LinkedHashMaps are the index of Non-Terminal Symbols
-    // (managed by grammar's labelIndexer)
-    private static ArrayList<ArrayList<LinkedHashMap<Integer, Double>>> unaryScore, binaryScore, score;
-    private static ArrayList<ArrayList<LinkedHashMap<Integer, Integer>>> uniBackPointer;
-    private static ArrayList<ArrayList<LinkedHashMap<Integer, Triple>>> biBackPointer;
-    private static UnaryClosure unaryClosure;
-
-    Lexicon lexicon;
-    edu.berkeley.nlp.assignments.parsing.student.util.Grammar grammar;
-    int numNonTerminals;
+    // Shared, never modified after construction: safe to use from any number of threads
+    private final ParserModel model;
+    private final Lexicon lexicon;
+    private final CompiledLexicon compiledLexicon;
+    private final Grammar grammar;
+    private final CompiledGrammar compiledGrammar;
+    private final UnaryClosure unaryClosure;
+    private final CompiledUnaryClosure compiledUnaryClosure;
+    private final ChartTreeBuilder chartTreeBuilder;
+    private final KBestExtractor kBestExtractor;
+    private final int numNonTerminals;
+
+    // Score and back pointer tables, indexed by (begin, end, index of Non-Terminal Symbol)
+    // (managed by grammar's labelIndexer). One chart per concurrent parse, reused across sentences
+    private final CKYChartPool chartPool;
+
+    // Opt-in intra-sentence parallelism, see setParallelCKY
+    private volatile ForkJoinPool cellPool = null;
+    private volatile int parallelMinLength = Integer.MAX_VALUE;
+
+    // Opt-in instrumentation of every parse, see setParseMetrics
+    private volatile ParseMetrics parseMetrics = null;
+
+    // Opt-in beam over the labels of each cell, see setBeam
+    private volatile Beam beam = null;
+    private final PruningStatistics beamStatistics = new PruningStatistics();
+
+    // max-rule decoding of getBestParse(sentence) instead of the Viterbi parse, null for none
+    private volatile MaxRuleDecoder maxRuleDecoder = null;
+
+    // deadline of the parses which may take as long as they need
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+    // rules scanned and applied by the binary loop between two checks of the deadline (a few microseconds)
+    private static final int DEADLINE_CHECK_INTERVAL = 4096;
 
     // Markovization constant
     // TODO: make these arguments from a command line for facilitate tests
-    private final int vOrder = 2;
-    private final int hOrder = 2;
+    static final int vOrder = 2;
+    static final int hOrder = 2;
     // =========================END OF FIELDS=========================
 
 
@@ -43,66 +106,305 @@ public class CKYNaiveParser implements Parser
      * ACCCESSING DRIVER FOR THE TEST
      * Given a sentence, yield a best parse in terms of Tree data structure
      * The most important method - will be called by a Test Case
+     * Reentrant: concurrent calls each work on their own chart
      * @param sentence
      * @return Tree<String> of best parse
      */
     public Tree<String> getBestParse(List<String> sentence) {
-        cky(sentence);
+        MaxRuleDecoder decoder = maxRuleDecoder;
+        Tree<String> bestParse = (decoder == null) ? null : decoder.decode(sentence);
+        if (bestParse == null)
+            bestParse = getBestParse(sentence, null);
         // uncapble of parsing correctly
-        if (unaryScore.get(0).get(sentence.size()).get(0) == null)
+        if (bestParse == null)
             return new Tree<>("ROOT", Collections.singletonList(new Tree<>("JUNK")));
+        return bestParse;
+    }
+
+    /**
+     * Best parse among the ones allowed by the constraint
+     * @param sentence
+     * @param constraint labels allowed in each cell, null for none
+     * @return Tree<String> of best parse, or null when there is no parse
+     */
+    public Tree<String> getBestParse(List<String> sentence, ChartConstraint constraint) {
+        return parse(sentence, constraint, beam, NO_DEADLINE).getTree();
+    }
+
+    /**
+     * Best parse found before the deadline
+     * @param deadline a System.nanoTime() value, or NO_DEADLINE
+     * @return Tree<String> of best parse, or null when there is no parse or the deadline passed first
+     */
+    public Tree<String> getBestParse(List<String> sentence, long deadline) {
+        return parse(sentence, deadline).getTree();
+    }
+
+    /**
+     * Best parse found before the deadline, and whether the chart was completed (see getBestParse)
+     */
+    public TimedParse parse(List<String> sentence, long deadline) {
+        return parse(sentence, null, beam, deadline);
+    }
+
+    /**
+     * Best parse found before the deadline, with a beam for this parse only instead of the one of the parser
+     * (see setBeam for the beam settings), and whether the chart was completed
+     */
+    public TimedParse parse(List<String> sentence, int maxLabelsPerCell, double logThreshold, long deadline) {
+        return parse(sentence, null, new Beam(maxLabelsPerCell, logThreshold), deadline);
+    }
+
+    private TimedParse parse(List<String> sentence, ChartConstraint constraint, Beam beam, long deadline) {
+        ParseMetrics metrics = parseMetrics;
+        if (metrics == null) {
+            return parse(sentence, constraint, null, beam, deadline);
+        }
+        ParseStats stats = new ParseStats(sentence.size());
+        TimedParse bestParse = parse(sentence, constraint, stats, beam, deadline);
+        metrics.record(stats);
+        return bestParse;
+    }
+
+    /**
+     * Best parse among the ones allowed by the constraint, recording what the parse did
+     * @param stats filled with the time of each phase and the chart figures, nothing is timed if null
+     * @return Tree<String> of best parse, or null when there is no parse
+     */
+    public Tree<String> getBestParse(List<String> sentence, ChartConstraint constraint, ParseStats stats) {
+        return parse(sentence, constraint, stats, beam, NO_DEADLINE).getTree();
+    }
+
+    private TimedParse parse(List<String> sentence, ChartConstraint constraint, ParseStats stats, Beam beam,
+                             long deadline) {
+        CKYChart chart = chartPool.borrow(sentence.size());
+        try {
+            boolean completed = cky(sentence, chart, constraint, stats, beam, deadline);
+            boolean parsed = completed && !sentence.isEmpty() && chart.hasUnary(0, sentence.size(), 0);
+            if (beam != null && completed) {
+                beamStatistics.recordSentence();
+                // the beam is only to blame if it dropped labels on the way
+                if (!parsed && chart.pruned) beamStatistics.recordFailure();
+            }
+            if (stats != null) {
+                stats.addChart(chart);
+                stats.setParsed(parsed);
+            }
+            if (!parsed)
+                return new TimedParse(null, completed);
+
+            // the backtrace emits the unannotated tree: same tree as unAnnotateTree of createCKYParsedTree
+            long nanos = (stats == null) ? 0 : System.nanoTime();
+            Tree<String> bestParse = chartTreeBuilder.buildTree(chart, sentence, 0, 0, sentence.size());
+            if (stats != null) {
+                stats.addBacktrace(System.nanoTime() - nanos);
+            }
+            return new TimedParse(bestParse, true);
+        } finally {
+            chartPool.release(chart);
+        }
+    }
+
+    // =========================K-BEST PARSING=========================
+    /**
+     * Best k distinct parses of the sentence, best first, by lazy k-best extraction over the chart
+     * (see KBestExtractor): the first one is the tree of getBestParse
+     * @return fewer than k parses when the chart has fewer, none when there is no parse
+     */
+    public List<KBestExtractor.ScoredParse> getKBestParses(List<String> sentence, int k) {
+        CKYChart chart = chartPool.borrow(sentence.size());
+        try {
+            cky(sentence, chart, null, null, beam, NO_DEADLINE);
+            return getKBestParses(chart, sentence, k);
+        } finally {
+            chartPool.release(chart);
+        }
+    }
+
+    /**
+     * Best k distinct parses from a chart already filled by cky for the sentence
+     */
+    public List<KBestExtractor.ScoredParse> getKBestParses(CKYChart chart, List<String> sentence, int k) {
+        return kBestExtractor.extract(chart, sentence, k);
+    }
+    // =========================END OF K-BEST PARSING=========================
+
+    // =========================BATCH PARSING=========================
+    /**
+     * Parse a batch of sentences on all available cores
+     * @param sentences
+     * @return best parses, in the same order as the sentences
+     */
+    public List<Tree<String>> getBestParses(List<List<String>> sentences) {
+        return getBestParses(sentences, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Parse a batch of sentences on a fork-join pool of the given parallelism
+     * @param sentences
+     * @param numThreads
+     * @return best parses, in the same order as the sentences
+     */
+    public List<Tree<String>> getBestParses(List<List<String>> sentences, int numThreads) {
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            return getBestParses(sentences, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Parse a batch of sentences on the given executor, and print the throughput
+     * Longest sentences are submitted first, so that no long sentence is left running alone at the end
+     * @param sentences
+     * @param executor
+     * @return best parses, in the same order as the sentences
+     */
+    public List<Tree<String>> getBestParses(final List<List<String>> sentences, ExecutorService executor) {
+        long nanos = System.nanoTime();
+        int numSentences = sentences.size();
+        Integer[] order = new Integer[numSentences];
+        for (int i = 0; i < numSentences; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i, Integer j) {
+                return Integer.compare(sentences.get(j).size(), sentences.get(i).size());
+            }
+        });
+
+        List<Future<Tree<String>>> futures = new ArrayList<>(Collections.<Future<Tree<String>>>nCopies(numSentences, null));
+        for (final int i : order) {
+            futures.set(i, executor.submit(new Callable<Tree<String>>() {
+                public Tree<String> call() {
+                    return getBestParse(sentences.get(i));
+                }
+            }));
+        }
 
-        Tree<String> annotatedBestParse = createCKYParsedTree(sentence, 0, false, 0, sentence.size());
-        return TreeMarkovAnnotation.unAnnotateTree(annotatedBestParse);
+        List<Tree<String>> parses = new ArrayList<>(numSentences);
+        long numWords = 0;
+        try {
+            for (int i = 0; i < numSentences; i++) {
+                parses.add(futures.get(i).get());
+                numWords += sentences.get(i).size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while parsing batch", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Parsing failed", e.getCause());
+        }
+
+        double seconds = (System.nanoTime() - nanos) / 1e9;
+        System.out.println(String.format("Parsed %d sentences (%d words) in %d millis: %.1f sentences/s, %.1f words/s",
+                numSentences, numWords, (long) (seconds * 1000), numSentences / seconds, numWords / seconds));
+        return parses;
     }
+    // =========================END OF BATCH PARSING=========================
 
     // =========================CONSTRUCTOR=========================
     /**
      * Constructor
-     * @param trainTrees
+     * @param trainTrees iterated once, so they can be streamed from the treebank (see TreebankStream)
      * Also: init grammar, lexicon and unary closure which can be used alot later without re-init
      */
-    public CKYNaiveParser(List<Tree<String>> trainTrees) {
-        System.out.print("Annotating / binarizing training trees ... ");
-        List<Tree<String>> annotatedTrainTrees = annotateTrees(trainTrees);
-        System.out.println("done.");
-        System.out.print("Building grammar ... ");
-        grammar = Grammar.generativeGrammarFromTrees(annotatedTrainTrees);
-        System.out.println("done. (" + grammar.getLabelIndexer().size() + " states)");
-        System.out.println("Building lexicon...");
-        lexicon = new Lexicon(annotatedTrainTrees);
+    public CKYNaiveParser(Iterable<Tree<String>> trainTrees) {
+        this(ParserModel.train(trainTrees, vOrder, hOrder));
+    }
 
-        // init scores and back pointers tables
-        numNonTerminals = grammar.getLabelIndexer().size();
+    /**
+     * Parser over an already trained model, several parsers can share the same model
+     * @param model
+     */
+    public CKYNaiveParser(ParserModel model) {
+        this.model = model;
+        this.grammar = model.getGrammar();
+        this.compiledGrammar = model.getCompiledGrammar();
+        this.lexicon = model.getLexicon();
+        this.compiledLexicon = model.getCompiledLexicon();
+        this.unaryClosure = model.getUnaryClosure();
+        this.compiledUnaryClosure = model.getCompiledUnaryClosure();
+        this.chartTreeBuilder = new ChartTreeBuilder(grammar.getLabelIndexer(), compiledUnaryClosure);
+        this.kBestExtractor = new KBestExtractor(compiledGrammar, compiledUnaryClosure, chartTreeBuilder);
+        this.numNonTerminals = model.getNumNonTerminals();
+        this.chartPool = new CKYChartPool(numNonTerminals);
+    }
+    // =========================END OF CONSTRUCTOR=========================
+
+    // =========================SETTINGS=========================
+    /**
+     * Fill the cells of each span concurrently on the given pool, for sentences of at least minLength words
+     * Shorter sentences are still parsed on the calling thread, as they would not pay back the overhead
+     * @param pool
+     * @param minLength
+     */
+    public void setParallelCKY(ForkJoinPool pool, int minLength) {
+        this.parallelMinLength = minLength;
+        this.cellPool = pool;
+    }
 
-        System.out.println("There are " + numNonTerminals + " non terminals after training");
-        System.out.println("done. with lexicon size of " + lexicon.getAllTags().size());
+    public void setParallelCKY(int minLength) {
+        setParallelCKY(ForkJoinPool.commonPool(), minLength);
+    }
 
-        System.out.println("Init unary closure...");
-        initUnaryClosureRules();
+    public void disableParallelCKY() {
+        this.cellPool = null;
+        this.parallelMinLength = Integer.MAX_VALUE;
     }
+
     /**
-     * Helper for constructor, do the markovization of trees before training (and so testing)
-     * @param trees
-     * @return
+     * Record a ParseStats of every parse into the given metrics, null to stop
+     * Parses are only timed while metrics are set
+     * @param metrics
      */
-    private List<Tree<String>> annotateTrees(List<Tree<String>> trees) {
-        List<Tree<String>> annotatedTrees = new ArrayList<>();
-        for (Tree<String> tree : trees) {
-            annotatedTrees.add(TreeMarkovAnnotation.annotateTree(tree, vOrder, hOrder));
-        }
-        return annotatedTrees;
+    public void setParseMetrics(ParseMetrics metrics) {
+        this.parseMetrics = metrics;
+    }
+
+    public ParseMetrics getParseMetrics() {
+        return parseMetrics;
     }
+
     /**
-     * Initialize the Unary Closure Rules, this should be done only ...
-     * ... after all grammar and lexicon are done
-     * This will be called in the constructor
+     * Beam mode: once a cell is filled (binaries then unaries), only keep its maxLabelsPerCell best labels
+     * and the ones within logThreshold of its best label (a log score difference, <= 0).
+     * The cell of the whole sentence is not pruned. Parses cost at most maxLabelsPerCell labels per cell
+     * but may fail, as the beam can drop every way to build ROOT: see getBeamStatistics
+     * @param maxLabelsPerCell Integer.MAX_VALUE to only prune by threshold
+     * @param logThreshold Double.NEGATIVE_INFINITY to only keep the best labels
      */
-    public void initUnaryClosureRules(){
-        Indexer<String> labelIndexer = grammar.getLabelIndexer();
-        unaryClosure = new UnaryClosure(labelIndexer, grammar.getUnaryRules());
+    public void setBeam(int maxLabelsPerCell, double logThreshold) {
+        this.beam = new Beam(maxLabelsPerCell, logThreshold);
+    }
+
+    /**
+     * Max-rule mode: getBestParse(sentence), and so the batch methods, return the max-rule-product tree over
+     * the X-bar projection of the grammar (see MaxRuleDecoder) instead of the Viterbi parse, which is only
+     * used when that tree cannot be built. The other getBestParse methods stay Viterbi.
+     * @param pruningThreshold log posterior below which annotated items are left out, e.g.
+     *                         MaxRuleDecoder.DEFAULT_PRUNING_THRESHOLD
+     */
+    public void setMaxRuleDecoding(double pruningThreshold) {
+        this.maxRuleDecoder = new MaxRuleDecoder(model, LabelProjection.X_BAR, pruningThreshold);
+    }
+
+    public void disableMaxRuleDecoding() {
+        this.maxRuleDecoder = null;
+    }
+
+    public void disableBeam() {
+        this.beam = null;
     }
-    // =========================END OF CONSTRUCTOR=========================
+
+    /**
+     * Labels kept by the beam, and sentences it left without a parse, over all parses in beam mode
+     */
+    public PruningStatistics getBeamStatistics() {
+        return beamStatistics;
+    }
+    // =========================END OF SETTINGS=========================
 
     // =========================DEBUGGING METHODS =========================
     public void debugLexiconToConsole(){
@@ -138,42 +440,59 @@ public class CKYNaiveParser implements Parser
         System.out.println("Binary rules are: \n");
         System.out.println(binaryRules);
     }
-    public void debugScoreTablesToConsole(ArrayList<ArrayList<LinkedHashMap<Integer, Double>>> score){
+    public void debugScoreTablesToConsole(CKYChart chart, double[] score){
         System.out.println("SCORE Table");
-        int c=0;
-        for (List<LinkedHashMap<Integer, Double>>  listScoreMap: score) {
-            System.out.println("*** Level " + c++);
-            int cc = 0;
-            for (LinkedHashMap<Integer, Double> scoreMap : listScoreMap)
-                System.out.println("=== Sublevel =" + cc++  + "==="  + scoreMap);
+        int n = chart.length;
+        for (int begin = 0; begin < n; begin++) {
+            System.out.println("*** Level " + begin);
+            for (int end = begin + 1; end <= n; end++) {
+                StringBuilder sb = new StringBuilder("{");
+                int offset = chart.offset(begin, end);
+                for (int label = 0; label < numNonTerminals; label++) {
+                    if (score[offset + label] == Double.NEGATIVE_INFINITY) continue;
+                    if (sb.length() > 1) sb.append(", ");
+                    sb.append(label).append("=").append(score[offset + label]);
+                }
+                System.out.println("=== Sublevel =" + end + "===" + sb.append("}"));
+            }
         }
         System.out.println();
     }
-    public void debugBackPointerTablesToConsole() {
+    public void debugBackPointerTablesToConsole(CKYChart chart) {
+        int n = chart.length;
         System.out.println("Unary Back Pointer Table:");
-        int c=0;
-        for (List<LinkedHashMap<Integer, Integer>> listUnaryBackPtr: uniBackPointer) {
-            System.out.println("*** Level " + c++);
-            int cc = 0;
-            for (LinkedHashMap<Integer, Integer> unaryBackPtr : listUnaryBackPtr)
-                System.out.println("=== Sublevel =" + cc++  + "===" + unaryBackPtr);
+        for (int begin = 0; begin < n; begin++) {
+            System.out.println("*** Level " + begin);
+            for (int end = begin + 1; end <= n; end++) {
+                StringBuilder sb = new StringBuilder("{");
+                for (int label = 0; label < numNonTerminals; label++) {
+                    int child = chart.getUniBackPointer(begin, end, label);
+                    if (child < 0) continue;
+                    if (sb.length() > 1) sb.append(", ");
+                    sb.append(label).append("=").append(child);
+                }
+                System.out.println("=== Sublevel =" + end + "===" + sb.append("}"));
+            }
         }
         System.out.println();
         System.out.println("Binary Back Pointer Table:");
-        c=0;
-        for (List<LinkedHashMap<Integer, Triple>> listBinaryBackPtr: biBackPointer) {
-            System.out.println("*** Level " + c++);
-            int cc = 0;
-            for (LinkedHashMap<Integer, Triple> binaryBackPtr : listBinaryBackPtr)
-                System.out.println("=== Sublevel =" + cc++  + "===" + binaryBackPtr);
+        for (int begin = 0; begin < n; begin++) {
+            System.out.println("*** Level " + begin);
+            for (int end = begin + 1; end <= n; end++) {
+                StringBuilder sb = new StringBuilder("{");
+                for (int label = 0; label < numNonTerminals; label++) {
+                    long backPointer = chart.getBiBackPointer(begin, end, label);
+                    if (backPointer < 0) continue;
+                    if (sb.length() > 1) sb.append(", ");
+                    sb.append(label).append("=(split=").append(CKYChart.getSplit(backPointer))
+                            .append(", ").append(CKYChart.getLeftChild(backPointer))
+                            .append(", ").append(CKYChart.getRightChild(backPointer)).append(")");
+                }
+                System.out.println("=== Sublevel =" + end + "===" + sb.append("}"));
+            }
         }
         System.out.println();
     }
-    void printKeysetOfLinkedHashMap(LinkedHashMap<Integer, Double> map) {
-        for (Integer k: map.keySet()) {
-            System.out.println("\n\n\nk= " + k + " v= " + map.get(k));
-        }
-    }
     // =========================END OF DEBUGGING METHODS =========================
 
     // =========================GETTERS METHODS =========================
@@ -186,58 +505,19 @@ public class CKYNaiveParser implements Parser
     public Grammar getGrammar() {
         return grammar;
     }
-    public static ArrayList<ArrayList<LinkedHashMap<Integer, Double>>> getUnaryScore() {
-        return unaryScore;
-    }
-    public static ArrayList<ArrayList<LinkedHashMap<Integer, Double>>> getBinaryScore() {
-        return binaryScore;
-    }
-    public static ArrayList<ArrayList<LinkedHashMap<Integer, Integer>>> getUniBackPointer() {
-        return uniBackPointer;
-    }
-    public static ArrayList<ArrayList<LinkedHashMap<Integer, Triple>>> getBiBackPointer() {
-        return biBackPointer;
+    public ParserModel getModel() {
+        return model;
     }
     // =========================END OF GETTERS METHODS =========================
 
 
     /**
-     * Init scores and back pointers tables for CKY
-     * This will be called by CKY, the content of the 3 static tables will be changed w.r.t
-     * the sentence being dealt with
-     * TODO: change back to private after debugging
+     * Init a fresh (not pooled) chart for CKY, for debugging
      * @param sentence: input of CKY
+     * @return empty chart sized for the sentence
      */
-    public void initScoreAndBackPointerTables(List<String> sentence) {
-        unaryScore = new ArrayList<>();
-        binaryScore = new ArrayList<>();
-        uniBackPointer = new ArrayList<>();
-        biBackPointer = new ArrayList<>();
-        int n = sentence.size();
-
-        for (int i=0; i<n+1; i++) {
-            ArrayList<LinkedHashMap<Integer, Double>> unaryScoreList = new ArrayList<>();
-            ArrayList<LinkedHashMap<Integer, Double>> binaryScoreList = new ArrayList<>();
-            ArrayList<LinkedHashMap<Integer, Integer>> uniList = new ArrayList<>();
-            ArrayList<LinkedHashMap<Integer, Triple>> biList = new ArrayList<>();
-
-            for (int j = 0; j < n + 1; j++) {
-                LinkedHashMap<Integer, Double> unaryScoreMap = new LinkedHashMap<>();
-                LinkedHashMap<Integer, Double> binaryScoreMap = new LinkedHashMap<>();
-                LinkedHashMap<Integer, Integer> uniBackPtrMap = new LinkedHashMap<>();
-                LinkedHashMap<Integer, Triple> biBackPtrMap = new LinkedHashMap<>();
-                // build n ArrayList of LinkedHashMap\
-                unaryScoreList.add(unaryScoreMap);
-                binaryScoreList.add(binaryScoreMap);
-                uniList.add(uniBackPtrMap);
-                biList.add(biBackPtrMap);
-            }
-            // build n ArrrayList of ArrayList
-            unaryScore.add(unaryScoreList);
-            binaryScore.add(binaryScoreList);
-            uniBackPointer.add(uniList);
-            biBackPointer.add(biList);
-        }
+    public CKYChart initScoreAndBackPointerTables(List<String> sentence) {
+        return new CKYChart(sentence.size(), numNonTerminals);
     }
 
 
@@ -246,86 +526,275 @@ public class CKYNaiveParser implements Parser
      * CKY implememtation, given grammar and lexicon
      * This algorithm interleaves binary and unary cases, facilitating the building parse tree later
      * @param sentence as a list of string
-     * @return null, it will update the private tables of scores and back pointers
+     * @param chart reset for the sentence, it will be filled with scores and back pointers
+     */
+    public void cky(List<String> sentence, CKYChart chart) {
+        cky(sentence, chart, null);
+    }
+
+    /**
+     * CKY restricted to the labels allowed by the constraint (no restriction if null)
+     */
+    public void cky(List<String> sentence, CKYChart chart, ChartConstraint constraint) {
+        cky(sentence, chart, constraint, null);
+    }
+
+    /**
+     * CKY recording the time of each phase and the rule applications in stats, if not null
      */
-    public void cky(List<String> sentence) {
+    public void cky(List<String> sentence, CKYChart chart, ChartConstraint constraint, ParseStats stats) {
+        cky(sentence, chart, constraint, stats, beam, NO_DEADLINE);
+    }
+
+    /**
+     * @return false if the deadline passed before the chart was filled (it is checked before each word, each cell,
+     * and every DEADLINE_CHECK_INTERVAL rules scanned and applied by the binary loop)
+     */
+    private boolean cky(List<String> sentence, CKYChart chart, ChartConstraint constraint, ParseStats stats, Beam beam,
+                        long deadline) {
 
         // Init essential data structures
-        initScoreAndBackPointerTables(sentence);
-        Indexer<String> labelIndexer = grammar.getLabelIndexer();
+        long nanos = (stats == null) ? 0 : System.nanoTime();
         int n = sentence.size();
         for (int i = 0; i < n; i++) {
-//             process all pre-terminals
-            for (int tag = 0; tag < numNonTerminals; tag++) {
-                double tagScore = lexicon.scoreTagging(sentence.get(i), labelIndexer.get(tag));
-//                if (Double.isFinite(tagScore)) {
-                if ( (! Double.isNaN(tagScore)) & (tagScore != Double.NEGATIVE_INFINITY) ) {
-                    unaryScore.get(i).get(i + 1).put(tag, tagScore);
-                }
+            // process the pre-terminals of the word: only the tags it can have, in label order
+            int wordId = compiledLexicon.getWordId(sentence.get(i));
+            int[] tags = compiledLexicon.getTags(wordId);
+            double[] tagScores = compiledLexicon.getScores(wordId);
+            for (int t = 0; t < tags.length; t++) {
+                if (constraint != null && !constraint.isAllowed(i, i + 1, tags[t])) continue;
+                chart.setLexical(i, tags[t], tagScores[t]);
             }
         }
         // Done Tag => Word now checking whether A=> Tag
         // handle unaries of [i][i+1]
+        long unaryRuleApplications = 0;
+        long lexicalEnd = (stats == null) ? 0 : System.nanoTime();
         for (int i = 0; i < n; i++) {
-            handleUnaries(i);
+            if (isPast(deadline)) return false;
+            unaryRuleApplications += handleUnaries(chart, i, constraint);
+            if (beam != null && n > 1) prune(chart, beam, i, i + 1);
+        }
+        if (stats != null) {
+            stats.addLexical(lexicalEnd - nanos);
+            stats.addCell(0, 0, System.nanoTime() - lexicalEnd, unaryRuleApplications);
         }
         // MAIN PROCESSING
         // Alternating between binaries and unaries
+        // All cells of one span only read shorter spans, so a diagonal can be filled in any order
+        ForkJoinPool pool = cellPool;
+        boolean parallel = pool != null && n >= parallelMinLength;
         for (int span = 2; span <= n; span++) {
-            for (int begin = 0; begin <= (n - span); begin++) {
-                int end = begin + span;
-
-                LinkedHashMap<Integer, Double> binaryScoreMap = binaryScore.get(begin).get(end);
-                for (int split= begin + 1; split <= end - 1; split++) {
-
-                    LinkedHashMap<Integer, Double> leftUnaryScores = unaryScore.get(begin).get(split);
-                    LinkedHashMap<Integer, Double> rightUnaryScores = unaryScore.get(split).get(end);
-
-                    for (Integer B: leftUnaryScores.keySet()) {
-                        for (BinaryRule AtoBC: grammar.getBinaryRulesByLeftChild(B)) {
-                            int A = AtoBC.getParent();
-                            int C = AtoBC.getRightChild();
-                            // check whether right child's score exists
-                            if (! rightUnaryScores.containsKey(C)) {
-                                continue;
-                            }
-                            double prob = leftUnaryScores.get(B) + rightUnaryScores.get(C) + AtoBC.getScore();
-                            if ( !(binaryScoreMap.containsKey(A)) || (prob > binaryScoreMap.get(A)) ) {
-                                // update score and back pointer
-                                binaryScoreMap.put(A, prob);
-                                biBackPointer.get(begin).get(end).put(A, new Triple<>(split, B, C));
-                            }
-                        }
+            if (parallel) {
+                if (isPast(deadline)) return false;
+                pool.invoke(new DiagonalTask(chart, constraint, stats, beam, deadline, span, 0, n - span + 1));
+                // a cell given up on the deadline is left half filled
+                if (isPast(deadline)) return false;
+            } else {
+                for (int begin = 0; begin <= (n - span); begin++) {
+                    if (isPast(deadline) || !fillCell(chart, constraint, stats, beam, deadline, begin, begin + span)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPast(long deadline) {
+        return deadline != NO_DEADLINE && System.nanoTime() - deadline > 0;
+    }
+
+    /**
+     * Fill the cell [begin, end] from the cells of shorter spans: binaries A -> BC, then unaries D -> A
+     * Only writes to the cell [begin, end], so cells of the same span can be filled concurrently
+     * @return false if the deadline passed during the binary loop, leaving the cell half filled
+     */
+    private boolean fillCell(CKYChart chart, ChartConstraint constraint, ParseStats stats, Beam beam, long deadline,
+                             int begin, int end) {
+        if (constraint != null && !constraint.isCellOpen(begin, end)) return true;
+        long nanos = (stats == null) ? 0 : System.nanoTime();
+        int binaryRuleApplications = 0;
+        // rules scanned and rule applications since the last check of the deadline
+        int work = 0;
+        double[] unaryScore = chart.unaryScore;
+        double[] unaryScoreByEnd = chart.unaryScoreByEnd;
+        double[] binaryScore = chart.binaryScore;
+        // binary rules grouped by left child
+        int[] ruleStart = compiledGrammar.leftChildStart;
+        int[] ruleParent = compiledGrammar.parent;
+        int[] ruleRightChild = compiledGrammar.rightChild;
+        double[] ruleScore = compiledGrammar.score;
+
+        int binaryOffset = chart.offset(begin, end);
+        // left cells [begin, split] are adjacent in the begin-major table,
+        // right cells [split, end] are adjacent in the end-major one
+        int leftBase = chart.offset(begin, begin + 1) - (begin + 1) * numNonTerminals;
+        int rightBase = chart.offsetByEnd(0, end);
+        int beginOffset = begin * numNonTerminals;
+        int endOffset = end * numNonTerminals;
+
+        // only the labels built from begin, and for each rule only the splits between
+        // the extents of B from begin and the extents of C up to end
+        for (int l = 0; l < chart.numStartLabels[begin]; l++) {
+            int B = chart.startLabels[beginOffset + l];
+            int narrowRight = chart.narrowRight[beginOffset + B];
+            if (narrowRight >= end) continue;
+            int wideRight = chart.wideRight[beginOffset + B];
+            if (work >= DEADLINE_CHECK_INTERVAL) {
+                if (isPast(deadline)) return false;
+                work = 0;
+            }
+            work += ruleStart[B + 1] - ruleStart[B];
+
+            for (int r = ruleStart[B], rulesEnd = ruleStart[B + 1]; r < rulesEnd; r++) {
+                int C = ruleRightChild[r];
+                int narrowLeft = chart.narrowLeft[endOffset + C];
+                if (narrowLeft < narrowRight) continue;
+                int minSplit = Math.max(narrowRight, chart.wideLeft[endOffset + C]);
+                int maxSplit = Math.min(wideRight, narrowLeft);
+                if (minSplit > maxSplit) continue;
+
+                binaryRuleApplications += maxSplit - minSplit + 1;
+                work += maxSplit - minSplit + 1;
+                int A = ruleParent[r];
+                double scoreAtoBC = ruleScore[r];
+                int leftOffset = leftBase + B;
+                int rightOffset = rightBase + C;
+                for (int split = minSplit; split <= maxSplit; split++) {
+                    double leftScore = unaryScore[leftOffset + split * numNonTerminals];
+                    if (leftScore == Double.NEGATIVE_INFINITY) continue;
+                    // check whether right child's score exists
+                    double rightScore = unaryScoreByEnd[rightOffset + split * numNonTerminals];
+                    if (rightScore == Double.NEGATIVE_INFINITY) continue;
+                    double prob = leftScore + rightScore + scoreAtoBC;
+                    double best = binaryScore[binaryOffset + A];
+                    // on ties keep the smallest (split, left child, right child), whatever the loop order
+                    if ((prob > best || (prob == best && CKYChart.packBinaryBackPointer(split, B, C)
+                            < chart.biBackPointer[binaryOffset + A]))
+                            && (constraint == null || constraint.isAllowed(begin, end, A))) {
+                        // update score and back pointer
+                        chart.setBinary(begin, end, A, prob, split, B, C);
                     }
                 }
-                // Done A -> BC now check whether D -> A
-                handleUnariesForBinary(begin, end, binaryScoreMap);
             }
         }
+        // Done A -> BC now check whether D -> A
+        if (stats == null) {
+            handleUnariesForBinary(chart, begin, end, constraint);
+        } else {
+            long binaryEnd = System.nanoTime();
+            int unaryRuleApplications = handleUnariesForBinary(chart, begin, end, constraint);
+            stats.addCell(binaryEnd - nanos, binaryRuleApplications, System.nanoTime() - binaryEnd, unaryRuleApplications);
+        }
+        // the cell of the whole sentence is not read by any other cell
+        if (beam != null && (begin > 0 || end < chart.length)) prune(chart, beam, begin, end);
+        return true;
+    }
+
+    private void prune(CKYChart chart, Beam beam, int begin, int end) {
+        int numLabels = chart.numUnaryLabels[chart.cell(begin, end)];
+        int numKept = chart.pruneUnaries(begin, end, beam.maxLabelsPerCell, beam.logThreshold);
+        beamStatistics.recordCell(numLabels, numKept);
+    }
+
+    /**
+     * Settings of the beam mode, set together so that a parse never sees half of them
+     */
+    private static final class Beam {
+        final int maxLabelsPerCell;
+        final double logThreshold;
+
+        Beam(int maxLabelsPerCell, double logThreshold) {
+            if (maxLabelsPerCell < 1) {
+                throw new IllegalArgumentException("Beam must keep at least one label per cell, not " + maxLabelsPerCell);
+            }
+            if (!(logThreshold <= 0.0)) {
+                throw new IllegalArgumentException("Beam threshold is a log score difference <= 0, not " + logThreshold);
+            }
+            this.maxLabelsPerCell = maxLabelsPerCell;
+            this.logThreshold = logThreshold;
+        }
+    }
+
+    /**
+     * Fills the cells [begin, begin + span] for begin in [from, to), halving the range
+     * until single cells so that idle workers can steal the other half, and none once the deadline passed
+     */
+    private class DiagonalTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CKYChart chart;
+        private final ChartConstraint constraint;
+        private final ParseStats stats;
+        private final Beam beam;
+        private final long deadline;
+        private final int span;
+        private final int from;
+        private final int to;
+
+        DiagonalTask(CKYChart chart, ChartConstraint constraint, ParseStats stats, Beam beam, long deadline, int span,
+                     int from, int to) {
+            this.chart = chart;
+            this.constraint = constraint;
+            this.stats = stats;
+            this.beam = beam;
+            this.deadline = deadline;
+            this.span = span;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (isPast(deadline)) return;
+            if (to - from == 1) {
+                fillCell(chart, constraint, stats, beam, deadline, from, from + span);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DiagonalTask(chart, constraint, stats, beam, deadline, span, from, middle),
+                    new DiagonalTask(chart, constraint, stats, beam, deadline, span, middle, to));
+        }
     }
 
     /**
      * Handle Unary Case in CKY
      * TODO: switch back to private after debugging
      * @param i index
+     * @return number of closed unary rules tried
      */
-    public void handleUnaries(int i) {
-        LinkedHashMap<Integer, Double> unaryScoreMap = unaryScore.get(i).get(i+1);
-        LinkedHashMap<Integer, Integer> unaryBackPtrMap = uniBackPointer.get(i).get(i+1);
-
-            Set<Integer> keySet = new LinkedHashSet<>(unaryScoreMap.keySet()); // deep copy to avoid exception
-            for (int B: keySet) {
-                // get all A s.t. A -> B is a unary closure rule
-                for (UnaryRule AtoB: unaryClosure.getClosedUnaryRulesByChild(B)) {
-                    double p_A_to_B = AtoB.getScore();
-                    double prob = p_A_to_B + unaryScoreMap.get(B);
-                    int A = AtoB.getParent();
-                    if ( (! unaryScoreMap.containsKey(A)) || (prob > unaryScoreMap.get(A)) ) {
-                        unaryScoreMap.put(A, prob);
-                        unaryBackPtrMap.put(A, B);
-                    }
+    public int handleUnaries(CKYChart chart, int i, ChartConstraint constraint) {
+        int cell = chart.cell(i, i + 1);
+        int offset = cell * numNonTerminals;
+        double[] unaryScore = chart.unaryScore;
+
+        // closed unary rules grouped by child
+        int[] ruleStart = compiledUnaryClosure.childStart;
+        int[] ruleParent = compiledUnaryClosure.parent;
+        double[] ruleScore = compiledUnaryClosure.score;
+
+        // only the labels present before this pass, new ones are appended after them
+        int numLabels = chart.numUnaryLabels[cell];
+        int ruleApplications = 0;
+        for (int l = 0; l < numLabels; l++) {
+            int B = chart.unaryLabels[offset + l];
+            double scoreB = unaryScore[offset + B];
+            // get all A s.t. A -> B is a unary closure rule
+            ruleApplications += ruleStart[B + 1] - ruleStart[B];
+            for (int r = ruleStart[B], rulesEnd = ruleStart[B + 1]; r < rulesEnd; r++) {
+                double p_A_to_B = ruleScore[r];
+                double prob = p_A_to_B + scoreB;
+                int A = ruleParent[r];
+                // on ties keep the smallest child (the tag itself, -1, first)
+                double best = unaryScore[offset + A];
+                if ((prob > best || (prob == best && B < chart.uniBackPointer[offset + A]))
+                        && (constraint == null || constraint.isAllowed(i, i + 1, A))) {
+                    chart.setUnary(i, i + 1, A, prob, B);
                 }
             }
+        }
+        return ruleApplications;
     }
 
     /**
@@ -333,103 +802,46 @@ public class CKYNaiveParser implements Parser
      * table before updating to unary tables
      * @param begin
      * @param end
-     * @param binaryScoreMap at location [begin][end]
+     * @return number of closed unary rules tried
      */
-    public void handleUnariesForBinary(int begin, int end, LinkedHashMap<Integer, Double> binaryScoreMap) {
-        LinkedHashMap<Integer, Double> unaryScoreMap = unaryScore.get(begin).get(end);
-//        LinkedHashMap<Integer, Double> binaryScoreMap = binaryScore.get(begin).get(end);
-        LinkedHashMap<Integer, Integer> unaryBackPtrMap = uniBackPointer.get(begin).get(end);
-
-        Set<Integer> keySet = new LinkedHashSet<>(binaryScoreMap.keySet()); // deep copy to avoid exception
-        for (int B : keySet) {
+    public int handleUnariesForBinary(CKYChart chart, int begin, int end, ChartConstraint constraint) {
+        int cell = chart.cell(begin, end);
+        int offset = cell * numNonTerminals;
+        double[] unaryScore = chart.unaryScore;
+        double[] binaryScore = chart.binaryScore;
+
+        int[] ruleStart = compiledUnaryClosure.childStart;
+        int[] ruleParent = compiledUnaryClosure.parent;
+        double[] ruleScore = compiledUnaryClosure.score;
+
+        int numLabels = chart.numBinaryLabels[cell];
+        int ruleApplications = 0;
+        for (int l = 0; l < numLabels; l++) {
+            int B = chart.binaryLabels[offset + l];
+            double scoreB = binaryScore[offset + B];
             // get all A s.t. A -> B is a unary closure rule
-            for (UnaryRule AtoB : unaryClosure.getClosedUnaryRulesByChild(B)) {
-                double p_A_to_B = AtoB.getScore();
-                double prob = p_A_to_B + binaryScoreMap.get(B);
-                int A = AtoB.getParent();
-                if ((!unaryScoreMap.containsKey(A)) || (prob > unaryScoreMap.get(A))) {
-                    unaryScoreMap.put(A, prob);
-                    unaryBackPtrMap.put(A, B);
+            ruleApplications += ruleStart[B + 1] - ruleStart[B];
+            for (int r = ruleStart[B], rulesEnd = ruleStart[B + 1]; r < rulesEnd; r++) {
+                double p_A_to_B = ruleScore[r];
+                double prob = p_A_to_B + scoreB;
+                int A = ruleParent[r];
+                // on ties keep the smallest child
+                double best = unaryScore[offset + A];
+                if ((prob > best || (prob == best && B < chart.uniBackPointer[offset + A]))
+                        && (constraint == null || constraint.isAllowed(begin, end, A))) {
+                    chart.setUnary(begin, end, A, prob, B);
                 }
             }
         }
+        return ruleApplications;
     }
 
     /**
-     * Create a parsed tree after CKY Parsing recursively
-     * TODO: refactor this mess
+     * Annotated tree of parent over [start, end] after CKY parsing, after unaries or (isBinaryTurn) before them
+     * Built without recursion (see ChartTreeBuilder), for debugging: getBestParse builds the unannotated tree directly
      */
-    public Tree<String> createCKYParsedTree(List<String> sentence, int parent, boolean isBinaryTurn,
+    public Tree<String> createCKYParsedTree(CKYChart chart, List<String> sentence, int parent, boolean isBinaryTurn,
                                     int start, int end) {
-        Indexer<String> labelIndexer = grammar.getLabelIndexer();
-        // base case
-        if (end == start + 1) {
-            // terminals (words)
-            if (uniBackPointer.get(start).get(end).get(parent) == null)
-                // parent -> word
-                return new Tree<>(labelIndexer.get(parent), Arrays.asList(new Tree<>(sentence.get(start))));
-            else {
-                // parent -> tag -> word
-                int tag = uniBackPointer.get(start).get(end).get(parent);
-                Tree<String> tagToWordTree = new Tree<>(labelIndexer.get(tag),
-                        Arrays.asList(new Tree<>(sentence.get(start))));
-
-                // expansion of unary rule
-                UnaryRule unaryRule = new UnaryRule(parent, tag);
-                List<Integer> path = unaryClosure.getPath(unaryRule);
-                if (path.size() > 2) {
-                    System.out.println("Path bigger than 2 ");
-                    for (int i = 1; i < path.size() -1 ; i++) {
-                        Tree<String> tmpTree = new Tree<>(labelIndexer.get(path.get(i)), Arrays.asList(tagToWordTree));
-                        tagToWordTree = tmpTree;
-                    }
-                }
-                // look for possible parents
-                return new Tree<>(labelIndexer.get(parent), Arrays.asList(tagToWordTree));
-            }
-        }
-
-        Tree<String> masterTree = new Tree<>(labelIndexer.get(parent));
-        // unary
-        if (! isBinaryTurn) {
-            Tree<String> unaryTree;
-            if (!uniBackPointer.get(start).get(end).containsKey(parent)) {
-                masterTree = createCKYParsedTree(sentence, parent, true, start, end);
-            }
-            else {
-                // get the back point of parent
-                int child = uniBackPointer.get(start).get(end).get(parent);
-                // handle reflexive rule
-                if (child == parent) {
-                    masterTree = createCKYParsedTree(sentence, parent, true, start, end);
-                } else {
-                    // expansion of unary rule
-                    UnaryRule unaryRule = new UnaryRule(parent, child);
-                    List<Integer> path = unaryClosure.getPath(unaryRule);
-                    unaryTree = createCKYParsedTree(sentence, child, true, start, end);
-                    if (path.size() > 2) {
-                        System.out.println("Path bigger than 2 ");
-                        for (int i = 1; i < path.size() - 1; i++) {
-                            Tree<String> tmpTree = new Tree<>(labelIndexer.get(path.get(i)), Arrays.asList(unaryTree));
-                            unaryTree = tmpTree;
-                        }
-                    }
-                    masterTree.setChildren(Arrays.asList(unaryTree));
-                }
-
-            }
-        }
-        else {
-        // binary
-            Triple<Integer, Integer, Integer> triple = biBackPointer.get(start).get(end).get(parent);
-            int leftChild = triple.begin;
-            int rightChild = triple.end;
-            int split = triple.split;
-            Tree<String> leftChildTree = createCKYParsedTree(sentence, leftChild, false, start, split);
-            Tree<String> rightChildTree = createCKYParsedTree(sentence, rightChild, false, split, end);
-
-            masterTree.setChildren(Arrays.asList(leftChildTree, rightChildTree));
-        }
-        return masterTree;
+        return chartTreeBuilder.buildAnnotatedTree(chart, sentence, parent, isBinaryTurn, start, end);
     }
 }
\ No newline at end of file
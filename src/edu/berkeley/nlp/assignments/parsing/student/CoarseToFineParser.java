@@ -0,0 +1,197 @@
+package edu.berkeley.nlp.assignments.parsing.student;
+
+import edu.berkeley.nlp.assignments.parsing.Parser;
+import edu.berkeley.nlp.assignments.parsing.student.util.ChartConstraint;
+import edu.berkeley.nlp.assignments.parsing.student.util.InsideOutside;
+import edu.berkeley.nlp.assignments.parsing.student.util.InsideOutsideChart;
+import edu.berkeley.nlp.assignments.parsing.student.util.LabelProjection;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParserModel;
+import edu.berkeley.nlp.assignments.parsing.student.util.PruningStatistics;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coarse-to-fine parser: a cheap inside-outside pass over a coarse grammar (the markovized grammar
+ * projected to a smaller symbol set) prunes the chart of the exhaustive CKYNaiveParser over the fine
+ * grammar. A fine label is only built in a cell if the posterior of its coarse symbol in that cell
+ * (probability that a coarse parse uses it there) has a log at least pruningThreshold.
+ * If the pruned chart has no parse, the sentence is parsed again without pruning.
+ */
+public class CoarseToFineParser implements Parser
+{
+    // =========================FIELDS=========================
+    private final CKYNaiveParser fineParser;
+    private final InsideOutside coarseInsideOutside;
+    private final int numCoarseLabels;
+
+    // fine label index => coarse label index
+    private final int[] projection;
+    // log posterior below which coarse items are pruned
+    private final double pruningThreshold;
+
+    private final PruningStatistics statistics = new PruningStatistics();
+    // =========================END OF FIELDS=========================
+
+    // =========================CONSTRUCTOR=========================
+    public CoarseToFineParser(List<Tree<String>> trainTrees, LabelProjection labelProjection, double pruningThreshold) {
+        this(trainFineAndCoarseModels(trainTrees, labelProjection), labelProjection, pruningThreshold);
+    }
+
+    public CoarseToFineParser(ParserModel fineModel, ParserModel coarseModel, LabelProjection labelProjection,
+                              double pruningThreshold) {
+        this(new ParserModel[] { fineModel, coarseModel }, labelProjection, pruningThreshold);
+    }
+
+    private CoarseToFineParser(ParserModel[] models, LabelProjection labelProjection, double pruningThreshold) {
+        this.fineParser = new CKYNaiveParser(models[0]);
+        this.coarseInsideOutside = new InsideOutside(models[1]);
+        this.numCoarseLabels = models[1].getNumNonTerminals();
+        this.pruningThreshold = pruningThreshold;
+
+        Indexer<String> fineLabels = models[0].getGrammar().getLabelIndexer();
+        Indexer<String> coarseLabels = models[1].getGrammar().getLabelIndexer();
+        this.projection = new int[fineLabels.size()];
+        for (int label = 0; label < fineLabels.size(); label++) {
+            projection[label] = coarseLabels.indexOf(labelProjection.project(fineLabels.get(label)));
+            if (projection[label] < 0) {
+                throw new IllegalArgumentException("Coarse grammar has no symbol for " + fineLabels.get(label));
+            }
+        }
+    }
+
+    /**
+     * Both models are trained on the same markovized trees, the coarse one after projecting their labels
+     * @return { fine model, coarse model }
+     */
+    static ParserModel[] trainFineAndCoarseModels(List<Tree<String>> trainTrees, LabelProjection labelProjection) {
+        System.out.print("Annotating / binarizing training trees ... ");
+        List<Tree<String>> annotatedTrainTrees = ParserModel.annotateTrees(trainTrees, CKYNaiveParser.vOrder, CKYNaiveParser.hOrder);
+        System.out.println("done.");
+        System.out.println("Fine model:");
+        ParserModel fineModel = ParserModel.fromAnnotatedTrees(annotatedTrainTrees);
+        List<Tree<String>> coarseTrainTrees = new ArrayList<>();
+        for (Tree<String> annotatedTree : annotatedTrainTrees) {
+            coarseTrainTrees.add(projectTree(annotatedTree, labelProjection));
+        }
+        System.out.println("Coarse model:");
+        ParserModel coarseModel = ParserModel.fromAnnotatedTrees(coarseTrainTrees);
+        return new ParserModel[] { fineModel, coarseModel };
+    }
+
+    private static Tree<String> projectTree(Tree<String> tree, LabelProjection labelProjection) {
+        if (tree.isLeaf()) {
+            return new Tree<>(tree.getLabel());
+        }
+        List<Tree<String>> children = new ArrayList<>();
+        for (Tree<String> child : tree.getChildren()) {
+            children.add(projectTree(child, labelProjection));
+        }
+        return new Tree<>(labelProjection.project(tree.getLabel()), children);
+    }
+    // =========================END OF CONSTRUCTOR=========================
+
+    public Tree<String> getBestParse(List<String> sentence) {
+        CoarseMask mask = null;
+        InsideOutsideChart coarseChart = coarseInsideOutside.compute(sentence);
+        try {
+            if (coarseChart.hasParse()) {
+                mask = computeMask(coarseChart);
+            }
+        } finally {
+            coarseInsideOutside.release(coarseChart);
+        }
+
+        Tree<String> bestParse = (mask == null) ? null : fineParser.getBestParse(sentence, mask);
+        if (bestParse == null) {
+            statistics.recordFallback();
+            return fineParser.getBestParse(sentence);
+        }
+        return bestParse;
+    }
+
+    public PruningStatistics getStatistics() {
+        return statistics;
+    }
+
+    public CKYNaiveParser getFineParser() {
+        return fineParser;
+    }
+
+    /**
+     * Keep the coarse items (of either layer of a cell) whose log posterior is at least pruningThreshold
+     */
+    private CoarseMask computeMask(InsideOutsideChart chart) {
+        int n = chart.length();
+        CoarseMask mask = new CoarseMask(n, numCoarseLabels, projection);
+        long numItems = 0;
+        long numKeptItems = 0;
+        long numOpenCells = 0;
+        for (int begin = 0; begin < n; begin++) {
+            for (int end = begin + 1; end <= n; end++) {
+                for (int k = 0; k < chart.getNumLabels(begin, end); k++) {
+                    int A = chart.getLabel(begin, end, k);
+                    numItems++;
+                    if (chart.getLogPosterior(begin, end, A) >= pruningThreshold) {
+                        mask.allow(begin, end, A);
+                        numKeptItems++;
+                    }
+                }
+                for (int k = 0; k < chart.getNumBinaryLabels(begin, end); k++) {
+                    int A = chart.getBinaryLabel(begin, end, k);
+                    if (chart.getBinaryLogPosterior(begin, end, A) >= pruningThreshold) {
+                        mask.allow(begin, end, A);
+                    }
+                }
+                if (mask.isCellOpen(begin, end)) numOpenCells++;
+            }
+        }
+        statistics.recordSentence(mask.numCells, numOpenCells, numItems, numKeptItems);
+        return mask;
+    }
+
+    /**
+     * Coarse labels kept in each cell; a fine label is allowed if its projection is kept
+     */
+    private static class CoarseMask implements ChartConstraint {
+        private final int length;
+        private final int numCells;
+        private final int numCoarseLabels;
+        private final int[] projection;
+        private final boolean[] allowed;
+        private final boolean[] open;
+
+        CoarseMask(int length, int numCoarseLabels, int[] projection) {
+            this.length = length;
+            this.numCells = length * (length + 1) / 2;
+            this.numCoarseLabels = numCoarseLabels;
+            this.projection = projection;
+            this.allowed = new boolean[numCells * numCoarseLabels];
+            this.open = new boolean[numCells];
+        }
+
+        int cell(int begin, int end) {
+            return begin * length - begin * (begin - 1) / 2 + (end - begin - 1);
+        }
+
+        int offset(int begin, int end) {
+            return cell(begin, end) * numCoarseLabels;
+        }
+
+        void allow(int begin, int end, int coarseLabel) {
+            int cell = cell(begin, end);
+            open[cell] = true;
+            allowed[cell * numCoarseLabels + coarseLabel] = true;
+        }
+
+        public boolean isCellOpen(int begin, int end) {
+            return open[cell(begin, end)];
+        }
+
+        public boolean isAllowed(int begin, int end, int label) {
+            return allowed[offset(begin, end) + projection[label]];
+        }
+    }
+}
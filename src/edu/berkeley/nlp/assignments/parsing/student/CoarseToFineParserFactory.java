@@ -4,13 +4,38 @@ import java.util.List;
 
 import edu.berkeley.nlp.assignments.parsing.Parser;
 import edu.berkeley.nlp.assignments.parsing.ParserFactory;
+import edu.berkeley.nlp.assignments.parsing.student.util.LabelProjection;
+import edu.berkeley.nlp.assignments.parsing.student.util.PruningStatistics;
 import edu.berkeley.nlp.ling.Tree;
 
 
 public class CoarseToFineParserFactory implements ParserFactory {
 
+  // log posterior of coarse items below which they are pruned (about 1e-4)
+  public static final double DEFAULT_PRUNING_THRESHOLD = -9.0;
+
+  private final LabelProjection projection;
+  private final double pruningThreshold;
+  private CoarseToFineParser lastParser;
+
+  public CoarseToFineParserFactory() {
+    this(LabelProjection.X_BAR, DEFAULT_PRUNING_THRESHOLD);
+  }
+
+  public CoarseToFineParserFactory(LabelProjection projection, double pruningThreshold) {
+    this.projection = projection;
+    this.pruningThreshold = pruningThreshold;
+  }
+
   public Parser getParser(List<Tree<String>> trainTrees) {
+     lastParser = new CoarseToFineParser(trainTrees, projection, pruningThreshold);
+     return lastParser;
+  }
 
-     return null;
+  /**
+   * @return pruning statistics of the last parser built, null if none was built yet
+   */
+  public PruningStatistics getPruningStatistics() {
+    return lastParser == null ? null : lastParser.getStatistics();
   }
 }
@@ -0,0 +1,36 @@
+package edu.berkeley.nlp.assignments.parsing.student.test;
+
+import edu.berkeley.nlp.assignments.parsing.Parser;
+import edu.berkeley.nlp.assignments.parsing.student.CKYNaiveParser;
+import edu.berkeley.nlp.ling.Tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parsing of the test trees shared by the testers
+ */
+final class BatchParsing {
+
+    private BatchParsing() {
+    }
+
+    /**
+     * CKYNaiveParser is reentrant, so it parses the whole batch on numThreads cores;
+     * other parsers are called one sentence at a time
+     */
+    static List<Tree<String>> parseAll(Parser parser, List<Tree<String>> testTrees, int numThreads) {
+        List<List<String>> testSentences = new ArrayList<>();
+        for (Tree<String> testTree : testTrees) {
+            testSentences.add(testTree.getYield());
+        }
+        if (parser instanceof CKYNaiveParser) {
+            return ((CKYNaiveParser) parser).getBestParses(testSentences, numThreads);
+        }
+        List<Tree<String>> guessedTrees = new ArrayList<>();
+        for (List<String> testSentence : testSentences) {
+            guessedTrees.add(parser.getBestParse(testSentence));
+        }
+        return guessedTrees;
+    }
+}
@@ -5,13 +5,21 @@ import edu.berkeley.nlp.assignments.parsing.Parser;
 import edu.berkeley.nlp.assignments.parsing.UnaryRule;
 import edu.berkeley.nlp.assignments.parsing.student.*;
 import edu.berkeley.nlp.assignments.parsing.student.util.Grammar;
+import edu.berkeley.nlp.assignments.parsing.student.util.LabelProjection;
+import edu.berkeley.nlp.assignments.parsing.student.util.LatentAnnotationTrainer;
 import edu.berkeley.nlp.assignments.parsing.student.util.Lexicon;
+import edu.berkeley.nlp.assignments.parsing.student.util.MaxRuleDecoder;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParseMetrics;
+import edu.berkeley.nlp.assignments.parsing.student.util.TreebankCache;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParserModel;
 import edu.berkeley.nlp.io.PennTreebankReader;
 import edu.berkeley.nlp.ling.Tree;
 import edu.berkeley.nlp.ling.Trees;
 import edu.berkeley.nlp.parser.EnglishPennTreebankParseEvaluator;
 import edu.berkeley.nlp.util.CommandLineUtils;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 
 /**
@@ -24,6 +32,7 @@ public class CKYNaiveParserConciseTester
 
     private static Grammar grammar;
     private static Lexicon lexicon;
+    private static String treebankCachePath = null;
 
     public static void main(String[] args) {
         // Parse command line flags and arguments
@@ -51,6 +60,10 @@ public class CKYNaiveParserConciseTester
             basePath = argMap.get("-path");
             System.out.println("Using base path: " + basePath);
         }
+        if (argMap.containsKey("-treebankCache")) {
+            // binary cache of the normalized trees, built on first use (see TreebankCache)
+            treebankCachePath = argMap.get("-treebankCache");
+        }
 
         if (argMap.containsKey("-maxTrainLength")) {
             maxTrainLength = Integer.parseInt(argMap.get("-maxTrainLength"));
@@ -60,6 +73,11 @@ public class CKYNaiveParserConciseTester
             maxTestLength = Integer.parseInt(argMap.get("-maxTestLength"));
         }
         System.out.println("Maximum length for test sentences: " + maxTestLength);
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        if (argMap.containsKey("-threads")) {
+            numThreads = Integer.parseInt(argMap.get("-threads"));
+        }
+        System.out.println("Parsing threads: " + numThreads);
 
         System.out.print("Loading training trees  ... ");
         List<Tree<String>> trainTrees = readTrees(basePath, start, end, maxTrainLength);
@@ -70,17 +88,88 @@ public class CKYNaiveParserConciseTester
         testTrees = readTrees(basePath, start, end, maxTestLength);
         System.out.println("done. (" + testTrees.size() + " trees)");
 
-        CKYNaiveParser parser = new CKYNaiveParser(trainTrees);
+        if (argMap.containsKey("-coarseToFine")) {
+            // optional pruning threshold on the log posterior of coarse items, e.g. -coarseToFine 8
+            String threshold = argMap.get("-coarseToFine");
+            CoarseToFineParserFactory factory = (threshold == null) ? new CoarseToFineParserFactory()
+                    : new CoarseToFineParserFactory(LabelProjection.X_BAR, -Math.abs(Double.parseDouble(threshold)));
+            Parser coarseToFineParser = factory.getParser(trainTrees);
+            System.out.println("\n\n\n\n\nEVALUATING COARSE-TO-FINE PARSER NOW ...");
+            testParser(coarseToFineParser, testTrees, true, numThreads);
+            System.out.println(factory.getPruningStatistics());
+            return;
+        }
+
+        if (argMap.containsKey("-budgetMillis")) {
+            // latency budget per sentence, with fallbacks to cheaper parses when it is spent
+            long budgetNanos = Long.parseLong(argMap.get("-budgetMillis")) * 1000000L;
+            BudgetedParser budgetedParser = (BudgetedParser) new BudgetedParser.BudgetedParserFactory(budgetNanos).getParser(trainTrees);
+            System.out.println("\n\n\n\n\nEVALUATING BUDGETED PARSER NOW ...");
+            testParser(budgetedParser, testTrees, true, numThreads);
+            System.out.println(budgetedParser.getLevelStatistics());
+            return;
+        }
+
+        if (argMap.containsKey("-astar")) {
+            // A* search with the outside estimates of the model: same trees as CKY, fewer edges built
+            AStarParser aStarParser = argMap.containsKey("-loadModel") ? new AStarParser(loadModel(argMap.get("-loadModel")))
+                    : (AStarParser) new AStarParser.AStarParserFactory().getParser(trainTrees);
+            System.out.println("\n\n\n\n\nEVALUATING A* PARSER NOW ...");
+            testParser(aStarParser, testTrees, true, numThreads);
+            System.out.println(aStarParser.getStatistics());
+            return;
+        }
+
+        CKYNaiveParser parser;
+        if (argMap.containsKey("-loadModel")) {
+            // model saved by a previous run with -saveModel: no training
+            System.out.print("Loading model ... ");
+            long nanos = System.nanoTime();
+            parser = new CKYNaiveParser(loadModel(argMap.get("-loadModel")));
+            System.out.println("done. (" + (System.nanoTime() - nanos) / 1000000 + " millis)");
+        } else if (argMap.containsKey("-latentSplits")) {
+            // latent sub-symbols fitted by EM on all threads, e.g. -latentSplits 1 -emIterations 30 -latentCheckpoint em.ckpt
+            parser = new CKYNaiveParser(trainLatentModel(trainTrees, argMap, numThreads));
+        } else {
+            parser = new CKYNaiveParser(trainTrees);
+        }
+        if (argMap.containsKey("-saveModel")) {
+            // -saveOutsideEstimates also stores the tables of the A* parser, for a later -astar -loadModel
+            saveModel(parser.getModel(), argMap.get("-saveModel"), argMap.containsKey("-saveOutsideEstimates"));
+        }
+        if (argMap.containsKey("-parallelCKY")) {
+            // fill span diagonals concurrently for sentences of at least this length
+            parser.setParallelCKY(Integer.parseInt(argMap.get("-parallelCKY")));
+        }
+        if (argMap.containsKey("-beamSize") || argMap.containsKey("-beamThreshold")) {
+            // keep at most -beamSize labels per cell, within -beamThreshold (a log score difference) of the best one
+            int beamSize = argMap.containsKey("-beamSize") ? Integer.parseInt(argMap.get("-beamSize")) : Integer.MAX_VALUE;
+            double beamThreshold = argMap.containsKey("-beamThreshold")
+                    ? -Math.abs(Double.parseDouble(argMap.get("-beamThreshold"))) : Double.NEGATIVE_INFINITY;
+            parser.setBeam(beamSize, beamThreshold);
+        }
+        if (argMap.containsKey("-maxRule")) {
+            // max-rule-product decoding over posteriors, optional log posterior pruning threshold, e.g. -maxRule 12
+            String threshold = argMap.get("-maxRule");
+            parser.setMaxRuleDecoding((threshold == null) ? MaxRuleDecoder.DEFAULT_PRUNING_THRESHOLD
+                    : -Math.abs(Double.parseDouble(threshold)));
+        }
+        ParseMetrics parseMetrics = null;
+        if (argMap.containsKey("-parseStats")) {
+            // time every parse, latency histograms by sentence length are printed after the evaluation
+            parseMetrics = new ParseMetrics();
+            parser.setParseMetrics(parseMetrics);
+        }
         grammar = parser.getGrammar();
         lexicon = parser.getLexicon();
 //        parser.debugLexiconToConsole();
 //        parser.getBestParse(smallSentence);
-//        parser.cky(smallSentence);
-//        parser.debugScoreTablesToConsole(parser.getScore());
-//        parser.debugScoreTablesToConsole(parser.getUnaryScore());
-//        parser.debugScoreTablesToConsole(parser.getBinaryScore());
-//        parser.debugBackPointerTablesToConsole();
-//        Tree<String> annotatedBestParse = parser.createCKYParsedTree(smallSentence, 0, false, 0, smallSentence.size());
+//        CKYChart chart = parser.initScoreAndBackPointerTables(smallSentence);
+//        parser.cky(smallSentence, chart);
+//        parser.debugScoreTablesToConsole(chart, chart.unaryScore);
+//        parser.debugScoreTablesToConsole(chart, chart.binaryScore);
+//        parser.debugBackPointerTablesToConsole(chart);
+//        Tree<String> annotatedBestParse = parser.createCKYParsedTree(chart, smallSentence, 0, false, 0, smallSentence.size());
 
 
 //        PCFGParser parser = new PCFGParser();
@@ -93,19 +182,61 @@ public class CKYNaiveParserConciseTester
 
 
         System.out.println("\n\n\n\n\nEVALUATING PARSER NOW ...");
-        testParser(parser, testTrees, true);
+        testParser(parser, testTrees, true, numThreads);
+        if (parseMetrics != null) {
+            System.out.println("Parse metrics:\n" + parseMetrics);
+        }
+        if (argMap.containsKey("-beamSize") || argMap.containsKey("-beamThreshold")) {
+            System.out.println("Beam " + parser.getBeamStatistics());
+        }
 
 //        System.out.println(parser.getUnaryClosure().getPath(new UnaryRule(2, 3)));
 
     }
 
-    private static void testParser(Parser parser, List<Tree<String>> testTrees, boolean verbose) {
+    private static ParserModel loadModel(String path) {
+        try {
+            return ParserModel.load(Paths.get(path));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load model from " + path, e);
+        }
+    }
+
+    private static ParserModel trainLatentModel(List<Tree<String>> trainTrees, Map<String, String> argMap, int numThreads) {
+        int numSplits = Integer.parseInt(argMap.get("-latentSplits"));
+        int iterationsPerSplit = argMap.containsKey("-emIterations") ? Integer.parseInt(argMap.get("-emIterations")) : 30;
+        // markovized as CKYNaiveParser does; an existing checkpoint is resumed
+        LatentAnnotationTrainer trainer = new LatentAnnotationTrainer(trainTrees, 2, 2, numThreads);
+        String checkpoint = argMap.get("-latentCheckpoint");
+        try {
+            trainer.train(numSplits, iterationsPerSplit, (checkpoint == null) ? null : Paths.get(checkpoint));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read or write the latent annotation checkpoint " + checkpoint, e);
+        }
+        return trainer.getModel();
+    }
+
+    private static void saveModel(ParserModel model, String path, boolean withOutsideEstimates) {
+        try {
+            if (withOutsideEstimates) {
+                model.saveWithOutsideEstimates(Paths.get(path));
+            } else {
+                model.save(Paths.get(path));
+            }
+            System.out.println("Saved model to " + path);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not save model to " + path, e);
+        }
+    }
+
+    private static void testParser(Parser parser, List<Tree<String>> testTrees, boolean verbose, int numThreads) {
         long nanos = System.nanoTime();
         EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>(
                 Collections.singleton("ROOT"), new HashSet<String>(Arrays.asList(new String[] { "''", "``", ".", ":", "," })));
-        for (Tree<String> testTree : testTrees) {
-            List<String> testSentence = testTree.getYield();
-            Tree<String> guessedTree = parser.getBestParse(testSentence);
+        List<Tree<String>> guessedTrees = BatchParsing.parseAll(parser, testTrees, numThreads);
+        for (int i = 0; i < testTrees.size(); i++) {
+            Tree<String> testTree = testTrees.get(i);
+            Tree<String> guessedTree = guessedTrees.get(i);
             if (verbose) {
                 System.out.println("Guess:\n" + Trees.PennTreeRenderer.render(guessedTree));
                 System.out.println("Gold:\n" + Trees.PennTreeRenderer.render(testTree));
@@ -117,6 +248,9 @@ public class CKYNaiveParserConciseTester
     }
 
     private static List<Tree<String>> readTrees(String basePath, int low, int high, int maxLength) {
+        if (treebankCachePath != null) {
+            return TreebankCache.readTrees(basePath, treebankCachePath, low, high, maxLength);
+        }
         Collection<Tree<String>> trees = PennTreebankReader.readTrees(basePath, low, high);
         // normalize trees
         Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
@@ -17,6 +17,8 @@ import edu.berkeley.nlp.assignments.parsing.student.CoarseToFineParserFactory;
 import edu.berkeley.nlp.assignments.parsing.student.GenerativeParserFactory;
 import edu.berkeley.nlp.assignments.parsing.student.util.Grammar;
 import edu.berkeley.nlp.assignments.parsing.student.util.Lexicon;
+import edu.berkeley.nlp.assignments.parsing.student.util.TreebankCache;
+import edu.berkeley.nlp.assignments.parsing.student.util.TreebankStream;
 import edu.berkeley.nlp.io.PennTreebankReader;
 import edu.berkeley.nlp.ling.Tree;
 import edu.berkeley.nlp.ling.Trees;
@@ -61,6 +63,7 @@ public class CKYNaiveParserTester
 
     private static Grammar grammar;
     private static Lexicon lexicon;
+    private static String treebankCachePath = null;
 
     public static void main(String[] args) {
         // Parse command line flags and arguments
@@ -83,6 +86,10 @@ public class CKYNaiveParserTester
             basePath = argMap.get("-path");
             System.out.println("Using base path: " + basePath);
         }
+        if (argMap.containsKey("-treebankCache")) {
+            // binary cache of the normalized trees, built on first use (see TreebankCache)
+            treebankCachePath = argMap.get("-treebankCache");
+        }
         if (argMap.containsKey("-test")) {
             testMode = "test";
             System.out.println("Testing on final test data.");
@@ -97,6 +104,11 @@ public class CKYNaiveParserTester
             maxTestLength = Integer.parseInt(argMap.get("-maxTestLength"));
         }
         System.out.println("Maximum length for test sentences: " + maxTestLength);
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        if (argMap.containsKey("-threads")) {
+            numThreads = Integer.parseInt(argMap.get("-threads"));
+        }
+        System.out.println("Parsing threads: " + numThreads);
         if (argMap.containsKey("-verbose")) {
             verbose = true;
         }
@@ -116,9 +128,9 @@ public class CKYNaiveParserTester
             trainTreesEnd = 299;
         }
 
-        System.out.print("Loading training trees (sections 2-21) ... ");
-        List<Tree<String>> trainTrees = readTrees(basePath, 200, trainTreesEnd, maxTrainLength);
-        System.out.println("done. (" + trainTrees.size() + " trees)");
+        // training trees are read, normalized and counted one at a time while training
+        System.out.println("Streaming training trees (sections 2-21)");
+        Iterable<Tree<String>> trainTrees = TreebankStream.readTrees(basePath, treebankCachePath, 200, trainTreesEnd, maxTrainLength);
         List<Tree<String>> testTrees = null;
         if (testMode.equalsIgnoreCase("validate")) {
             System.out.print("Loading validation trees (section 22) ... ");
@@ -130,6 +142,10 @@ public class CKYNaiveParserTester
         System.out.println("done. (" + testTrees.size() + " trees)");
 
         CKYNaiveParser parser = new CKYNaiveParser(trainTrees);
+        if (argMap.containsKey("-parallelCKY")) {
+            // fill span diagonals concurrently for sentences of at least this length
+            parser.setParallelCKY(Integer.parseInt(argMap.get("-parallelCKY")));
+        }
         grammar = parser.getGrammar();
         lexicon = parser.getLexicon();
 
@@ -141,19 +157,20 @@ public class CKYNaiveParserTester
 //        parser.debugGrammarToConsole();
 //        parser.debugLexiconToConsole();
 
-//        parser.cky(smallSentence);
+//        parser.cky(smallSentence, parser.initScoreAndBackPointerTables(smallSentence));
         parser.getBestParse(smallSentence);
-//        testParser(parser, testTrees, false);
+//        testParser(parser, testTrees, false, numThreads);
 
     }
 
-    private static void testParser(Parser parser, List<Tree<String>> testTrees, boolean verbose) {
+    private static void testParser(Parser parser, List<Tree<String>> testTrees, boolean verbose, int numThreads) {
         long nanos = System.nanoTime();
         EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>(
                 Collections.singleton("ROOT"), new HashSet<String>(Arrays.asList(new String[] { "''", "``", ".", ":", "," })));
-        for (Tree<String> testTree : testTrees) {
-            List<String> testSentence = testTree.getYield();
-            Tree<String> guessedTree = parser.getBestParse(testSentence);
+        List<Tree<String>> guessedTrees = BatchParsing.parseAll(parser, testTrees, numThreads);
+        for (int i = 0; i < testTrees.size(); i++) {
+            Tree<String> testTree = testTrees.get(i);
+            Tree<String> guessedTree = guessedTrees.get(i);
             if (verbose) {
                 System.out.println("Guess:\n" + Trees.PennTreeRenderer.render(guessedTree));
                 System.out.println("Gold:\n" + Trees.PennTreeRenderer.render(testTree));
@@ -165,6 +182,9 @@ public class CKYNaiveParserTester
     }
 
     private static List<Tree<String>> readTrees(String basePath, int low, int high, int maxLength) {
+        if (treebankCachePath != null) {
+            return TreebankCache.readTrees(basePath, treebankCachePath, low, high, maxLength);
+        }
         Collection<Tree<String>> trees = PennTreebankReader.readTrees(basePath, low, high);
         // normalize trees
         Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
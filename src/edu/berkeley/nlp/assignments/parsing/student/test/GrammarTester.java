@@ -5,8 +5,10 @@ import edu.berkeley.nlp.assignments.parsing.*;
 import edu.berkeley.nlp.assignments.parsing.student.CKYNaiveParser;
 import edu.berkeley.nlp.assignments.parsing.student.CoarseToFineParserFactory;
 import edu.berkeley.nlp.assignments.parsing.student.GenerativeParserFactory;
+import edu.berkeley.nlp.assignments.parsing.student.util.CKYChart;
 import edu.berkeley.nlp.assignments.parsing.student.util.Grammar;
 import edu.berkeley.nlp.assignments.parsing.student.util.Lexicon;
+import edu.berkeley.nlp.assignments.parsing.student.util.TreebankCache;
 import edu.berkeley.nlp.io.PennTreebankReader;
 import edu.berkeley.nlp.ling.Tree;
 import edu.berkeley.nlp.ling.Trees;
@@ -26,6 +28,7 @@ public class GrammarTester
 {
     private static Grammar grammar;
     private static Lexicon lexicon;
+    private static String treebankCachePath = null;
 
     public enum ParserType
     {
@@ -75,6 +78,10 @@ public class GrammarTester
             basePath = argMap.get("-path");
             System.out.println("Using base path: " + basePath);
         }
+        if (argMap.containsKey("-treebankCache")) {
+            // binary cache of the normalized trees, built on first use (see TreebankCache)
+            treebankCachePath = argMap.get("-treebankCache");
+        }
         if (argMap.containsKey("-test")) {
             testMode = "test";
             System.out.println("Testing on final test data.");
@@ -138,6 +145,9 @@ public class GrammarTester
 
     }
     private static List<Tree<String>> readTrees(String basePath, int low, int high, int maxLength) {
+        if (treebankCachePath != null) {
+            return TreebankCache.readTrees(basePath, treebankCachePath, low, high, maxLength);
+        }
         Collection<Tree<String>> trees = PennTreebankReader.readTrees(basePath, low, high);
         // normalize trees
         Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
@@ -155,8 +165,8 @@ public class GrammarTester
         System.out.println("Now doing something with score tables...");
         List<String> smallSentence = new ArrayList<>(Arrays.asList("This", "is"));
         System.out.println(smallSentence);
-        parser.initScoreAndBackPointerTables(smallSentence);
-//        parser.debugScoreTablesToConsole();
+        CKYChart chart = parser.initScoreAndBackPointerTables(smallSentence);
+//        parser.debugScoreTablesToConsole(chart, chart.unaryScore);
     }
 
     private static void testParserLexiconQuery() {
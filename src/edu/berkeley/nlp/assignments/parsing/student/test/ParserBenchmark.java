@@ -0,0 +1,444 @@
+package edu.berkeley.nlp.assignments.parsing.student.test;
+
+import edu.berkeley.nlp.assignments.parsing.student.CKYNaiveParser;
+import edu.berkeley.nlp.assignments.parsing.student.util.CKYChart;
+import edu.berkeley.nlp.assignments.parsing.student.util.ChartTreeBuilder;
+import edu.berkeley.nlp.assignments.parsing.student.util.CompiledLexicon;
+import edu.berkeley.nlp.assignments.parsing.student.util.LabelProjection;
+import edu.berkeley.nlp.assignments.parsing.student.util.Lexicon;
+import edu.berkeley.nlp.assignments.parsing.student.util.MaxRuleDecoder;
+import edu.berkeley.nlp.assignments.parsing.student.util.ParserModel;
+import edu.berkeley.nlp.assignments.parsing.student.util.TreeMarkovAnnotation;
+import edu.berkeley.nlp.assignments.parsing.student.util.TreebankCache;
+import edu.berkeley.nlp.assignments.parsing.student.util.TreebankStream;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.CommandLineUtils;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Microbenchmarks of the parser hot paths, on fixtures built from fixed WSJ sentences (section 22),
+ * so that every optimization is measured the same way.
+ *
+ * Each benchmark runs warmup iterations, then measured iterations of about -iterationMillis each,
+ * on the calling thread. Reports time per operation (mean and standard deviation over the measured
+ * iterations), bytes allocated per operation and allocation rate (thread allocation counter),
+ * and the collections which happened while measuring.
+ *
+ * Benchmarks (select some with -benchmarks name1,name2; "cky" selects all the length buckets):
+ * - cky/len01-10 ... cky/len31-40: CKYNaiveParser.cky over the sentences of a length bucket
+ * - handleUnaries: lexical cells, then handleUnaries on each of them
+ * - handleUnariesForBinary/len01-10 ...: again on every cell of the parsed chart of the first sentence
+ *   of the bucket (scores are final, so no chart writes)
+ * - scoreTagging: Lexicon.scoreTagging of every word of the fixtures with every tag
+ * - annotateTree / unAnnotateTree: TreeMarkovAnnotation on the gold trees / their annotations
+ * - createCKYParsedTree/len01-10 ...: backtrace of the parsed chart of the first sentence of the bucket
+ * - bestTree/len01-10 ...: same, to the unannotated tree getBestParse returns
+ * - kBest/len01-10 ...: CKY then the -kBest best parses (default 50) of the first sentence of the bucket,
+ *   by lazy k-best extraction; kBestReparse/len01-10 ...: the same number of parses by as many full parses
+ * - maxRule/len01-10 ...: max-rule-product decoding of the first sentence of the bucket (inside-outside,
+ *   then the max-rule pass over the X-bar projection)
+ *
+ * All benchmarks share one chart, sized for the longest sentence: with a grammar trained on sections 2-21
+ * a chart of 40 words takes hundreds of MB.
+ */
+public class ParserBenchmark {
+
+    // =========================FIELDS=========================
+    private static final int[][] LENGTH_BUCKETS = { { 1, 10 }, { 11, 20 }, { 21, 30 }, { 31, 40 } };
+
+    private static int warmupIterations = 5;
+    private static int measuredIterations = 10;
+    private static long iterationMillis = 1000;
+
+    // results are folded here so that the JIT cannot drop the benchmarked calls
+    private static volatile long sink;
+    // =========================END OF FIELDS=========================
+
+    /**
+     * One operation of a benchmark, on prepared fixtures
+     */
+    private interface Operation {
+        long run();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+
+        String basePath = ".";
+        String treebankCachePath = null;
+        int trainTreesEnd = 2199;
+        int sentencesPerBucket = 5;
+        int k = 50;
+        String benchmarks = "";
+
+        if (argMap.containsKey("-path")) {
+            basePath = argMap.get("-path");
+            System.out.println("Using base path: " + basePath);
+        }
+        if (argMap.containsKey("-treebankCache")) {
+            treebankCachePath = argMap.get("-treebankCache");
+        }
+        if (argMap.containsKey("-trainTreesEnd")) {
+            trainTreesEnd = Integer.parseInt(argMap.get("-trainTreesEnd"));
+        }
+        if (argMap.containsKey("-sentencesPerBucket")) {
+            sentencesPerBucket = Integer.parseInt(argMap.get("-sentencesPerBucket"));
+        }
+        if (argMap.containsKey("-warmup")) {
+            warmupIterations = Integer.parseInt(argMap.get("-warmup"));
+        }
+        if (argMap.containsKey("-iterations")) {
+            measuredIterations = Integer.parseInt(argMap.get("-iterations"));
+        }
+        if (argMap.containsKey("-iterationMillis")) {
+            iterationMillis = Long.parseLong(argMap.get("-iterationMillis"));
+        }
+        if (argMap.containsKey("-benchmarks")) {
+            benchmarks = argMap.get("-benchmarks");
+        }
+        if (argMap.containsKey("-kBest")) {
+            k = Integer.parseInt(argMap.get("-kBest"));
+        }
+
+        ParserModel model;
+        if (argMap.containsKey("-loadModel")) {
+            System.out.print("Loading parser model ... ");
+            model = ParserModel.load(Paths.get(argMap.get("-loadModel")));
+            System.out.println("done.");
+        } else {
+            model = ParserModel.train(TreebankStream.readTrees(basePath, treebankCachePath, 200, trainTreesEnd, 1000), 2, 2);
+        }
+        CKYNaiveParser parser = new CKYNaiveParser(model);
+        ChartTreeBuilder treeBuilder = new ChartTreeBuilder(model.getGrammar().getLabelIndexer(), model.getCompiledUnaryClosure());
+
+        // fixtures: the first gold trees of each length bucket, in a fixed order
+        System.out.print("Loading benchmark sentences (section 22) ... ");
+        List<Tree<String>> goldTrees = (treebankCachePath != null)
+                ? TreebankCache.readTrees(basePath, treebankCachePath, 2200, 2299, 40)
+                : toList(TreebankStream.readTrees(basePath, 2200, 2299, 40));
+        Collections.sort(goldTrees, new Comparator<Tree<String>>() {
+            public int compare(Tree<String> a, Tree<String> b) {
+                return a.getYield().toString().compareTo(b.getYield().toString());
+            }
+        });
+        List<List<Tree<String>>> bucketTrees = new ArrayList<>();
+        List<Tree<String>> fixtureTrees = new ArrayList<>();
+        for (int[] bucket : LENGTH_BUCKETS) {
+            List<Tree<String>> trees = new ArrayList<>();
+            for (Tree<String> tree : goldTrees) {
+                int length = tree.getYield().size();
+                if (length >= bucket[0] && length <= bucket[1] && trees.size() < sentencesPerBucket) trees.add(tree);
+            }
+            bucketTrees.add(trees);
+            fixtureTrees.addAll(trees);
+        }
+        System.out.println("done. (" + fixtureTrees.size() + " sentences)");
+
+        List<List<String>> sentences = new ArrayList<>();
+        List<Tree<String>> annotatedTrees = new ArrayList<>();
+        for (Tree<String> tree : fixtureTrees) {
+            sentences.add(tree.getYield());
+            annotatedTrees.add(TreeMarkovAnnotation.annotateTree(tree, 2, 2));
+        }
+        CKYChart chart = new CKYChart(model.getNumNonTerminals());
+        // built on first use: its inside-outside charts are as large as the parse chart
+        MaxRuleDecoder maxRuleDecoder = null;
+
+        System.out.println();
+        System.out.println(String.format("%-32s %14s %12s %14s %12s %8s", "Benchmark", "ns/op", "+-", "bytes/op",
+                "MB/s alloc", "GCs"));
+        for (int b = 0; b < LENGTH_BUCKETS.length; b++) {
+            String name = String.format("cky/len%02d-%02d", LENGTH_BUCKETS[b][0], LENGTH_BUCKETS[b][1]);
+            if (selected(benchmarks, name) && !bucketTrees.get(b).isEmpty()) {
+                benchmark(name, ckyOperation(parser, chart, bucketTrees.get(b)));
+            }
+        }
+        if (selected(benchmarks, "handleUnaries")) {
+            benchmark("handleUnaries", handleUnariesOperation(parser, model, chart, sentences));
+        }
+        for (int b = 0; b < LENGTH_BUCKETS.length; b++) {
+            String bucketName = String.format("len%02d-%02d", LENGTH_BUCKETS[b][0], LENGTH_BUCKETS[b][1]);
+            boolean unaries = selected(benchmarks, "handleUnariesForBinary/" + bucketName);
+            boolean backtrace = selected(benchmarks, "createCKYParsedTree/" + bucketName);
+            boolean bestTree = selected(benchmarks, "bestTree/" + bucketName);
+            boolean kBest = selected(benchmarks, "kBest/" + bucketName);
+            boolean kBestReparse = selected(benchmarks, "kBestReparse/" + bucketName);
+            boolean maxRule = selected(benchmarks, "maxRule/" + bucketName);
+            if (bucketTrees.get(b).isEmpty() || !(unaries || backtrace || bestTree || kBest || kBestReparse || maxRule)) continue;
+            List<String> sentence = bucketTrees.get(b).get(0).getYield();
+            if (unaries) {
+                chart.reset(sentence.size());
+                parser.cky(sentence, chart);
+                benchmark("handleUnariesForBinary/" + bucketName, handleUnariesForBinaryOperation(parser, chart));
+            }
+            if (backtrace) {
+                chart.reset(sentence.size());
+                parser.cky(sentence, chart);
+                benchmark("createCKYParsedTree/" + bucketName, createCKYParsedTreeOperation(parser, sentence, chart));
+            }
+            if (bestTree) {
+                chart.reset(sentence.size());
+                parser.cky(sentence, chart);
+                benchmark("bestTree/" + bucketName, bestTreeOperation(treeBuilder, sentence, chart));
+            }
+            if (kBest) {
+                benchmark("kBest/" + bucketName, kBestOperation(parser, sentence, chart, k));
+            }
+            if (kBestReparse) {
+                benchmark("kBestReparse/" + bucketName, kBestReparseOperation(parser, treeBuilder, sentence, chart, k));
+            }
+            if (maxRule) {
+                if (maxRuleDecoder == null) {
+                    maxRuleDecoder = new MaxRuleDecoder(model, LabelProjection.X_BAR, MaxRuleDecoder.DEFAULT_PRUNING_THRESHOLD);
+                }
+                benchmark("maxRule/" + bucketName, maxRuleOperation(maxRuleDecoder, sentence));
+            }
+        }
+        if (selected(benchmarks, "scoreTagging")) {
+            benchmark("scoreTagging", scoreTaggingOperation(model.getLexicon(), sentences));
+        }
+        if (selected(benchmarks, "annotateTree")) {
+            benchmark("annotateTree", annotateTreeOperation(fixtureTrees));
+        }
+        if (selected(benchmarks, "unAnnotateTree")) {
+            benchmark("unAnnotateTree", unAnnotateTreeOperation(annotatedTrees));
+        }
+    }
+
+    // =========================OPERATIONS=========================
+    private static Operation ckyOperation(final CKYNaiveParser parser, final CKYChart chart, List<Tree<String>> trees) {
+        final List<List<String>> sentences = new ArrayList<>();
+        for (Tree<String> tree : trees) sentences.add(tree.getYield());
+        return new Operation() {
+            public long run() {
+                long result = 0;
+                for (List<String> sentence : sentences) {
+                    chart.reset(sentence.size());
+                    parser.cky(sentence, chart);
+                    result += chart.getUniBackPointer(0, sentence.size(), 0);
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Operation handleUnariesOperation(final CKYNaiveParser parser, ParserModel model, final CKYChart chart,
+                                                    final List<List<String>> sentences) {
+        final CompiledLexicon compiledLexicon = model.getCompiledLexicon();
+        return new Operation() {
+            public long run() {
+                long result = 0;
+                for (List<String> sentence : sentences) {
+                    chart.reset(sentence.size());
+                    for (int i = 0; i < sentence.size(); i++) {
+                        int wordId = compiledLexicon.getWordId(sentence.get(i));
+                        int[] tags = compiledLexicon.getTags(wordId);
+                        double[] scores = compiledLexicon.getScores(wordId);
+                        for (int t = 0; t < tags.length; t++) chart.setLexical(i, tags[t], scores[t]);
+                    }
+                    for (int i = 0; i < sentence.size(); i++) {
+                        parser.handleUnaries(chart, i, null);
+                        result += chart.numUnaryLabels[chart.cell(i, i + 1)];
+                    }
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Operation handleUnariesForBinaryOperation(final CKYNaiveParser parser, final CKYChart chart) {
+        return new Operation() {
+            public long run() {
+                long result = 0;
+                for (int span = 2; span <= chart.length; span++) {
+                    for (int begin = 0; begin + span <= chart.length; begin++) {
+                        result += parser.handleUnariesForBinary(chart, begin, begin + span, null);
+                    }
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Operation scoreTaggingOperation(final Lexicon lexicon, final List<List<String>> sentences) {
+        final List<String> tags = new ArrayList<>(lexicon.getAllTags());
+        return new Operation() {
+            public long run() {
+                double result = 0;
+                for (List<String> sentence : sentences) {
+                    for (String word : sentence) {
+                        for (String tag : tags) {
+                            double score = lexicon.scoreTagging(word, tag);
+                            if (score > Double.NEGATIVE_INFINITY) result += score;
+                        }
+                    }
+                }
+                return Double.doubleToLongBits(result);
+            }
+        };
+    }
+
+    private static Operation annotateTreeOperation(final List<Tree<String>> trees) {
+        return new Operation() {
+            public long run() {
+                long result = 0;
+                for (Tree<String> tree : trees) {
+                    result += TreeMarkovAnnotation.annotateTree(tree, 2, 2).getLabel().length();
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Operation unAnnotateTreeOperation(final List<Tree<String>> annotatedTrees) {
+        return new Operation() {
+            public long run() {
+                long result = 0;
+                for (Tree<String> tree : annotatedTrees) {
+                    result += TreeMarkovAnnotation.unAnnotateTree(tree).getLabel().length();
+                }
+                return result;
+            }
+        };
+    }
+
+    private static Operation createCKYParsedTreeOperation(final CKYNaiveParser parser, final List<String> sentence,
+                                                          final CKYChart chart) {
+        // sentences without a parse have nothing to backtrace
+        final boolean parsed = chart.hasUnary(0, sentence.size(), 0);
+        return new Operation() {
+            public long run() {
+                if (!parsed) return 0;
+                return parser.createCKYParsedTree(chart, sentence, 0, false, 0, sentence.size()).getLabel().length();
+            }
+        };
+    }
+
+    private static Operation bestTreeOperation(final ChartTreeBuilder treeBuilder, final List<String> sentence,
+                                               final CKYChart chart) {
+        final boolean parsed = chart.hasUnary(0, sentence.size(), 0);
+        return new Operation() {
+            public long run() {
+                if (!parsed) return 0;
+                return treeBuilder.buildTree(chart, sentence, 0, 0, sentence.size()).getLabel().length();
+            }
+        };
+    }
+
+    private static Operation kBestOperation(final CKYNaiveParser parser, final List<String> sentence,
+                                            final CKYChart chart, final int k) {
+        return new Operation() {
+            public long run() {
+                chart.reset(sentence.size());
+                parser.cky(sentence, chart);
+                return parser.getKBestParses(chart, sentence, k).size();
+            }
+        };
+    }
+
+    private static Operation kBestReparseOperation(final CKYNaiveParser parser, final ChartTreeBuilder treeBuilder,
+                                                   final List<String> sentence, final CKYChart chart, final int k) {
+        return new Operation() {
+            public long run() {
+                long result = 0;
+                for (int i = 0; i < k; i++) {
+                    chart.reset(sentence.size());
+                    parser.cky(sentence, chart);
+                    if (!chart.hasUnary(0, sentence.size(), 0)) continue;
+                    result += treeBuilder.buildTree(chart, sentence, 0, 0, sentence.size()).getLabel().length();
+                }
+                return result;
+            }
+        };
+    }
+    private static Operation maxRuleOperation(final MaxRuleDecoder decoder, final List<String> sentence) {
+        return new Operation() {
+            public long run() {
+                Tree<String> tree = decoder.decode(sentence);
+                return (tree == null) ? 0 : tree.getLabel().length();
+            }
+        };
+    }
+    // =========================END OF OPERATIONS=========================
+
+    // =========================MEASUREMENT=========================
+    private static void benchmark(String name, Operation operation) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(operation);
+        }
+        double[] nanosPerOperation = new double[measuredIterations];
+        long totalOperations = 0;
+        long totalNanos = 0;
+        long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId);
+        long collections = collectionCount();
+        for (int i = 0; i < measuredIterations; i++) {
+            long start = System.nanoTime();
+            long operations = runIteration(operation);
+            long nanos = System.nanoTime() - start;
+            nanosPerOperation[i] = nanos / (double) operations;
+            totalOperations += operations;
+            totalNanos += nanos;
+        }
+        allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+        collections = collectionCount() - collections;
+
+        double mean = totalNanos / (double) totalOperations;
+        double variance = 0;
+        for (double x : nanosPerOperation) variance += (x - mean) * (x - mean);
+        double deviation = (measuredIterations > 1) ? Math.sqrt(variance / (measuredIterations - 1)) : 0;
+        double bytesPerOperation = allocatedBytes / (double) totalOperations;
+        double allocationRate = (allocatedBytes / (1024.0 * 1024.0)) / (totalNanos / 1e9);
+        System.out.println(String.format("%-32s %14.1f %12.1f %14.1f %12.1f %8d", name, mean, deviation,
+                bytesPerOperation, allocationRate, collections));
+    }
+
+    /**
+     * Run the operation for about iterationMillis
+     * @return number of operations run
+     */
+    private static long runIteration(Operation operation) {
+        long end = System.nanoTime() + iterationMillis * 1000000L;
+        long operations = 0;
+        long result = 0;
+        do {
+            result += operation.run();
+            operations++;
+        } while (System.nanoTime() < end);
+        sink = result;
+        return operations;
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gcBean.getCollectionCount());
+        }
+        return count;
+    }
+    // =========================END OF MEASUREMENT=========================
+
+    private static boolean selected(String benchmarks, String name) {
+        if (benchmarks.isEmpty()) return true;
+        for (String prefix : benchmarks.split(",")) {
+            if (name.equals(prefix) || name.startsWith(prefix + "/")) return true;
+        }
+        return false;
+    }
+
+    private static List<Tree<String>> toList(Iterable<Tree<String>> trees) {
+        List<Tree<String>> list = new ArrayList<>();
+        for (Tree<String> tree : trees) list.add(tree);
+        return list;
+    }
+}
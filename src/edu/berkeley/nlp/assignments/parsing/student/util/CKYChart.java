@@ -0,0 +1,395 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import java.util.Arrays;
+
+/**
+ * Dense score and back pointer tables for CKY parsing, replacing the nested
+ * ArrayList / LinkedHashMap tables (and the boxed Triple back pointers).
+ *
+ * Only cells with begin < end are stored, in a triangular layout. Every cell owns
+ * a contiguous block of numLabels entries, so the entry of (begin, end, label) is
+ * at offset(begin, end) + label.
+ * Cells sharing the same begin are adjacent (begin-major), so the left cells
+ * [begin, split] of the split loop are read sequentially. The unary scores are
+ * mirrored into an end-major table in which cells sharing the same end are
+ * adjacent, so the right cells [split, end] are read sequentially as well.
+ *
+ * Absent entries have score Double.NEGATIVE_INFINITY and back pointer -1.
+ * Each cell also keeps the list of its labels in insertion order, so that only the labels
+ * present are visited. Ties do not depend on these lists (nor on any loop order): on equal
+ * scores a binary entry keeps the smallest packed back pointer, i.e. the smallest
+ * (split, left child, right child), and a unary entry keeps the smallest child, the tag
+ * itself (-1) first. Any parser filling a chart with these rules (CKY or A*) builds the
+ * same tree.
+ *
+ * For the binary loop, the chart also keeps split extents of every label after unaries (as in
+ * Klein & Manning's exhaustive parser): for each begin, the nearest and farthest end at which the
+ * label has been built from it, and for each end the nearest and farthest begin. A rule A -> B C
+ * over [begin, end] can then only use the splits between the extents of B from begin and of C to end.
+ *
+ * A chart is meant to be reused across sentences (see CKYChartPool): its arrays grow to
+ * the longest sentence seen and reset() only clears what the previous parse filled.
+ *
+ * Fields are public on purpose (like Triple): they are read in the CKY hot loop.
+ */
+public class CKYChart implements ChartBackPointers {
+    public final int numLabels;
+    // length of the sentence being parsed, and longest length the arrays can hold
+    public int length;
+    public int capacity;
+
+    // scores after unaries (i.e. what the binary loop reads) and before unaries
+    // (binaries, or the lexicon for the cells [i, i + 1])
+    public double[] unaryScore;
+    public double[] unaryScoreByEnd;
+    public double[] binaryScore;
+
+    // unary back pointer: child label; binary back pointer: packed (split, left, right)
+    public int[] uniBackPointer;
+    public long[] biBackPointer;
+
+    // labels present in each cell, in insertion order
+    public int[] unaryLabels;
+    public int[] numUnaryLabels;
+    public int[] binaryLabels;
+    public int[] numBinaryLabels;
+
+    // split extents, [begin * numLabels + label]: nearest / farthest end of label built from begin
+    public int[] narrowRight;
+    public int[] wideRight;
+    // [end * numLabels + label]: nearest / farthest begin of label built up to end
+    public int[] narrowLeft;
+    public int[] wideLeft;
+    // labels built from each begin, in insertion order
+    public int[] startLabels;
+    public int[] numStartLabels;
+
+    // whether pruneUnaries removed labels from any cell since the last reset
+    public boolean pruned;
+
+    public CKYChart(int numLabels) {
+        this.numLabels = numLabels;
+        allocate(0);
+    }
+
+    public CKYChart(int length, int numLabels) {
+        this(numLabels);
+        reset(length);
+    }
+
+    /**
+     * Prepare the chart for a sentence of the given length, reusing the arrays when they are
+     * big enough. Only the entries filled for the previous sentence are cleared, so the cost
+     * is proportional to the previous parse rather than to the size of the chart.
+     */
+    public void reset(int length) {
+        clear();
+        pruned = false;
+        if (length > capacity) {
+            allocate(length);
+        }
+        this.length = length;
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        int numCells = capacity * (capacity + 1) / 2;
+        int size = numCells * numLabels;
+
+        unaryScore = new double[size];
+        unaryScoreByEnd = new double[size];
+        binaryScore = new double[size];
+        uniBackPointer = new int[size];
+        biBackPointer = new long[size];
+        unaryLabels = new int[size];
+        binaryLabels = new int[size];
+        numUnaryLabels = new int[numCells];
+        numBinaryLabels = new int[numCells];
+
+        Arrays.fill(unaryScore, Double.NEGATIVE_INFINITY);
+        Arrays.fill(unaryScoreByEnd, Double.NEGATIVE_INFINITY);
+        Arrays.fill(binaryScore, Double.NEGATIVE_INFINITY);
+        Arrays.fill(uniBackPointer, -1);
+        Arrays.fill(biBackPointer, -1L);
+
+        int numPositions = capacity + 1;
+        narrowRight = new int[numPositions * numLabels];
+        wideRight = new int[numPositions * numLabels];
+        narrowLeft = new int[numPositions * numLabels];
+        wideLeft = new int[numPositions * numLabels];
+        startLabels = new int[numPositions * numLabels];
+        numStartLabels = new int[numPositions];
+        Arrays.fill(narrowRight, Integer.MAX_VALUE);
+        Arrays.fill(wideRight, -1);
+        Arrays.fill(narrowLeft, -1);
+        Arrays.fill(wideLeft, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Size of the arrays of the chart, which grow to the longest sentence parsed with it
+     */
+    public long getAllocatedBytes() {
+        long numCells = capacity * (capacity + 1L) / 2;
+        long numPositions = capacity + 1L;
+        // three score tables, two back pointer tables, two label lists, two label counts
+        long cellBytes = numCells * numLabels * (3 * 8 + 4 + 8 + 2 * 4) + numCells * 2 * 4;
+        // four extent tables, start labels and their counts
+        long positionBytes = numPositions * numLabels * 5 * 4 + numPositions * 4;
+        return cellBytes + positionBytes;
+    }
+
+    private void clear() {
+        for (int begin = 0; begin < length; begin++) {
+            for (int end = begin + 1; end <= length; end++) {
+                int cell = cell(begin, end);
+                int offset = cell * numLabels;
+                int offsetByEnd = offsetByEnd(begin, end);
+                for (int l = 0; l < numUnaryLabels[cell]; l++) {
+                    int label = unaryLabels[offset + l];
+                    unaryScore[offset + label] = Double.NEGATIVE_INFINITY;
+                    unaryScoreByEnd[offsetByEnd + label] = Double.NEGATIVE_INFINITY;
+                    uniBackPointer[offset + label] = -1;
+                    narrowLeft[end * numLabels + label] = -1;
+                    wideLeft[end * numLabels + label] = Integer.MAX_VALUE;
+                }
+                for (int l = 0; l < numBinaryLabels[cell]; l++) {
+                    int label = binaryLabels[offset + l];
+                    binaryScore[offset + label] = Double.NEGATIVE_INFINITY;
+                    biBackPointer[offset + label] = -1L;
+                }
+                numUnaryLabels[cell] = 0;
+                numBinaryLabels[cell] = 0;
+            }
+        }
+        for (int begin = 0; begin < length; begin++) {
+            int offset = begin * numLabels;
+            for (int l = 0; l < numStartLabels[begin]; l++) {
+                int label = startLabels[offset + l];
+                narrowRight[offset + label] = Integer.MAX_VALUE;
+                wideRight[offset + label] = -1;
+            }
+            numStartLabels[begin] = 0;
+        }
+        length = 0;
+    }
+
+    // =========================LAYOUT=========================
+    /**
+     * Begin-major index of the cell [begin, end]
+     */
+    public int cell(int begin, int end) {
+        return begin * capacity - begin * (begin - 1) / 2 + (end - begin - 1);
+    }
+
+    /**
+     * End-major index of the cell [begin, end]
+     */
+    public int cellByEnd(int begin, int end) {
+        return end * (end - 1) / 2 + begin;
+    }
+
+    public int offset(int begin, int end) {
+        return cell(begin, end) * numLabels;
+    }
+
+    public int offsetByEnd(int begin, int end) {
+        return cellByEnd(begin, end) * numLabels;
+    }
+    // =========================END OF LAYOUT=========================
+
+    // =========================ACCESSORS=========================
+    public double getUnaryScore(int begin, int end, int label) {
+        return unaryScore[offset(begin, end) + label];
+    }
+
+    public double getBinaryScore(int begin, int end, int label) {
+        return binaryScore[offset(begin, end) + label];
+    }
+
+    public boolean hasUnary(int begin, int end, int label) {
+        return unaryScore[offset(begin, end) + label] != Double.NEGATIVE_INFINITY;
+    }
+
+    public int getUniBackPointer(int begin, int end, int label) {
+        return uniBackPointer[offset(begin, end) + label];
+    }
+
+    public long getBiBackPointer(int begin, int end, int label) {
+        return biBackPointer[offset(begin, end) + label];
+    }
+
+    /**
+     * Set the score of label after unaries, with child = -1 when there is no unary back pointer
+     * (i.e. the score comes from the lexicon)
+     */
+    public void setUnary(int begin, int end, int label, double score, int child) {
+        int cell = cell(begin, end);
+        int index = cell * numLabels + label;
+        if (unaryScore[index] == Double.NEGATIVE_INFINITY) {
+            unaryLabels[cell * numLabels + numUnaryLabels[cell]++] = label;
+            updateExtents(begin, end, label);
+        }
+        unaryScore[index] = score;
+        unaryScoreByEnd[offsetByEnd(begin, end) + label] = score;
+        uniBackPointer[index] = child;
+    }
+
+    /**
+     * Beam over the labels of the cell after unaries: keep the maxLabels best ones (with the ones tied
+     * with the last of them) whose score is at least the best score of the cell + logThreshold.
+     * The other labels are removed from the unary layer, and their extents are restored to the cells
+     * of shorter spans, so it must be called once the cell is filled and before any longer span.
+     * @return number of labels kept
+     */
+    public int pruneUnaries(int begin, int end, int maxLabels, double logThreshold) {
+        int cell = cell(begin, end);
+        int offset = cell * numLabels;
+        int count = numUnaryLabels[cell];
+        if (count == 0) return 0;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int l = 0; l < count; l++) {
+            best = Math.max(best, unaryScore[offset + unaryLabels[offset + l]]);
+        }
+        double cutoff = best + logThreshold;
+        if (count > maxLabels) {
+            double[] scores = new double[count];
+            for (int l = 0; l < count; l++) {
+                scores[l] = unaryScore[offset + unaryLabels[offset + l]];
+            }
+            Arrays.sort(scores);
+            cutoff = Math.max(cutoff, scores[count - maxLabels]);
+        }
+        if (cutoff == Double.NEGATIVE_INFINITY) return count;
+
+        int kept = 0;
+        boolean removedStartLabel = false;
+        int offsetByEnd = offsetByEnd(begin, end);
+        for (int l = 0; l < count; l++) {
+            int label = unaryLabels[offset + l];
+            if (unaryScore[offset + label] >= cutoff) {
+                unaryLabels[offset + kept++] = label;
+                continue;
+            }
+            unaryScore[offset + label] = Double.NEGATIVE_INFINITY;
+            unaryScoreByEnd[offsetByEnd + label] = Double.NEGATIVE_INFINITY;
+            uniBackPointer[offset + label] = -1;
+            removedStartLabel |= restoreExtents(begin, end, label);
+        }
+        numUnaryLabels[cell] = kept;
+        if (kept < count) pruned = true;
+
+        // labels no longer built from begin leave the start labels, so that they are not listed twice
+        if (removedStartLabel) {
+            int beginOffset = begin * numLabels;
+            int numKept = 0;
+            for (int l = 0; l < numStartLabels[begin]; l++) {
+                int label = startLabels[beginOffset + l];
+                if (narrowRight[beginOffset + label] != Integer.MAX_VALUE) {
+                    startLabels[beginOffset + numKept++] = label;
+                }
+            }
+            numStartLabels[begin] = numKept;
+        }
+        return kept;
+    }
+
+    /**
+     * Extents of a label removed from the cell [begin, end], from the shorter cells which have it:
+     * the ones starting at begin, and the ones ending at end
+     * @return whether the label is no longer built from begin
+     */
+    private boolean restoreExtents(int begin, int end, int label) {
+        int beginIndex = begin * numLabels + label;
+        boolean removedStartLabel = false;
+        if (narrowRight[beginIndex] == end) {
+            narrowRight[beginIndex] = Integer.MAX_VALUE;
+            wideRight[beginIndex] = -1;
+            removedStartLabel = true;
+        } else {
+            int wide = end - 1;
+            while (unaryScore[offset(begin, wide) + label] == Double.NEGATIVE_INFINITY) wide--;
+            wideRight[beginIndex] = wide;
+        }
+        int endIndex = end * numLabels + label;
+        if (narrowLeft[endIndex] == begin) {
+            narrowLeft[endIndex] = -1;
+            wideLeft[endIndex] = Integer.MAX_VALUE;
+        } else {
+            int wide = begin + 1;
+            while (unaryScore[offset(wide, end) + label] == Double.NEGATIVE_INFINITY) wide++;
+            wideLeft[endIndex] = wide;
+        }
+        return removedStartLabel;
+    }
+
+    private void updateExtents(int begin, int end, int label) {
+        int beginIndex = begin * numLabels + label;
+        if (narrowRight[beginIndex] == Integer.MAX_VALUE) {
+            startLabels[begin * numLabels + numStartLabels[begin]++] = label;
+        }
+        narrowRight[beginIndex] = Math.min(narrowRight[beginIndex], end);
+        wideRight[beginIndex] = Math.max(wideRight[beginIndex], end);
+        int endIndex = end * numLabels + label;
+        narrowLeft[endIndex] = Math.max(narrowLeft[endIndex], begin);
+        wideLeft[endIndex] = Math.min(wideLeft[endIndex], begin);
+    }
+
+    /**
+     * Set the lexicon score of a tag over the word i: it is both the score before unaries
+     * and, until a unary does better, the score after unaries
+     */
+    public void setLexical(int i, int tag, double score) {
+        int cell = cell(i, i + 1);
+        int index = cell * numLabels + tag;
+        if (binaryScore[index] == Double.NEGATIVE_INFINITY) {
+            binaryLabels[cell * numLabels + numBinaryLabels[cell]++] = tag;
+        }
+        binaryScore[index] = score;
+        setUnary(i, i + 1, tag, score, -1);
+    }
+
+    /**
+     * Set the score of label before unaries, without back pointer (e.g. for inside sums)
+     */
+    public void setBinaryScore(int begin, int end, int label, double score) {
+        int cell = cell(begin, end);
+        int index = cell * numLabels + label;
+        if (binaryScore[index] == Double.NEGATIVE_INFINITY) {
+            binaryLabels[cell * numLabels + numBinaryLabels[cell]++] = label;
+        }
+        binaryScore[index] = score;
+    }
+
+    public void setBinary(int begin, int end, int label, double score, int split, int leftChild, int rightChild) {
+        int cell = cell(begin, end);
+        int index = cell * numLabels + label;
+        if (binaryScore[index] == Double.NEGATIVE_INFINITY) {
+            binaryLabels[cell * numLabels + numBinaryLabels[cell]++] = label;
+        }
+        binaryScore[index] = score;
+        biBackPointer[index] = packBinaryBackPointer(split, leftChild, rightChild);
+    }
+    // =========================END OF ACCESSORS=========================
+
+    // =========================BACK POINTER PACKING=========================
+    // 21 bits per field: enough for any sentence length and label set we train on
+    private static final int FIELD_BITS = 21;
+    private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+
+    public static long packBinaryBackPointer(int split, int leftChild, int rightChild) {
+        return ((long) split << (2 * FIELD_BITS)) | ((long) leftChild << FIELD_BITS) | rightChild;
+    }
+
+    public static int getSplit(long backPointer) {
+        return (int) (backPointer >>> (2 * FIELD_BITS));
+    }
+
+    public static int getLeftChild(long backPointer) {
+        return (int) ((backPointer >>> FIELD_BITS) & FIELD_MASK);
+    }
+
+    public static int getRightChild(long backPointer) {
+        return (int) (backPointer & FIELD_MASK);
+    }
+    // =========================END OF BACK POINTER PACKING=========================
+}
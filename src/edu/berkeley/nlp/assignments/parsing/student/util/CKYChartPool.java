@@ -0,0 +1,43 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Pool of reusable CKY charts, so that concurrent parses each get their own workspace
+ * and repeated parses stop reallocating the O(n^2) chart.
+ * There are at most as many charts as concurrent parses; each one grows to the longest
+ * sentence it has been used for.
+ */
+public class CKYChartPool {
+
+    private final int numLabels;
+
+    // last released first, so the most recently used (warm) chart is handed out again
+    private final ConcurrentLinkedDeque<CKYChart> idleCharts = new ConcurrentLinkedDeque<>();
+
+    public CKYChartPool(int numLabels) {
+        this.numLabels = numLabels;
+    }
+
+    /**
+     * Take a chart out of the pool (or create one) and prepare it for a sentence of the given length
+     * Every borrowed chart must be given back with release()
+     */
+    public CKYChart borrow(int length) {
+        CKYChart chart = idleCharts.pollFirst();
+        if (chart == null) {
+            chart = new CKYChart(numLabels);
+        }
+        chart.reset(length);
+        return chart;
+    }
+
+    /**
+     * Give a chart back, clearing what the parse filled: each parse pays for its own chart
+     * instead of the next one, which may have a deadline to meet
+     */
+    public void release(CKYChart chart) {
+        chart.reset(0);
+        idleCharts.offerFirst(chart);
+    }
+}
@@ -0,0 +1,18 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+/**
+ * Back pointers of a filled chart, as the backtrace reads them (see ChartTreeBuilder).
+ * CKYChart is the Viterbi one; KBestExtractor overrides some of them to follow another derivation.
+ */
+public interface ChartBackPointers {
+    /**
+     * Child of label over [begin, end] after unaries, -1 for none
+     * (over one word, the tag of the word, -1 when label is the tag)
+     */
+    int getUniBackPointer(int begin, int end, int label);
+
+    /**
+     * Split and children of label over [begin, end] before unaries, packed by CKYChart.packBinaryBackPointer
+     */
+    long getBiBackPointer(int begin, int end, int label);
+}
@@ -0,0 +1,14 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+/**
+ * Restricts which labels CKY is allowed to build in each cell of the chart (e.g. from a coarse pass)
+ */
+public interface ChartConstraint {
+
+    /**
+     * @return false if no label at all can be built over [begin, end]
+     */
+    boolean isCellOpen(int begin, int end);
+
+    boolean isAllowed(int begin, int end, int label);
+}
@@ -0,0 +1,195 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.ling.Trees;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backtrace of a filled CKYChart (or any ChartBackPointers): follows the back pointers from a label
+ * over [start, end] and builds its tree, expanding the unary chains with the paths of the CompiledUnaryClosure.
+ *
+ * buildTree emits the final tree directly, the same as TreeMarkovAnnotation.unAnnotateTree would give
+ * for the annotated tree: the intermediate nodes of the binarization (labels starting with "@") are
+ * spliced out as they are reached, and the other labels are cut to their base symbol from a table
+ * computed once. buildAnnotatedTree gives the annotated tree, for debugging.
+ *
+ * Both walk the chart with an explicit stack instead of recursion, so the depth of the tree does not
+ * matter, and only allocate the nodes of the tree and the stacks. Thread safe.
+ */
+public class ChartTreeBuilder {
+
+    // =========================FIELDS=========================
+    // tasks of the backtrace stack: 4 ints each, the type then (label, start, end)
+    private static final int VISIT_UNARY = 0;
+    private static final int VISIT_BINARY = 1;
+    private static final int CLOSE = 2;
+    private static final int TASK_SIZE = 4;
+
+    private final CompiledUnaryClosure unaryClosure;
+    // [label] => annotated label, label cut to its base symbol, and whether it is spliced out
+    private final String[] labels;
+    private final String[] baseLabels;
+    private final boolean[] intermediate;
+    // =========================END OF FIELDS=========================
+
+    public ChartTreeBuilder(Indexer<String> labelIndexer, CompiledUnaryClosure unaryClosure) {
+        this.unaryClosure = unaryClosure;
+        int numLabels = labelIndexer.size();
+        this.labels = new String[numLabels];
+        this.baseLabels = new String[numLabels];
+        this.intermediate = new boolean[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            labels[label] = labelIndexer.get(label);
+            // the normalization of an inner node (it has a child), as the one of unAnnotateTree
+            Tree<String> node = new Tree<>(labels[label], Collections.singletonList(new Tree<>(labels[label])));
+            baseLabels[label] = Trees.LabelNormalizer.transformLabel(node);
+            intermediate[label] = labels[label].startsWith("@");
+        }
+    }
+
+    /**
+     * Unannotated tree of label over [start, end] after unaries, as
+     * TreeMarkovAnnotation.unAnnotateTree(buildAnnotatedTree(chart, sentence, label, false, start, end))
+     */
+    public Tree<String> buildTree(ChartBackPointers chart, List<String> sentence, int label, int start, int end) {
+        return build(chart, sentence, label, false, start, end, false);
+    }
+
+    /**
+     * Annotated tree of label over [start, end], after unaries or (isBinaryTurn) before them
+     */
+    public Tree<String> buildAnnotatedTree(ChartBackPointers chart, List<String> sentence, int label, boolean isBinaryTurn,
+                                           int start, int end) {
+        return build(chart, sentence, label, isBinaryTurn, start, end, true);
+    }
+
+    private Tree<String> build(ChartBackPointers chart, List<String> sentence, int root, boolean isBinaryTurn, int start,
+                               int end, boolean annotated) {
+        Output output = new Output(annotated);
+        int[] tasks = new int[TASK_SIZE * 64];
+        int size = 0;
+        tasks = push(tasks, size, isBinaryTurn ? VISIT_BINARY : VISIT_UNARY, root, start, end);
+        size += TASK_SIZE;
+        while (size > 0) {
+            size -= TASK_SIZE;
+            int type = tasks[size];
+            int label = tasks[size + 1];
+            int begin = tasks[size + 2];
+            int finish = tasks[size + 3];
+            if (type == CLOSE) {
+                output.close(label);
+                continue;
+            }
+            // words: label -> (unary chain -> tag ->) word, whatever the turn
+            if (finish == begin + 1) {
+                int tag = chart.getUniBackPointer(begin, finish, label);
+                output.open(label);
+                if (tag >= 0) {
+                    int rule = unaryClosure.getRule(label, tag);
+                    int pathStart = unaryClosure.pathStart[rule];
+                    int pathEnd = unaryClosure.pathStart[rule + 1];
+                    for (int i = pathEnd - 1; i >= pathStart; i--) output.open(unaryClosure.pathLabels[i]);
+                    output.open(tag);
+                    output.word(sentence.get(begin));
+                    output.close(tag);
+                    for (int i = pathStart; i < pathEnd; i++) output.close(unaryClosure.pathLabels[i]);
+                } else {
+                    output.word(sentence.get(begin));
+                }
+                output.close(label);
+                continue;
+            }
+            if (type == VISIT_UNARY) {
+                int child = chart.getUniBackPointer(begin, finish, label);
+                // no unary, or the reflexive one: the label before unaries
+                if (child < 0 || child == label) {
+                    tasks = push(tasks, size, VISIT_BINARY, label, begin, finish);
+                    size += TASK_SIZE;
+                    continue;
+                }
+                output.open(label);
+                tasks = push(tasks, size, CLOSE, label, begin, finish);
+                size += TASK_SIZE;
+                // the path runs from the parent down to the child: the last label of the path is the outermost
+                int rule = unaryClosure.getRule(label, child);
+                for (int i = unaryClosure.pathStart[rule + 1] - 1; i >= unaryClosure.pathStart[rule]; i--) {
+                    int pathLabel = unaryClosure.pathLabels[i];
+                    output.open(pathLabel);
+                    tasks = push(tasks, size, CLOSE, pathLabel, begin, finish);
+                    size += TASK_SIZE;
+                }
+                tasks = push(tasks, size, VISIT_BINARY, child, begin, finish);
+                size += TASK_SIZE;
+            } else {
+                long backPointer = chart.getBiBackPointer(begin, finish, label);
+                int split = CKYChart.getSplit(backPointer);
+                output.open(label);
+                tasks = push(tasks, size, CLOSE, label, begin, finish);
+                size += TASK_SIZE;
+                // right child pushed first, so that the left one is built first
+                tasks = push(tasks, size, VISIT_UNARY, CKYChart.getRightChild(backPointer), split, finish);
+                size += TASK_SIZE;
+                tasks = push(tasks, size, VISIT_UNARY, CKYChart.getLeftChild(backPointer), begin, split);
+                size += TASK_SIZE;
+            }
+        }
+        return output.root;
+    }
+
+    private static int[] push(int[] tasks, int size, int type, int label, int begin, int end) {
+        if (size + TASK_SIZE > tasks.length) {
+            tasks = Arrays.copyOf(tasks, 2 * tasks.length);
+        }
+        tasks[size] = type;
+        tasks[size + 1] = label;
+        tasks[size + 2] = begin;
+        tasks[size + 3] = end;
+        return tasks;
+    }
+
+    /**
+     * Nodes being built: the children of every open node, innermost last
+     * When unannotating, intermediate nodes are never opened: their children go to the enclosing node
+     */
+    private class Output {
+        final boolean annotated;
+        final List<List<Tree<String>>> openChildren = new ArrayList<>();
+        Tree<String> root;
+
+        Output(boolean annotated) {
+            this.annotated = annotated;
+        }
+
+        void open(int label) {
+            if (annotated || !intermediate[label]) openChildren.add(new ArrayList<Tree<String>>(2));
+        }
+
+        void close(int label) {
+            if (!annotated && intermediate[label]) return;
+            List<Tree<String>> children = openChildren.remove(openChildren.size() - 1);
+            // a node left without children is a leaf: its label is not normalized
+            String nodeLabel = (annotated || children.isEmpty()) ? labels[label] : baseLabels[label];
+            add(new Tree<>(nodeLabel, children));
+        }
+
+        void word(String word) {
+            // words are spliced out as any other label starting with "@"
+            if (!annotated && word.startsWith("@")) return;
+            add(new Tree<String>(word));
+        }
+
+        private void add(Tree<String> tree) {
+            if (openChildren.isEmpty()) {
+                if (root != null) throw new IllegalStateException("Backtrace has no unique root");
+                root = tree;
+            } else {
+                openChildren.get(openChildren.size() - 1).add(tree);
+            }
+        }
+    }
+}
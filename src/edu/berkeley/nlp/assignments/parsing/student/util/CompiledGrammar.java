@@ -0,0 +1,146 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.assignments.parsing.BinaryRule;
+
+import java.util.List;
+
+/**
+ * Struct-of-arrays form of the binary rules of a Grammar, for the CKY hot loop.
+ *
+ * Rules are grouped by left child (CSR layout): the rules B -> ... are the indices
+ * [leftChildStart[B], leftChildStart[B + 1]) of parent, rightChild and score. Within a group,
+ * rules keep the order of Grammar.getBinaryRulesByLeftChild(B), so parsers iterating them break
+ * ties exactly as they did over the rule lists.
+ * The same rules are also indexed by right child: the rules ... -> C are rulesByRightChild[i] for i in
+ * [rightChildStart[C], rightChildStart[C + 1]), in the same order as in the left child groups.
+ * And by parent: the rules A -> ... are rulesByParent[i] for i in [parentStart[A], parentStart[A + 1]).
+ *
+ * Only the IncrementalTrainer which built it changes it, in place (see addRules, and the scores of its rules).
+ *
+ * Fields are public on purpose (like CKYChart): they are read in the CKY hot loop.
+ */
+public class CompiledGrammar {
+    public int numLabels;
+    public int numBinaryRules;
+
+    public int[] leftChildStart;
+    public int[] leftChild;
+    public int[] parent;
+    public int[] rightChild;
+    public double[] score;
+
+    public int[] rightChildStart;
+    public int[] rulesByRightChild;
+
+    public int[] parentStart;
+    public int[] rulesByParent;
+
+    public CompiledGrammar(Grammar grammar) {
+        this.numLabels = grammar.getLabelIndexer().size();
+        List<BinaryRule> binaryRules = grammar.getBinaryRules();
+        this.numBinaryRules = binaryRules.size();
+        this.leftChildStart = new int[numLabels + 1];
+        this.leftChild = new int[numBinaryRules];
+        this.parent = new int[numBinaryRules];
+        this.rightChild = new int[numBinaryRules];
+        this.score = new double[numBinaryRules];
+
+        // stable counting sort by left child: same order as the rule lists by left child
+        for (BinaryRule rule : binaryRules) {
+            leftChildStart[rule.getLeftChild() + 1]++;
+        }
+        for (int B = 0; B < numLabels; B++) {
+            leftChildStart[B + 1] += leftChildStart[B];
+        }
+        int[] next = leftChildStart.clone();
+        for (BinaryRule rule : binaryRules) {
+            int r = next[rule.getLeftChild()]++;
+            leftChild[r] = rule.getLeftChild();
+            parent[r] = rule.getParent();
+            rightChild[r] = rule.getRightChild();
+            score[r] = rule.getScore();
+        }
+        indexRules();
+    }
+
+    /**
+     * Add rules over numLabels labels (at least as many as before), each at the end of its left child group
+     * (see IncrementalTrainer): the groups are copied around them, and the right child and parent indexes
+     * sorted again
+     */
+    void addRules(int numLabels, List<BinaryRule> newRules) {
+        if (newRules.isEmpty() && numLabels == this.numLabels) return;
+        int[] numNewRules = new int[numLabels];
+        for (BinaryRule rule : newRules) {
+            numNewRules[rule.getLeftChild()]++;
+        }
+        int numRules = numBinaryRules + newRules.size();
+        int[] newLeftChildStart = new int[numLabels + 1];
+        int[] newLeftChild = new int[numRules];
+        int[] newParent = new int[numRules];
+        int[] newRightChild = new int[numRules];
+        double[] newScore = new double[numRules];
+        int[] next = new int[numLabels];
+        for (int B = 0; B < numLabels; B++) {
+            int from = newLeftChildStart[B];
+            int oldFrom = (B < this.numLabels) ? leftChildStart[B] : 0;
+            int length = (B < this.numLabels) ? leftChildStart[B + 1] - oldFrom : 0;
+            System.arraycopy(leftChild, oldFrom, newLeftChild, from, length);
+            System.arraycopy(parent, oldFrom, newParent, from, length);
+            System.arraycopy(rightChild, oldFrom, newRightChild, from, length);
+            System.arraycopy(score, oldFrom, newScore, from, length);
+            next[B] = from + length;
+            newLeftChildStart[B + 1] = next[B] + numNewRules[B];
+        }
+        for (BinaryRule rule : newRules) {
+            int r = next[rule.getLeftChild()]++;
+            newLeftChild[r] = rule.getLeftChild();
+            newParent[r] = rule.getParent();
+            newRightChild[r] = rule.getRightChild();
+            newScore[r] = rule.getScore();
+        }
+        this.numLabels = numLabels;
+        this.numBinaryRules = numRules;
+        this.leftChildStart = newLeftChildStart;
+        this.leftChild = newLeftChild;
+        this.parent = newParent;
+        this.rightChild = newRightChild;
+        this.score = newScore;
+        indexRules();
+    }
+
+    /**
+     * Index the rules of the left child groups by right child and by parent (counting sorts)
+     */
+    private void indexRules() {
+        this.rightChildStart = new int[numLabels + 1];
+        this.rulesByRightChild = new int[numBinaryRules];
+        for (int r = 0; r < numBinaryRules; r++) {
+            rightChildStart[rightChild[r] + 1]++;
+        }
+        for (int C = 0; C < numLabels; C++) {
+            rightChildStart[C + 1] += rightChildStart[C];
+        }
+        int[] next = rightChildStart.clone();
+        for (int r = 0; r < numBinaryRules; r++) {
+            rulesByRightChild[next[rightChild[r]]++] = r;
+        }
+
+        this.parentStart = new int[numLabels + 1];
+        this.rulesByParent = new int[numBinaryRules];
+        for (int r = 0; r < numBinaryRules; r++) {
+            parentStart[parent[r] + 1]++;
+        }
+        for (int A = 0; A < numLabels; A++) {
+            parentStart[A + 1] += parentStart[A];
+        }
+        next = parentStart.clone();
+        for (int r = 0; r < numBinaryRules; r++) {
+            rulesByParent[next[parent[r]]++] = r;
+        }
+    }
+
+    public int getNumRulesByLeftChild(int leftChild) {
+        return leftChildStart[leftChild + 1] - leftChildStart[leftChild];
+    }
+}
@@ -0,0 +1,195 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tagging scores of a Lexicon, keyed by word id, for the lexical step of CKY.
+ *
+ * Every known word gets a sparse list of (tag, score) over the only tags with a non-zero score:
+ * the tags it was seen with, plus for rare words (seen less than 10 times) every tag seen on a
+ * new word type. All unknown words get the same score for a tag (the lexicon has no word classes),
+ * so they share one list over the tags seen on new word types, and need no cache.
+ * Scores are computed with Lexicon.scoreTagging, so they are exactly the ones CKY used to get.
+ * Tags are listed by increasing label index, the order in which CKY used to try them.
+ *
+ * The list of a known word is only computed the first time it is asked for, so building the tables
+ * of a large lexicon costs nothing but the word ids. Several threads may compute the same list at once;
+ * they compute the same one.
+ *
+ * Adding counts to the lexicon changes the score of every word (they depend on the token and type totals):
+ * update appends the new words and only marks the lists computed so far as stale, so that each one is
+ * computed again the next time it is asked for (see IncrementalTrainer).
+ */
+public class CompiledLexicon {
+    public static final int UNKNOWN_WORD = -1;
+
+    private final Map<String, Integer> wordIds = new HashMap<>();
+    // [word id] => word, for the first numWords ids
+    private String[] words;
+    private int numWords;
+    // [word id] => tag label indices and their scores, null until asked for, stale if of an older generation
+    private WordTags[] wordTags;
+    private WordTags unknownWordTags;
+    private int generation = 0;
+    // only used to compute the lists of known words, null when they are all given
+    private final Lexicon lexicon;
+    private final Indexer<String> labelIndexer;
+    private final Set<String> newTypeTags;
+
+    public CompiledLexicon(Lexicon lexicon, Indexer<String> labelIndexer) {
+        Set<String> knownWords = lexicon.wordCounter.keySet();
+        this.words = new String[knownWords.size()];
+        this.wordTags = new WordTags[words.length];
+        for (String word : knownWords) {
+            int wordId = wordIds.size();
+            wordIds.put(word, wordId);
+            words[wordId] = word;
+        }
+        this.numWords = words.length;
+        this.lexicon = lexicon;
+        this.labelIndexer = labelIndexer;
+        this.newTypeTags = lexicon.typeTagCounter.keySet();
+        // the lexicon never saw a null word: it scores it as any unknown word
+        this.unknownWordTags = computeWordTags(null, newTypeTags);
+    }
+
+    /**
+     * Follow the lexicon after counts were added to it: the new words of the batch get the next ids,
+     * and the lists computed so far become stale
+     */
+    void update(Iterable<String> batchWords) {
+        if (lexicon == null) {
+            throw new IllegalStateException("Tables read from a model file cannot follow a lexicon");
+        }
+        for (String word : batchWords) {
+            if (wordIds.containsKey(word)) continue;
+            if (numWords == words.length) {
+                words = Arrays.copyOf(words, 2 * numWords + 1);
+                wordTags = Arrays.copyOf(wordTags, words.length);
+            }
+            wordIds.put(word, numWords);
+            words[numWords++] = word;
+        }
+        generation++;
+        this.unknownWordTags = computeWordTags(null, newTypeTags);
+    }
+
+    /**
+     * Tables read back from a model file (see ParserModelFile), indexed by word id
+     */
+    CompiledLexicon(String[] words, int[][] wordTags, double[][] wordScores, int[] unknownWordTags, double[] unknownWordScores) {
+        this.words = words;
+        this.numWords = words.length;
+        this.wordTags = new WordTags[words.length];
+        for (int wordId = 0; wordId < words.length; wordId++) {
+            wordIds.put(words[wordId], wordId);
+            this.wordTags[wordId] = new WordTags(wordTags[wordId], wordScores[wordId], generation);
+        }
+        this.unknownWordTags = new WordTags(unknownWordTags, unknownWordScores, generation);
+        this.lexicon = null;
+        this.labelIndexer = null;
+        this.newTypeTags = null;
+    }
+
+    private WordTags getWordTags(int wordId) {
+        if (wordId == UNKNOWN_WORD) return unknownWordTags;
+        WordTags tags = wordTags[wordId];
+        if (tags == null || tags.generation != generation) {
+            String word = words[wordId];
+            Set<String> candidateTags = new HashSet<>(lexicon.wordToTagCounters.getCounter(word).keySet());
+            if (lexicon.wordCounter.getCount(word) < 10) {
+                candidateTags.addAll(newTypeTags);
+            }
+            tags = computeWordTags(word, candidateTags);
+            wordTags[wordId] = tags;
+        }
+        return tags;
+    }
+
+    private WordTags computeWordTags(String word, Set<String> candidateTags) {
+        int[] tags = nonZeroTags(lexicon, labelIndexer, word, candidateTags);
+        return new WordTags(tags, scoreTags(lexicon, labelIndexer, word, tags), generation);
+    }
+
+    /**
+     * Labels of the candidate tags which have a non-zero score for the word, in increasing order
+     */
+    private static int[] nonZeroTags(Lexicon lexicon, Indexer<String> labelIndexer, String word, Set<String> candidateTags) {
+        int[] tags = new int[candidateTags.size()];
+        int numTags = 0;
+        for (String tag : candidateTags) {
+            int label = labelIndexer.indexOf(tag);
+            if (label < 0) continue;
+            double score = lexicon.scoreTagging(word, tag);
+            if (!Double.isNaN(score) && score != Double.NEGATIVE_INFINITY) {
+                tags[numTags++] = label;
+            }
+        }
+        tags = Arrays.copyOf(tags, numTags);
+        Arrays.sort(tags);
+        return tags;
+    }
+
+    private static double[] scoreTags(Lexicon lexicon, Indexer<String> labelIndexer, String word, int[] tags) {
+        double[] scores = new double[tags.length];
+        for (int t = 0; t < tags.length; t++) {
+            scores[t] = lexicon.scoreTagging(word, labelIndexer.get(tags[t]));
+        }
+        return scores;
+    }
+
+    /**
+     * Id of a known word, or UNKNOWN_WORD
+     */
+    public int getWordId(String word) {
+        Integer wordId = wordIds.get(word);
+        return (wordId == null) ? UNKNOWN_WORD : wordId;
+    }
+
+    /**
+     * Labels of the tags with a non-zero score for the word, in increasing order
+     */
+    public int[] getTags(int wordId) {
+        return getWordTags(wordId).tags;
+    }
+
+    /**
+     * Scores of getTags(wordId), index by index
+     */
+    public double[] getScores(int wordId) {
+        return getWordTags(wordId).scores;
+    }
+
+    /**
+     * Known words, by word id
+     */
+    String[] getWords() {
+        return (numWords == words.length) ? words : Arrays.copyOf(words, numWords);
+    }
+
+    public int getNumWords() {
+        return numWords;
+    }
+
+    /**
+     * Tags with a non-zero score of a word and their scores; final fields, so safely shared between threads
+     */
+    private static class WordTags {
+        final int[] tags;
+        final double[] scores;
+        // generation of the lexicon the scores were computed for
+        final int generation;
+
+        WordTags(int[] tags, double[] scores, int generation) {
+            this.tags = tags;
+            this.scores = scores;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.assignments.parsing.UnaryClosure;
+import edu.berkeley.nlp.assignments.parsing.UnaryRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Struct-of-arrays form of a UnaryClosure, for the unary passes and the backtrace.
+ *
+ * Closed rules are grouped by child (CSR layout): the rules ... -> B are the indices
+ * [childStart[B], childStart[B + 1]) of parent and score, in the order of
+ * UnaryClosure.getClosedUnaryRulesByChild(B), so parsers iterating them break ties exactly as they
+ * did over the rule lists. The same rules are also listed by parent, in the order of
+ * getClosedUnaryRulesByParent: the rules A -> ... are rulesByParent[i] for i in [parentStart[A], parentStart[A + 1]).
+ *
+ * The path of each closed rule is flattened: the labels strictly between parent and child are
+ * pathLabels[i] for i in [pathStart[r], pathStart[r + 1]), in the order of UnaryClosure.getPath.
+ * getRule(parent, child) finds a rule without building a UnaryRule (binary search over the parents
+ * of the child), so expanding the unary chains of a tree allocates nothing.
+ *
+ * Only the IncrementalTrainer which built it changes it, in place (see update).
+ *
+ * Fields are public on purpose (like CompiledGrammar): they are read in the CKY hot loop.
+ */
+public class CompiledUnaryClosure {
+    public int numLabels;
+    public int numRules;
+
+    public int[] childStart;
+    public int[] child;
+    public int[] parent;
+    public double[] score;
+
+    public int[] parentStart;
+    public int[] rulesByParent;
+
+    public int[] pathStart;
+    public int[] pathLabels;
+
+    // within each child group: parents in increasing order, and their rule
+    private int[] sortedParent;
+    private int[] sortedRule;
+
+    public CompiledUnaryClosure(UnaryClosure closure, int numLabels) {
+        this.numLabels = numLabels;
+        int count = 0;
+        for (int B = 0; B < numLabels; B++) {
+            count += closure.getClosedUnaryRulesByChild(B).size();
+        }
+        this.numRules = count;
+        this.childStart = new int[numLabels + 1];
+        this.child = new int[numRules];
+        this.parent = new int[numRules];
+        this.score = new double[numRules];
+        this.pathStart = new int[numRules + 1];
+        this.sortedParent = new int[numRules];
+        this.sortedRule = new int[numRules];
+
+        Map<UnaryRule, Integer> ruleIndices = new HashMap<>(2 * numRules);
+        int[] pathLabels = new int[numRules];
+        int numPathLabels = 0;
+        int r = 0;
+        for (int B = 0; B < numLabels; B++) {
+            childStart[B] = r;
+            for (UnaryRule rule : closure.getClosedUnaryRulesByChild(B)) {
+                child[r] = B;
+                parent[r] = rule.getParent();
+                score[r] = rule.getScore();
+                ruleIndices.put(rule, r);
+                // the path runs from parent to child: only the labels in between are expanded
+                List<Integer> path = closure.getPath(rule);
+                pathStart[r] = numPathLabels;
+                for (int i = 1; path != null && i < path.size() - 1; i++) {
+                    if (numPathLabels == pathLabels.length) pathLabels = Arrays.copyOf(pathLabels, 2 * pathLabels.length + 1);
+                    pathLabels[numPathLabels++] = path.get(i);
+                }
+                r++;
+            }
+            sortByParent(childStart[B], r);
+        }
+        childStart[numLabels] = r;
+        pathStart[numRules] = numPathLabels;
+        this.pathLabels = Arrays.copyOf(pathLabels, numPathLabels);
+
+        this.parentStart = new int[numLabels + 1];
+        this.rulesByParent = new int[numRules];
+        int p = 0;
+        for (int A = 0; A < numLabels; A++) {
+            parentStart[A] = p;
+            for (UnaryRule rule : closure.getClosedUnaryRulesByParent(A)) {
+                Integer index = ruleIndices.get(rule);
+                if (index == null) {
+                    throw new IllegalArgumentException("Closed unary rule by parent not in the rules by child: " + rule);
+                }
+                rulesByParent[p++] = index;
+            }
+        }
+        parentStart[numLabels] = p;
+    }
+
+    /**
+     * Follow the closure after rules were added to it or their path changed, over numLabels labels
+     * (at least as many as before)
+     * Rules already there get their score and path patched in place; new rules are appended to the groups
+     * of their child and parent, in the order of the given list, as the closure appends them to its lists.
+     * The arrays are only copied when there are new rules or labels, or a path changed length.
+     */
+    void update(int numLabels, List<UnaryRule> rules, UnaryClosure closure) {
+        List<UnaryRule> newRules = new ArrayList<>();
+        // old rule index => its new path, when it does not fit in place
+        Map<Integer, List<Integer>> movedPaths = new HashMap<>();
+        for (UnaryRule rule : rules) {
+            boolean isOld = rule.getParent() < this.numLabels && rule.getChild() < this.numLabels;
+            int r = isOld ? getRule(rule.getParent(), rule.getChild()) : -1;
+            if (r < 0) {
+                newRules.add(rule);
+                continue;
+            }
+            score[r] = rule.getScore();
+            List<Integer> path = closure.getPath(rule);
+            if (innerLength(path) == pathStart[r + 1] - pathStart[r]) {
+                for (int i = pathStart[r]; i < pathStart[r + 1]; i++) {
+                    pathLabels[i] = path.get(i - pathStart[r] + 1);
+                }
+            } else {
+                movedPaths.put(r, (path == null) ? Collections.<Integer>emptyList() : path);
+            }
+        }
+        if (newRules.isEmpty() && movedPaths.isEmpty() && numLabels == this.numLabels) return;
+        addRules(numLabels, newRules, movedPaths, closure);
+    }
+
+    private void addRules(int numLabels, List<UnaryRule> newRules, Map<Integer, List<Integer>> movedPaths, UnaryClosure closure) {
+        int numOldLabels = this.numLabels;
+        int[] numNewByChild = new int[numLabels];
+        int[] numNewByParent = new int[numLabels];
+        for (UnaryRule rule : newRules) {
+            numNewByChild[rule.getChild()]++;
+            numNewByParent[rule.getParent()]++;
+        }
+        int numRules = this.numRules + newRules.size();
+        int[] newChildStart = new int[numLabels + 1];
+        int[] newChild = new int[numRules];
+        int[] newParent = new int[numRules];
+        double[] newScore = new double[numRules];
+        int[] newSortedParent = new int[numRules];
+        int[] newSortedRule = new int[numRules];
+        // old rule index => new one, and new rule => its index
+        int[] moved = new int[this.numRules];
+        int[] newRuleIndices = new int[newRules.size()];
+
+        // child groups: the old rules, then the new ones
+        int[] next = new int[numLabels];
+        for (int B = 0; B < numLabels; B++) {
+            int from = newChildStart[B];
+            int oldFrom = (B < numOldLabels) ? childStart[B] : 0;
+            int length = (B < numOldLabels) ? childStart[B + 1] - oldFrom : 0;
+            System.arraycopy(child, oldFrom, newChild, from, length);
+            System.arraycopy(parent, oldFrom, newParent, from, length);
+            System.arraycopy(score, oldFrom, newScore, from, length);
+            for (int r = oldFrom; r < oldFrom + length; r++) {
+                moved[r] = from + r - oldFrom;
+            }
+            if (numNewByChild[B] == 0) {
+                System.arraycopy(sortedParent, oldFrom, newSortedParent, from, length);
+                for (int i = oldFrom; i < oldFrom + length; i++) {
+                    newSortedRule[from + i - oldFrom] = moved[sortedRule[i]];
+                }
+            }
+            next[B] = from + length;
+            newChildStart[B + 1] = next[B] + numNewByChild[B];
+        }
+        for (int k = 0; k < newRules.size(); k++) {
+            UnaryRule rule = newRules.get(k);
+            int r = next[rule.getChild()]++;
+            newChild[r] = rule.getChild();
+            newParent[r] = rule.getParent();
+            newScore[r] = rule.getScore();
+            newRuleIndices[k] = r;
+        }
+
+        // paths, in the new rule order
+        List<Integer>[] newPaths = newPathArray(numRules);
+        for (Map.Entry<Integer, List<Integer>> entry : movedPaths.entrySet()) {
+            newPaths[moved[entry.getKey()]] = entry.getValue();
+        }
+        for (int k = 0; k < newRules.size(); k++) {
+            List<Integer> path = closure.getPath(newRules.get(k));
+            newPaths[newRuleIndices[k]] = (path == null) ? Collections.<Integer>emptyList() : path;
+        }
+        int[] newPathStart = new int[numRules + 1];
+        int[] newPathLabels = new int[pathLabels.length + 1];
+        int numPathLabels = 0;
+        int[] oldRules = new int[numRules];
+        Arrays.fill(oldRules, -1);
+        for (int r = 0; r < moved.length; r++) {
+            oldRules[moved[r]] = r;
+        }
+        for (int r = 0; r < numRules; r++) {
+            newPathStart[r] = numPathLabels;
+            List<Integer> path = newPaths[r];
+            int length = (path == null) ? pathStart[oldRules[r] + 1] - pathStart[oldRules[r]] : innerLength(path);
+            if (numPathLabels + length > newPathLabels.length) {
+                newPathLabels = Arrays.copyOf(newPathLabels, Math.max(numPathLabels + length, 2 * newPathLabels.length));
+            }
+            if (path == null) {
+                System.arraycopy(pathLabels, pathStart[oldRules[r]], newPathLabels, numPathLabels, length);
+            } else {
+                for (int i = 1; i <= length; i++) {
+                    newPathLabels[numPathLabels + i - 1] = path.get(i);
+                }
+            }
+            numPathLabels += length;
+        }
+        newPathStart[numRules] = numPathLabels;
+
+        // parent groups: the old rules, then the new ones
+        int[] newParentStart = new int[numLabels + 1];
+        int[] newRulesByParent = new int[numRules];
+        for (int A = 0; A < numLabels; A++) {
+            int from = newParentStart[A];
+            int oldFrom = (A < numOldLabels) ? parentStart[A] : 0;
+            int length = (A < numOldLabels) ? parentStart[A + 1] - oldFrom : 0;
+            for (int i = oldFrom; i < oldFrom + length; i++) {
+                newRulesByParent[from + i - oldFrom] = moved[rulesByParent[i]];
+            }
+            next[A] = from + length;
+            newParentStart[A + 1] = next[A] + numNewByParent[A];
+        }
+        for (int k = 0; k < newRules.size(); k++) {
+            newRulesByParent[next[newRules.get(k).getParent()]++] = newRuleIndices[k];
+        }
+
+        this.numLabels = numLabels;
+        this.numRules = numRules;
+        this.childStart = newChildStart;
+        this.child = newChild;
+        this.parent = newParent;
+        this.score = newScore;
+        this.parentStart = newParentStart;
+        this.rulesByParent = newRulesByParent;
+        this.pathStart = newPathStart;
+        this.pathLabels = Arrays.copyOf(newPathLabels, numPathLabels);
+        this.sortedParent = newSortedParent;
+        this.sortedRule = newSortedRule;
+        for (int B = 0; B < numLabels; B++) {
+            if (numNewByChild[B] > 0) sortByParent(childStart[B], childStart[B + 1]);
+        }
+    }
+
+    /**
+     * [rule index] => new path of the rule, left null where the old one is kept
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Integer>[] newPathArray(int numRules) {
+        return (List<Integer>[]) new List<?>[numRules];
+    }
+
+    /**
+     * Number of labels strictly between parent and child of a path (none for a missing one)
+     */
+    private static int innerLength(List<Integer> path) {
+        return (path == null) ? 0 : Math.max(0, path.size() - 2);
+    }
+
+    private void sortByParent(int from, int to) {
+        long[] keys = new long[to - from];
+        for (int r = from; r < to; r++) {
+            keys[r - from] = ((long) parent[r] << 32) | r;
+        }
+        Arrays.sort(keys);
+        for (int i = from; i < to; i++) {
+            sortedParent[i] = (int) (keys[i - from] >>> 32);
+            sortedRule[i] = (int) keys[i - from];
+        }
+    }
+
+    /**
+     * Index of the closed rule parent -> child, or -1 if there is none
+     */
+    public int getRule(int parent, int child) {
+        int index = Arrays.binarySearch(sortedParent, childStart[child], childStart[child + 1], parent);
+        return (index < 0) ? -1 : sortedRule[index];
+    }
+
+    public int getNumRulesByChild(int child) {
+        return childStart[child + 1] - childStart[child];
+    }
+}
@@ -1,6 +1,7 @@
 package edu.berkeley.nlp.assignments.parsing.student.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import edu.berkeley.nlp.assignments.parsing.BinaryRule;
@@ -19,9 +20,10 @@ public class Grammar {
 
     Indexer<String> labelIndexer;
 
-    List<BinaryRule>[] binaryRulesByLeftChild;
-    List<BinaryRule>[] binaryRulesByRightChild;
-    List<BinaryRule>[] binaryRulesByParent;
+    // indexes of the binary rules, only built when asked for: parsers read the CompiledGrammar instead
+    private volatile List<BinaryRule>[] binaryRulesByLeftChild;
+    private volatile List<BinaryRule>[] binaryRulesByRightChild;
+    private volatile List<BinaryRule>[] binaryRulesByParent;
     List<BinaryRule> binaryRules = new ArrayList<BinaryRule>();
 
     List<UnaryRule>[] unaryRulesByChild;
@@ -33,17 +35,44 @@ public class Grammar {
     }
 
     public List<BinaryRule> getBinaryRulesByLeftChild(int leftChildIdx) {
+        if (binaryRulesByLeftChild == null) {
+            binaryRulesByLeftChild = indexBinaryRules(0);
+        }
         return binaryRulesByLeftChild[leftChildIdx];
     }
 
     public List<BinaryRule> getBinaryRulesByRightChild(int rightChildIdx) {
+        if (binaryRulesByRightChild == null) {
+            binaryRulesByRightChild = indexBinaryRules(1);
+        }
         return binaryRulesByRightChild[rightChildIdx];
     }
 
     public List<BinaryRule> getBinaryRulesByParent(int parentIdx) {
+        if (binaryRulesByParent == null) {
+            binaryRulesByParent = indexBinaryRules(2);
+        }
         return binaryRulesByParent[parentIdx];
     }
 
+    /**
+     * Group the binary rules, in order, by left child (0), right child (1) or parent (2)
+     * Two threads may both build an index the first time; they build the same one
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<BinaryRule>[] indexBinaryRules(int key) {
+        List<BinaryRule>[] index = new List[labelIndexer.size()];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = new ArrayList<BinaryRule>();
+        }
+        for (BinaryRule binaryRule : binaryRules) {
+            int label = (key == 0) ? binaryRule.getLeftChild()
+                    : (key == 1) ? binaryRule.getRightChild() : binaryRule.getParent();
+            index[label].add(binaryRule);
+        }
+        return index;
+    }
+
     public List<BinaryRule> getBinaryRules() {
         return binaryRules;
     }
@@ -63,7 +92,7 @@ public class Grammar {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         List<String> ruleStrings = new ArrayList<String>();
-        for (int parent = 0; parent < binaryRulesByParent.length; parent++) {
+        for (int parent = 0; parent < labelIndexer.size(); parent++) {
             for (BinaryRule binaryRule : getBinaryRulesByParent(parent)) {
                 ruleStrings.add(binaryRule.toString(labelIndexer));
             }
@@ -91,14 +120,17 @@ public class Grammar {
         }
     }
 
-    private void addBinary(BinaryRule binaryRule) {
+    /**
+     * Also appends the rule to the binary rule indexes already built (see IncrementalTrainer)
+     */
+    void addBinary(BinaryRule binaryRule) {
         binaryRules.add(binaryRule);
-        binaryRulesByParent[binaryRule.getParent()].add(binaryRule);
-        binaryRulesByLeftChild[binaryRule.getLeftChild()].add(binaryRule);
-        binaryRulesByRightChild[binaryRule.getRightChild()].add(binaryRule);
+        if (binaryRulesByLeftChild != null) binaryRulesByLeftChild[binaryRule.getLeftChild()].add(binaryRule);
+        if (binaryRulesByRightChild != null) binaryRulesByRightChild[binaryRule.getRightChild()].add(binaryRule);
+        if (binaryRulesByParent != null) binaryRulesByParent[binaryRule.getParent()].add(binaryRule);
     }
 
-    private void addUnary(UnaryRule unaryRule) {
+    void addUnary(UnaryRule unaryRule) {
         unaryRules.add(unaryRule);
         unaryRulesByChild[unaryRule.getChild()].add(unaryRule);
         unaryRulesByParent[unaryRule.getParent()].add(unaryRule);
@@ -120,15 +152,9 @@ public class Grammar {
         for (Tree<String> trainTree : trainTrees) {
             addTreeLabels(trainTree);
         }
-        this.binaryRulesByLeftChild = new List[labelIndexer.size()];
-        this.binaryRulesByRightChild = new List[labelIndexer.size()];
-        this.binaryRulesByParent = new List[labelIndexer.size()];
         this.unaryRulesByChild = new List[labelIndexer.size()];
         this.unaryRulesByParent = new List[labelIndexer.size()];
         for (int i = 0; i < labelIndexer.size(); i++) {
-            this.binaryRulesByLeftChild[i] = new ArrayList<BinaryRule>();
-            this.binaryRulesByRightChild[i] = new ArrayList<BinaryRule>();
-            this.binaryRulesByParent[i] = new ArrayList<BinaryRule>();
             this.unaryRulesByChild[i] = new ArrayList<UnaryRule>();
             this.unaryRulesByParent[i] = new ArrayList<UnaryRule>();
         }
@@ -150,6 +176,97 @@ public class Grammar {
         }
     }
 
+    /**
+     * Same grammar as generativeGrammarFromTrees over the trees the counts were tallied from
+     * Rules are put in the counters in their order of first occurrence, so they come out in the same order
+     */
+    public static Grammar generativeGrammarFromCounts(TrainingCounts counts) {
+        return new Grammar(counts);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Grammar(TrainingCounts counts) {
+        this.labelIndexer = new Indexer<String>();
+        for (int label = 0; label < counts.labelIndexer.size(); label++) {
+            labelIndexer.add(counts.labelIndexer.get(label));
+        }
+        this.unaryRulesByChild = new List[labelIndexer.size()];
+        this.unaryRulesByParent = new List[labelIndexer.size()];
+        for (int i = 0; i < labelIndexer.size(); i++) {
+            this.unaryRulesByChild[i] = new ArrayList<UnaryRule>();
+            this.unaryRulesByParent[i] = new ArrayList<UnaryRule>();
+        }
+        Counter<UnaryRule> unaryRuleCounter = new Counter<UnaryRule>();
+        for (int i = 0; i < counts.unaryCounts.size(); i++) {
+            long key = counts.unaryCounts.getKey(i);
+            unaryRuleCounter.incrementCount(new UnaryRule(TrainingCounts.getUnaryParent(key),
+                    TrainingCounts.getUnaryChild(key)), counts.unaryCounts.getCount(i));
+        }
+        Counter<BinaryRule> binaryRuleCounter = new Counter<BinaryRule>();
+        for (int i = 0; i < counts.binaryCounts.size(); i++) {
+            long key = counts.binaryCounts.getKey(i);
+            binaryRuleCounter.incrementCount(new BinaryRule(TrainingCounts.getBinaryParent(key),
+                    TrainingCounts.getBinaryLeftChild(key), TrainingCounts.getBinaryRightChild(key)),
+                    counts.binaryCounts.getCount(i));
+        }
+        for (UnaryRule unaryRule : unaryRuleCounter.keySet()) {
+            double unaryProbability = unaryRuleCounter.getCount(unaryRule) / (double) counts.symbolCounts[unaryRule.getParent()];
+            unaryRule.setScore(Math.log(unaryProbability));
+            addUnary(unaryRule);
+        }
+        for (BinaryRule binaryRule : binaryRuleCounter.keySet()) {
+            double binaryProbability = binaryRuleCounter.getCount(binaryRule) / (double) counts.symbolCounts[binaryRule.getParent()];
+            binaryRule.setScore(Math.log(binaryProbability));
+            addBinary(binaryRule);
+        }
+    }
+
+    /**
+     * Grammar of already estimated rules, added in the given order (used to load saved models)
+     */
+    static Grammar fromRules(Indexer<String> labelIndexer, List<UnaryRule> unaryRules, List<BinaryRule> binaryRules) {
+        return new Grammar(labelIndexer, unaryRules, binaryRules);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Grammar(Indexer<String> labelIndexer, List<UnaryRule> unaryRules, List<BinaryRule> binaryRules) {
+        this.labelIndexer = labelIndexer;
+        this.unaryRulesByChild = new List[labelIndexer.size()];
+        this.unaryRulesByParent = new List[labelIndexer.size()];
+        for (int i = 0; i < labelIndexer.size(); i++) {
+            this.unaryRulesByChild[i] = new ArrayList<UnaryRule>();
+            this.unaryRulesByParent[i] = new ArrayList<UnaryRule>();
+        }
+        for (UnaryRule unaryRule : unaryRules) {
+            addUnary(unaryRule);
+        }
+        for (BinaryRule binaryRule : binaryRules) {
+            addBinary(binaryRule);
+        }
+    }
+
+    /**
+     * Make room in the rule indexes for the labels appended to the indexer since (see IncrementalTrainer)
+     */
+    void addLabels() {
+        int numLabels = labelIndexer.size();
+        if (numLabels == unaryRulesByChild.length) return;
+        unaryRulesByChild = growRuleLists(unaryRulesByChild, numLabels);
+        unaryRulesByParent = growRuleLists(unaryRulesByParent, numLabels);
+        if (binaryRulesByLeftChild != null) binaryRulesByLeftChild = growRuleLists(binaryRulesByLeftChild, numLabels);
+        if (binaryRulesByRightChild != null) binaryRulesByRightChild = growRuleLists(binaryRulesByRightChild, numLabels);
+        if (binaryRulesByParent != null) binaryRulesByParent = growRuleLists(binaryRulesByParent, numLabels);
+    }
+
+    private static <R> List<R>[] growRuleLists(List<R>[] ruleLists, int numLabels) {
+        int numOldLabels = ruleLists.length;
+        ruleLists = Arrays.copyOf(ruleLists, numLabels);
+        for (int label = numOldLabels; label < numLabels; label++) {
+            ruleLists[label] = new ArrayList<R>();
+        }
+        return ruleLists;
+    }
+
     private void tallyTree(Tree<String> tree, Counter<Integer> symbolCounter, Counter<UnaryRule> unaryRuleCounter, Counter<BinaryRule> binaryRuleCounter) {
         if (tree.isLeaf()) return;
         if (tree.isPreTerminal()) return;
@@ -0,0 +1,343 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.assignments.parsing.BinaryRule;
+import edu.berkeley.nlp.assignments.parsing.UnaryClosure;
+import edu.berkeley.nlp.assignments.parsing.UnaryRule;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Trainer which keeps the raw counts of the trees it saw, so that batches of trees can be added
+ * to a trained model at the cost of the batch, without counting or estimating the whole treebank again.
+ *
+ * Adding trees only counts them and merges their counts (see TrainingCounts). The first model is built
+ * from the counts as ParserModel.fromCounts does; after that, getModel updates the same model in place
+ * with the batches added since:
+ * - new labels are appended to the label indexer, and every table indexed by label grows to them
+ * - new rules are appended to the grammar (and to the groups of their left child in the CompiledGrammar)
+ * - only the rules of the parents seen in the batches are scored again, in place
+ * - only the closed unary rules from the labels which reach one of these parents by unary rules are searched
+ *   again (see closeUnaryRules); the ones which changed are patched in the CompiledUnaryClosure
+ * - the lexicon adds the counts of the batches, and the tagging scores of the words are computed again
+ *   when a parse next needs them (see CompiledLexicon)
+ * Rule and tagging scores are the ones ParserModel.train would estimate from all the trees added so far,
+ * but new rules come after the old ones instead of in the order of a Grammar built at once. A closed unary
+ * rule may differ from the library's UnaryClosure in the last bits of its score (the same rule scores are
+ * summed in another order), or take another path among paths of equal score.
+ *
+ * Parsers read tables which an update replaces: parsers of the model must be created again after getModel
+ * returned an updated model, and no parse may run during the update. The trainer is not thread safe.
+ */
+public class IncrementalTrainer {
+
+    // =========================FIELDS=========================
+    private final int verticalOrder;
+    private final int horizontalOrder;
+    private final TrainingCounts counts = new TrainingCounts();
+    // counts of the batches added since the model was last built or updated
+    private final List<TrainingCounts> pendingBatches = new ArrayList<>();
+
+    // model, and the parts of it which are updated in place
+    private ParserModel model;
+    private Grammar grammar;
+    private StoredUnaryClosure unaryClosure;
+    // [index of the count in counts] => binary rule of the grammar
+    private BinaryRule[] binaryRules = new BinaryRule[0];
+
+    // [label] => scratch of the unary closure searches
+    private double[] pathScores = new double[0];
+    private int[] previousLabels = new int[0];
+    private UnaryRule[] closedRules = new UnaryRule[0];
+    private int[] reachedLabels = new int[0];
+    // =========================END OF FIELDS=========================
+
+    public IncrementalTrainer(int verticalOrder, int horizontalOrder) {
+        this.verticalOrder = verticalOrder;
+        this.horizontalOrder = horizontalOrder;
+    }
+
+    /**
+     * Markovize and count a batch of trees, after the ones added so far
+     * Costs as much as counting the batch: the model is only updated by getModel
+     */
+    public void addTrees(Iterable<Tree<String>> trees) {
+        addTrees(trees, 1);
+    }
+
+    public void addTrees(Iterable<Tree<String>> trees, int numThreads) {
+        TrainingCounts batchCounts = TrainingCounts.countTrees(trees, verticalOrder, horizontalOrder, numThreads);
+        if (batchCounts.getNumTrees() == 0) return;
+        counts.add(batchCounts);
+        pendingBatches.add(batchCounts);
+    }
+
+    public int getNumTrees() {
+        return counts.getNumTrees();
+    }
+
+    /**
+     * Model of all the trees added so far: the same instance every time, updated in place
+     * if trees were added since the last call
+     */
+    public ParserModel getModel() {
+        if (counts.getNumTrees() == 0) {
+            throw new IllegalStateException("No training trees were added");
+        }
+        if (model == null) {
+            buildModel();
+        } else if (!pendingBatches.isEmpty()) {
+            updateModel();
+        }
+        pendingBatches.clear();
+        return model;
+    }
+
+    // =========================BUILDING=========================
+    private void buildModel() {
+        grammar = Grammar.generativeGrammarFromCounts(counts);
+        binaryRules = new BinaryRule[counts.binaryCounts.size()];
+        for (BinaryRule rule : grammar.getBinaryRules()) {
+            binaryRules[binaryCountIndex(rule.getParent(), rule.getLeftChild(), rule.getRightChild())] = rule;
+        }
+        Indexer<String> labelIndexer = grammar.getLabelIndexer();
+        unaryClosure = StoredUnaryClosure.copyOf(new UnaryClosure(labelIndexer, grammar.getUnaryRules()), labelIndexer);
+        model = new ParserModel(grammar, new Lexicon(counts), unaryClosure);
+        growScratch(labelIndexer.size());
+    }
+    // =========================END OF BUILDING=========================
+
+    // =========================UPDATING=========================
+    private void updateModel() {
+        // new labels, in the order of the counts
+        Indexer<String> labelIndexer = grammar.getLabelIndexer();
+        int numOldLabels = labelIndexer.size();
+        for (int label = numOldLabels; label < counts.labelIndexer.size(); label++) {
+            labelIndexer.add(counts.labelIndexer.get(label));
+        }
+        int numLabels = labelIndexer.size();
+        grammar.addLabels();
+        unaryClosure.addLabels(numLabels);
+        growScratch(numLabels);
+
+        // new rules: their counts come after the ones of the rules already in the grammar
+        for (int i = grammar.getUnaryRules().size(); i < counts.unaryCounts.size(); i++) {
+            long key = counts.unaryCounts.getKey(i);
+            grammar.addUnary(new UnaryRule(TrainingCounts.getUnaryParent(key), TrainingCounts.getUnaryChild(key)));
+        }
+        int numBinaryRules = grammar.getBinaryRules().size();
+        if (counts.binaryCounts.size() > binaryRules.length) {
+            binaryRules = Arrays.copyOf(binaryRules, Math.max(counts.binaryCounts.size(), 2 * binaryRules.length));
+        }
+        List<BinaryRule> newBinaryRules = new ArrayList<>();
+        for (int i = numBinaryRules; i < counts.binaryCounts.size(); i++) {
+            long key = counts.binaryCounts.getKey(i);
+            BinaryRule rule = new BinaryRule(TrainingCounts.getBinaryParent(key), TrainingCounts.getBinaryLeftChild(key),
+                    TrainingCounts.getBinaryRightChild(key));
+            grammar.addBinary(rule);
+            binaryRules[i] = rule;
+            newBinaryRules.add(rule);
+        }
+        model.getCompiledGrammar().addRules(numLabels, newBinaryRules);
+
+        // parents whose symbol count changed: all their rules get a new score
+        BitSet touchedParents = new BitSet(numLabels);
+        for (TrainingCounts batch : pendingBatches) {
+            for (int label = 0; label < batch.labelIndexer.size() && label < batch.symbolCounts.length; label++) {
+                if (batch.symbolCounts[label] > 0) {
+                    touchedParents.set(labelIndexer.indexOf(batch.labelIndexer.get(label)));
+                }
+            }
+        }
+        for (int A = touchedParents.nextSetBit(0); A >= 0; A = touchedParents.nextSetBit(A + 1)) {
+            scoreRules(A);
+        }
+
+        // closed unary rules which may go through the rules scored again, and the reflexive rules of the new labels
+        BitSet sources = unaryAncestors(touchedParents);
+        sources.set(numOldLabels, numLabels);
+        List<UnaryRule> changedRules = new ArrayList<>();
+        for (int A = sources.nextSetBit(0); A >= 0; A = sources.nextSetBit(A + 1)) {
+            closeUnaryRules(A, changedRules);
+        }
+        model.getCompiledUnaryClosure().update(numLabels, changedRules, unaryClosure);
+
+        Lexicon lexicon = model.getLexicon();
+        for (TrainingCounts batch : pendingBatches) {
+            lexicon.addCounts(batch);
+            model.getCompiledLexicon().update(batch.wordIndexer);
+        }
+        model.afterUpdate();
+    }
+
+    /**
+     * Score the unary and binary rules of a parent from the counts, as the Grammar built from them does
+     */
+    private void scoreRules(int A) {
+        double symbolCount = counts.symbolCounts[A];
+        for (UnaryRule rule : grammar.getUnaryRulesByParent(A)) {
+            int i = counts.unaryCounts.indexOf(TrainingCounts.packUnary(A, rule.getChild()));
+            rule.setScore(Math.log(counts.unaryCounts.getCount(i) / symbolCount));
+        }
+        CompiledGrammar compiledGrammar = model.getCompiledGrammar();
+        for (int p = compiledGrammar.parentStart[A]; p < compiledGrammar.parentStart[A + 1]; p++) {
+            int r = compiledGrammar.rulesByParent[p];
+            int i = binaryCountIndex(A, compiledGrammar.leftChild[r], compiledGrammar.rightChild[r]);
+            double score = Math.log(counts.binaryCounts.getCount(i) / symbolCount);
+            compiledGrammar.score[r] = score;
+            binaryRules[i].setScore(score);
+        }
+    }
+
+    private int binaryCountIndex(int parent, int leftChild, int rightChild) {
+        return counts.binaryCounts.indexOf(TrainingCounts.packBinary(parent, leftChild, rightChild));
+    }
+
+    /**
+     * The parents with unary rules, and the labels which reach one of them by unary rules:
+     * the closed rules from any other label use none of their rules
+     */
+    private BitSet unaryAncestors(BitSet parents) {
+        BitSet ancestors = new BitSet();
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int A = parents.nextSetBit(0); A >= 0; A = parents.nextSetBit(A + 1)) {
+            if (!grammar.getUnaryRulesByParent(A).isEmpty()) {
+                ancestors.set(A);
+                queue.add(A);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int B = queue.poll();
+            for (UnaryRule rule : grammar.getUnaryRulesByChild(B)) {
+                if (!ancestors.get(rule.getParent())) {
+                    ancestors.set(rule.getParent());
+                    queue.add(rule.getParent());
+                }
+            }
+        }
+        return ancestors;
+    }
+
+    /**
+     * Search the best unary chains from A to every label it reaches (Dijkstra: rule scores are log
+     * probabilities, never positive), and bring the closed rules A -> ... up to date with them
+     * A reaches itself with score 0 by the empty chain, as in UnaryClosure. Scores are set in place, in the
+     * closure and in the CompiledUnaryClosure, whose rules by parent are in the same order; rules which are
+     * new, or whose path changed, are added to changedRules.
+     */
+    private void closeUnaryRules(int A, List<UnaryRule> changedRules) {
+        int numReached = 0;
+        PriorityQueue<PathEnd> queue = new PriorityQueue<>();
+        pathScores[A] = 0.0;
+        previousLabels[A] = -1;
+        reachedLabels[numReached++] = A;
+        queue.add(new PathEnd(A, 0.0));
+        while (!queue.isEmpty()) {
+            PathEnd end = queue.poll();
+            if (end.score < pathScores[end.label]) continue;
+            for (UnaryRule rule : grammar.getUnaryRulesByParent(end.label)) {
+                int C = rule.getChild();
+                double score = end.score + rule.getScore();
+                if (score > pathScores[C]) {
+                    if (pathScores[C] == Double.NEGATIVE_INFINITY) reachedLabels[numReached++] = C;
+                    pathScores[C] = score;
+                    previousLabels[C] = end.label;
+                    queue.add(new PathEnd(C, score));
+                }
+            }
+        }
+
+        // rules already closed: A reaches their child still
+        CompiledUnaryClosure compiledClosure = model.getCompiledUnaryClosure();
+        List<UnaryRule> oldRules = unaryClosure.getClosedUnaryRulesByParent(A);
+        int numOldRules = oldRules.size();
+        for (int i = 0; i < numOldRules; i++) {
+            UnaryRule rule = oldRules.get(i);
+            int C = rule.getChild();
+            int r = compiledClosure.rulesByParent[compiledClosure.parentStart[A] + i];
+            rule.setScore(pathScores[C]);
+            compiledClosure.score[r] = pathScores[C];
+            if (!isPath(A, C, compiledClosure, r)) {
+                unaryClosure.setPath(rule, getPath(A, C));
+                changedRules.add(rule);
+            }
+            closedRules[C] = rule;
+        }
+        for (int i = 0; i < numReached; i++) {
+            int C = reachedLabels[i];
+            if (closedRules[C] == null) {
+                UnaryRule rule = new UnaryRule(A, C);
+                rule.setScore(pathScores[C]);
+                unaryClosure.addRule(rule, getPath(A, C));
+                changedRules.add(rule);
+            }
+        }
+        for (int i = 0; i < numOldRules; i++) {
+            closedRules[oldRules.get(i).getChild()] = null;
+        }
+        for (int i = 0; i < numReached; i++) {
+            pathScores[reachedLabels[i]] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Labels of the chain found from A to C, from parent to child as in UnaryClosure.getPath
+     */
+    private List<Integer> getPath(int A, int C) {
+        if (A == C) return Collections.singletonList(A);
+        List<Integer> path = new ArrayList<>();
+        for (int label = C; label != -1; label = previousLabels[label]) {
+            path.add(label);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Whether the chain found from A to C goes through the labels of the path of the compiled rule r
+     */
+    private boolean isPath(int A, int C, CompiledUnaryClosure compiledClosure, int r) {
+        int i = compiledClosure.pathStart[r + 1] - 1;
+        for (int label = (A == C) ? A : previousLabels[C]; label != A; label = previousLabels[label], i--) {
+            if (i < compiledClosure.pathStart[r] || compiledClosure.pathLabels[i] != label) return false;
+        }
+        return i == compiledClosure.pathStart[r] - 1;
+    }
+
+    private void growScratch(int numLabels) {
+        int numOldLabels = pathScores.length;
+        if (numLabels <= numOldLabels) return;
+        int length = Math.max(numLabels, 2 * numOldLabels);
+        pathScores = Arrays.copyOf(pathScores, length);
+        Arrays.fill(pathScores, numOldLabels, length, Double.NEGATIVE_INFINITY);
+        previousLabels = Arrays.copyOf(previousLabels, length);
+        closedRules = Arrays.copyOf(closedRules, length);
+        reachedLabels = Arrays.copyOf(reachedLabels, length);
+    }
+
+    /**
+     * Label reached by a chain of unary rules, and the score of the chain; best scores first
+     */
+    private static class PathEnd implements Comparable<PathEnd> {
+        final int label;
+        final double score;
+
+        PathEnd(int label, double score) {
+            this.label = label;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(PathEnd other) {
+            return Double.compare(other.score, score);
+        }
+    }
+    // =========================END OF UPDATING=========================
+}
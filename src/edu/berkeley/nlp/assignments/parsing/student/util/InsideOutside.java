@@ -0,0 +1,341 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Inside-outside (sum-product) pass over the same grammar, lexicon and unary closure as the CKY parser,
+ * giving the posterior of every label over every span.
+ *
+ * Unaries are applied through the unary closure, as in CKY: each closed rule A -> B counts once with
+ * the score of its best path, so the sums over unary chains are approximated by their best chain.
+ *
+ * Inside scores are summed without a log-sum-exp per rule application: the inside probabilities of
+ * each cell are kept scaled by the best score of that cell, so for a given split all rule applications
+ * share the same scale (left cell scale + right cell scale) and are plain multiply-adds. The sum of a
+ * split is only then added to the log score of the cell with one (stable) log-sum-exp per label.
+ * The outside pass works the same way, driven by the left children present like the inside pass.
+ *
+ * Only the labels present in a cell are visited. An InsideOutside is thread safe; charts come from an
+ * internal pool and must be released.
+ */
+public class InsideOutside {
+
+    // =========================FIELDS=========================
+    private final CompiledLexicon compiledLexicon;
+    private final int numLabels;
+
+    // binary rules by left child (shared with the CompiledGrammar): rules of B are [binaryStart[B], binaryStart[B + 1])
+    private final int[] binaryStart;
+    private final int[] binaryParent;
+    private final int[] binaryRightChild;
+    private final double[] binaryProbability;
+
+    // closed unary rules by child and by parent (shared with the CompiledUnaryClosure), same layout
+    private final int[] unaryByChildStart;
+    private final int[] unaryByChildParent;
+    private final double[] unaryByChildProbability;
+    private final int[] unaryByParentStart;
+    private final int[] unaryByParentChild;
+    private final double[] unaryByParentProbability;
+
+    private final ConcurrentLinkedDeque<InsideOutsideChart> idleCharts = new ConcurrentLinkedDeque<>();
+    // =========================END OF FIELDS=========================
+
+    // =========================CONSTRUCTOR=========================
+    public InsideOutside(ParserModel model) {
+        this.compiledLexicon = model.getCompiledLexicon();
+        this.numLabels = model.getNumNonTerminals();
+
+        CompiledGrammar compiledGrammar = model.getCompiledGrammar();
+        binaryStart = compiledGrammar.leftChildStart;
+        binaryParent = compiledGrammar.parent;
+        binaryRightChild = compiledGrammar.rightChild;
+        binaryProbability = new double[compiledGrammar.numBinaryRules];
+        for (int r = 0; r < binaryProbability.length; r++) {
+            binaryProbability[r] = Math.exp(compiledGrammar.score[r]);
+        }
+
+        CompiledUnaryClosure unaryClosure = model.getCompiledUnaryClosure();
+        unaryByChildStart = unaryClosure.childStart;
+        unaryByChildParent = unaryClosure.parent;
+        unaryByChildProbability = new double[unaryClosure.numRules];
+        for (int r = 0; r < unaryClosure.numRules; r++) {
+            unaryByChildProbability[r] = Math.exp(unaryClosure.score[r]);
+        }
+        unaryByParentStart = unaryClosure.parentStart;
+        unaryByParentChild = new int[unaryClosure.numRules];
+        unaryByParentProbability = new double[unaryClosure.numRules];
+        for (int u = 0; u < unaryClosure.numRules; u++) {
+            int r = unaryClosure.rulesByParent[u];
+            unaryByParentChild[u] = unaryClosure.child[r];
+            unaryByParentProbability[u] = unaryByChildProbability[r];
+        }
+    }
+    // =========================END OF CONSTRUCTOR=========================
+
+    /**
+     * Inside and outside scores of the sentence; the chart must be given back with release()
+     */
+    public InsideOutsideChart compute(List<String> sentence) {
+        return compute(sentence, null);
+    }
+
+    /**
+     * Same as compute(sentence), summing only over the items allowed by the constraint
+     */
+    public InsideOutsideChart compute(List<String> sentence, ChartConstraint constraint) {
+        InsideOutsideChart chart = idleCharts.pollFirst();
+        if (chart == null) {
+            chart = new InsideOutsideChart(numLabels);
+        }
+        chart.reset(sentence.size());
+        inside(sentence, chart, constraint);
+        if (chart.hasParse()) {
+            outside(chart);
+        }
+        return chart;
+    }
+
+    public void release(InsideOutsideChart chart) {
+        idleCharts.offerFirst(chart);
+    }
+
+    // =========================INSIDE=========================
+    private void inside(List<String> sentence, InsideOutsideChart chart, ChartConstraint constraint) {
+        CKYChart inside = chart.inside;
+        int n = sentence.size();
+        if (n == 0) return;
+
+        for (int i = 0; i < n; i++) {
+            if (constraint != null && !constraint.isCellOpen(i, i + 1)) continue;
+            int wordId = compiledLexicon.getWordId(sentence.get(i));
+            int[] tags = compiledLexicon.getTags(wordId);
+            double[] tagScores = compiledLexicon.getScores(wordId);
+            for (int t = 0; t < tags.length; t++) {
+                if (constraint != null && !constraint.isAllowed(i, i + 1, tags[t])) continue;
+                inside.setBinaryScore(i, i + 1, tags[t], tagScores[t]);
+            }
+            insideUnaries(chart, i, i + 1, constraint);
+        }
+
+        double[] sum = chart.scratch;
+        int[] touched = chart.touched;
+        for (int span = 2; span <= n; span++) {
+            for (int begin = 0; begin <= n - span; begin++) {
+                int end = begin + span;
+                if (constraint != null && !constraint.isCellOpen(begin, end)) continue;
+                for (int split = begin + 1; split < end; split++) {
+                    int leftCell = inside.cell(begin, split);
+                    int rightCell = inside.cell(split, end);
+                    double leftScale = chart.cellScale[leftCell];
+                    double rightScale = chart.cellScale[rightCell];
+                    if (leftScale == Double.NEGATIVE_INFINITY || rightScale == Double.NEGATIVE_INFINITY) continue;
+                    int leftOffset = leftCell * numLabels;
+                    int rightOffset = rightCell * numLabels;
+
+                    int numTouched = 0;
+                    for (int l = 0; l < inside.numUnaryLabels[leftCell]; l++) {
+                        int B = inside.unaryLabels[leftOffset + l];
+                        double leftProbability = chart.scaledInside[leftOffset + B];
+                        if (leftProbability == 0.0) continue;
+                        for (int r = binaryStart[B]; r < binaryStart[B + 1]; r++) {
+                            double rightProbability = chart.scaledInside[rightOffset + binaryRightChild[r]];
+                            if (rightProbability == 0.0) continue;
+                            double product = leftProbability * rightProbability * binaryProbability[r];
+                            if (product == 0.0) continue; // underflow: would touch A again
+                            int A = binaryParent[r];
+                            if (sum[A] == 0.0) {
+                                if (constraint != null && !constraint.isAllowed(begin, end, A)) continue;
+                                touched[numTouched++] = A;
+                            }
+                            sum[A] += product;
+                        }
+                    }
+
+                    // one log-sum-exp per label and split
+                    double scale = leftScale + rightScale;
+                    for (int t = 0; t < numTouched; t++) {
+                        int A = touched[t];
+                        double score = Math.log(sum[A]) + scale;
+                        sum[A] = 0.0;
+                        inside.setBinaryScore(begin, end, A, logAdd(inside.getBinaryScore(begin, end, A), score));
+                    }
+                }
+                insideUnaries(chart, begin, end, constraint);
+            }
+        }
+        chart.logZ = inside.getUnaryScore(0, n, 0);
+    }
+
+    /**
+     * Inside scores after unaries of a cell from the ones before, then its scaled probabilities
+     */
+    private void insideUnaries(InsideOutsideChart chart, int begin, int end, ChartConstraint constraint) {
+        CKYChart inside = chart.inside;
+        int cell = inside.cell(begin, end);
+        int offset = cell * numLabels;
+        int numBinaryLabels = inside.numBinaryLabels[cell];
+        if (numBinaryLabels == 0) return;
+
+        double binaryScale = Double.NEGATIVE_INFINITY;
+        for (int l = 0; l < numBinaryLabels; l++) {
+            binaryScale = Math.max(binaryScale, inside.binaryScore[offset + inside.binaryLabels[offset + l]]);
+        }
+        double[] sum = chart.scratch;
+        int[] touched = chart.touched;
+        int numTouched = 0;
+        for (int l = 0; l < numBinaryLabels; l++) {
+            int B = inside.binaryLabels[offset + l];
+            double probability = Math.exp(inside.binaryScore[offset + B] - binaryScale);
+            if (probability == 0.0) continue;
+            for (int u = unaryByChildStart[B]; u < unaryByChildStart[B + 1]; u++) {
+                double product = probability * unaryByChildProbability[u];
+                if (product == 0.0) continue;
+                int A = unaryByChildParent[u];
+                if (sum[A] == 0.0) {
+                    if (constraint != null && !constraint.isAllowed(begin, end, A)) continue;
+                    touched[numTouched++] = A;
+                }
+                sum[A] += product;
+            }
+        }
+
+        double cellScale = Double.NEGATIVE_INFINITY;
+        for (int t = 0; t < numTouched; t++) {
+            int A = touched[t];
+            double score = Math.log(sum[A]) + binaryScale;
+            sum[A] = 0.0;
+            inside.setUnary(begin, end, A, score, -1);
+            cellScale = Math.max(cellScale, score);
+        }
+        chart.cellScale[cell] = cellScale;
+        for (int t = 0; t < numTouched; t++) {
+            int A = touched[t];
+            chart.scaledInside[offset + A] = Math.exp(inside.unaryScore[offset + A] - cellScale);
+        }
+    }
+    // =========================END OF INSIDE=========================
+
+    // =========================OUTSIDE=========================
+    private void outside(InsideOutsideChart chart) {
+        CKYChart inside = chart.inside;
+        int n = inside.length;
+        chart.outsideScore[inside.offset(0, n)] = 0.0; // ROOT
+
+        double[] parentProbability = chart.scratch;
+        double[] rightSum = chart.scratch2;
+        int[] touched = chart.touched;
+        for (int span = n; span >= 1; span--) {
+            for (int begin = 0; begin <= n - span; begin++) {
+                int end = begin + span;
+                int cell = inside.cell(begin, end);
+                int offset = cell * numLabels;
+
+                // A -> B in the unary closure: from the layer after unaries to the one before
+                double outsideScale = Double.NEGATIVE_INFINITY;
+                for (int l = 0; l < inside.numUnaryLabels[cell]; l++) {
+                    outsideScale = Math.max(outsideScale, chart.outsideScore[offset + inside.unaryLabels[offset + l]]);
+                }
+                if (outsideScale == Double.NEGATIVE_INFINITY) continue;
+                double binaryOutsideScale = unaryOutside(chart, cell, outsideScale);
+                if (span == 1 || binaryOutsideScale == Double.NEGATIVE_INFINITY) continue;
+
+                // A -> B C: from the layer before unaries to both children, after their unaries
+                for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+                    int A = inside.binaryLabels[offset + l];
+                    parentProbability[A] = Math.exp(chart.outsideBinaryScore[offset + A] - binaryOutsideScale);
+                }
+                for (int split = begin + 1; split < end; split++) {
+                    int leftCell = inside.cell(begin, split);
+                    int rightCell = inside.cell(split, end);
+                    double leftScale = chart.cellScale[leftCell];
+                    double rightScale = chart.cellScale[rightCell];
+                    if (leftScale == Double.NEGATIVE_INFINITY || rightScale == Double.NEGATIVE_INFINITY) continue;
+                    int leftOffset = leftCell * numLabels;
+                    int rightOffset = rightCell * numLabels;
+
+                    int numTouched = 0;
+                    for (int l = 0; l < inside.numUnaryLabels[leftCell]; l++) {
+                        int B = inside.unaryLabels[leftOffset + l];
+                        double leftProbability = chart.scaledInside[leftOffset + B];
+                        if (leftProbability == 0.0) continue;
+                        double leftSum = 0.0;
+                        for (int r = binaryStart[B]; r < binaryStart[B + 1]; r++) {
+                            double outsideProbability = parentProbability[binaryParent[r]];
+                            if (outsideProbability == 0.0) continue;
+                            int C = binaryRightChild[r];
+                            double rightProbability = chart.scaledInside[rightOffset + C];
+                            if (rightProbability == 0.0) continue;
+                            double probability = outsideProbability * binaryProbability[r];
+                            leftSum += probability * rightProbability;
+                            double rightProduct = probability * leftProbability;
+                            if (rightProduct == 0.0) continue;
+                            if (rightSum[C] == 0.0) touched[numTouched++] = C;
+                            rightSum[C] += rightProduct;
+                        }
+                        if (leftSum > 0.0) {
+                            int index = leftOffset + B;
+                            chart.outsideScore[index] = logAdd(chart.outsideScore[index],
+                                    Math.log(leftSum) + binaryOutsideScale + rightScale);
+                        }
+                    }
+                    for (int t = 0; t < numTouched; t++) {
+                        int C = touched[t];
+                        int index = rightOffset + C;
+                        chart.outsideScore[index] = logAdd(chart.outsideScore[index],
+                                Math.log(rightSum[C]) + binaryOutsideScale + leftScale);
+                        rightSum[C] = 0.0;
+                    }
+                }
+                for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+                    parentProbability[inside.binaryLabels[offset + l]] = 0.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Outside scores before unaries of a cell from the ones after
+     * @return the best outside score before unaries of the cell
+     */
+    private double unaryOutside(InsideOutsideChart chart, int cell, double outsideScale) {
+        CKYChart inside = chart.inside;
+        int offset = cell * numLabels;
+        double[] sum = chart.scratch;
+        for (int l = 0; l < inside.numUnaryLabels[cell]; l++) {
+            int A = inside.unaryLabels[offset + l];
+            double probability = Math.exp(chart.outsideScore[offset + A] - outsideScale);
+            if (probability == 0.0) continue;
+            for (int u = unaryByParentStart[A]; u < unaryByParentStart[A + 1]; u++) {
+                int B = unaryByParentChild[u];
+                if (inside.binaryScore[offset + B] == Double.NEGATIVE_INFINITY) continue;
+                double product = probability * unaryByParentProbability[u];
+                if (product == 0.0) continue;
+                sum[B] += product;
+            }
+        }
+        double binaryOutsideScale = Double.NEGATIVE_INFINITY;
+        for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+            int B = inside.binaryLabels[offset + l];
+            if (sum[B] > 0.0) {
+                double score = Math.log(sum[B]) + outsideScale;
+                chart.outsideBinaryScore[offset + B] = score;
+                binaryOutsideScale = Math.max(binaryOutsideScale, score);
+                sum[B] = 0.0;
+            }
+        }
+        return binaryOutsideScale;
+    }
+    // =========================END OF OUTSIDE=========================
+
+    /**
+     * log(exp(a) + exp(b)), without overflow / underflow
+     */
+    public static double logAdd(double a, double b) {
+        if (a == Double.NEGATIVE_INFINITY) return b;
+        if (b == Double.NEGATIVE_INFINITY) return a;
+        if (a > b) return a + Math.log1p(Math.exp(b - a));
+        return b + Math.log1p(Math.exp(a - b));
+    }
+}
@@ -0,0 +1,161 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import java.util.Arrays;
+
+/**
+ * Inside and outside log scores of one sentence, filled by InsideOutside.
+ *
+ * The inside scores live in a CKYChart (same triangular layout and per-cell label lists, back
+ * pointers unused): unaryScore is the inside score after unaries, binaryScore before unaries.
+ * The outside scores of both layers are kept in arrays with the same layout.
+ * Besides the log scores, the inside scores after unaries are also kept as probabilities scaled
+ * by the best score of their cell, which is what the sum-product loops multiply.
+ *
+ * Like CKYChart, a chart is reused across sentences and reset() only clears what the previous
+ * sentence filled.
+ */
+public class InsideOutsideChart {
+    public final int numLabels;
+    public final CKYChart inside;
+
+    public double[] outsideScore;        // after unaries
+    public double[] outsideBinaryScore;  // before unaries
+    // exp(inside after unaries - cellScale[cell])
+    public double[] scaledInside;
+    public double[] cellScale;
+
+    // log partition function: inside score of ROOT over the whole sentence
+    public double logZ = Double.NEGATIVE_INFINITY;
+
+    // per-cell scratch space of the sum-product loops, always left zeroed
+    final double[] scratch;
+    final double[] scratch2;
+    final int[] touched;
+
+    public InsideOutsideChart(int numLabels) {
+        this.numLabels = numLabels;
+        this.inside = new CKYChart(numLabels);
+        this.scratch = new double[numLabels];
+        this.scratch2 = new double[numLabels];
+        this.touched = new int[numLabels];
+        allocate();
+    }
+
+    public void reset(int length) {
+        clear();
+        int oldCapacity = inside.capacity;
+        inside.reset(length);
+        if (inside.capacity != oldCapacity) {
+            allocate();
+        }
+        logZ = Double.NEGATIVE_INFINITY;
+    }
+
+    private void allocate() {
+        int numCells = inside.capacity * (inside.capacity + 1) / 2;
+        outsideScore = new double[numCells * numLabels];
+        outsideBinaryScore = new double[numCells * numLabels];
+        scaledInside = new double[numCells * numLabels];
+        cellScale = new double[numCells];
+        Arrays.fill(outsideScore, Double.NEGATIVE_INFINITY);
+        Arrays.fill(outsideBinaryScore, Double.NEGATIVE_INFINITY);
+        Arrays.fill(cellScale, Double.NEGATIVE_INFINITY);
+    }
+
+    private void clear() {
+        int n = inside.length;
+        for (int begin = 0; begin < n; begin++) {
+            for (int end = begin + 1; end <= n; end++) {
+                int cell = inside.cell(begin, end);
+                int offset = cell * numLabels;
+                for (int l = 0; l < inside.numUnaryLabels[cell]; l++) {
+                    int label = inside.unaryLabels[offset + l];
+                    outsideScore[offset + label] = Double.NEGATIVE_INFINITY;
+                    scaledInside[offset + label] = 0.0;
+                }
+                for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+                    outsideBinaryScore[offset + inside.binaryLabels[offset + l]] = Double.NEGATIVE_INFINITY;
+                }
+                cellScale[cell] = Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
+    // =========================ACCESSORS=========================
+    public int length() {
+        return inside.length;
+    }
+
+    public boolean hasParse() {
+        return logZ != Double.NEGATIVE_INFINITY;
+    }
+
+    public double getLogPartition() {
+        return logZ;
+    }
+
+    /**
+     * Number of labels with a non-zero inside score over [begin, end] (after unaries)
+     */
+    public int getNumLabels(int begin, int end) {
+        return inside.numUnaryLabels[inside.cell(begin, end)];
+    }
+
+    /**
+     * k-th label with a non-zero inside score over [begin, end] (after unaries), 0 <= k < getNumLabels
+     */
+    public int getLabel(int begin, int end, int k) {
+        return inside.unaryLabels[inside.offset(begin, end) + k];
+    }
+
+    public int getNumBinaryLabels(int begin, int end) {
+        return inside.numBinaryLabels[inside.cell(begin, end)];
+    }
+
+    public int getBinaryLabel(int begin, int end, int k) {
+        return inside.binaryLabels[inside.offset(begin, end) + k];
+    }
+
+    public double getInsideScore(int begin, int end, int label) {
+        return inside.unaryScore[inside.offset(begin, end) + label];
+    }
+
+    public double getOutsideScore(int begin, int end, int label) {
+        return outsideScore[inside.offset(begin, end) + label];
+    }
+
+    public double getBinaryInsideScore(int begin, int end, int label) {
+        return inside.binaryScore[inside.offset(begin, end) + label];
+    }
+
+    public double getBinaryOutsideScore(int begin, int end, int label) {
+        return outsideBinaryScore[inside.offset(begin, end) + label];
+    }
+
+    /**
+     * Log posterior of label spanning [begin, end] (after unaries, i.e. as the child of a binary
+     * rule or as the root), or NEGATIVE_INFINITY
+     */
+    public double getLogPosterior(int begin, int end, int label) {
+        int index = inside.offset(begin, end) + label;
+        return inside.unaryScore[index] + outsideScore[index] - logZ;
+    }
+
+    /**
+     * Log posterior of label spanning [begin, end] before unaries (i.e. as the parent of a binary
+     * rule, or as the tag of a word)
+     */
+    public double getBinaryLogPosterior(int begin, int end, int label) {
+        int index = inside.offset(begin, end) + label;
+        return inside.binaryScore[index] + outsideBinaryScore[index] - logZ;
+    }
+
+    public double getPosterior(int begin, int end, int label) {
+        return hasParse() ? Math.exp(getLogPosterior(begin, end, label)) : 0.0;
+    }
+
+    public double getBinaryPosterior(int begin, int end, int label) {
+        return hasParse() ? Math.exp(getBinaryLogPosterior(begin, end, label)) : 0.0;
+    }
+    // =========================END OF ACCESSORS=========================
+}
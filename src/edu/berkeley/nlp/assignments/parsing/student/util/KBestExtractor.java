@@ -0,0 +1,350 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.ling.Tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Lazy k-best extraction over a filled CKYChart (Huang & Chiang 2005, Algorithm 3).
+ *
+ * The chart is a hypergraph with two nodes per (label, span), one per layer: a label after unaries
+ * is built by a closed unary rule (the reflexive one included) from a label before unaries, and a
+ * label before unaries by a binary rule and a split from two labels after unaries, or from the lexicon
+ * over one word. The derivations of a node are only enumerated when a derivation of a parent asks for
+ * its second best: its incoming edges are then scored with the Viterbi scores of the chart and queued,
+ * and the next derivations are popped from that queue, each pop queueing the successors of the last
+ * one (next derivation of one tail). Successors of binary edges are queued in a fixed order
+ * ((i, j) from (i, j - 1), and (i, 1) from (i - 1, 1)), so no edge is queued twice.
+ *
+ * The first derivation of every node is the one of the chart back pointers (ties go to it), so the
+ * best parse is exactly the one of the backtrace. Trees are built by ChartTreeBuilder, over the chart
+ * back pointers with the ones of the nodes off their best derivation overridden.
+ *
+ * Derivations are over the annotated grammar, and several of them can give the same unannotated tree:
+ * extract skips the trees it already returned, and gives up after MAX_DERIVATIONS_PER_PARSE * k derivations.
+ * The score of a tree is the one of its best derivation.
+ *
+ * Thread safe: each extraction has its own search state.
+ */
+public class KBestExtractor {
+
+    // =========================FIELDS=========================
+    public static final int MAX_DERIVATIONS_PER_PARSE = 20;
+
+    private static final int UNARY = 0;
+    private static final int BINARY = 1;
+
+    private final CompiledGrammar grammar;
+    private final CompiledUnaryClosure unaryClosure;
+    private final ChartTreeBuilder treeBuilder;
+    private final int numLabels;
+    // =========================END OF FIELDS=========================
+
+    public KBestExtractor(CompiledGrammar grammar, CompiledUnaryClosure unaryClosure, ChartTreeBuilder treeBuilder) {
+        this.grammar = grammar;
+        this.unaryClosure = unaryClosure;
+        this.treeBuilder = treeBuilder;
+        this.numLabels = unaryClosure.numLabels;
+    }
+
+    /**
+     * Unannotated tree and the score of its best derivation
+     */
+    public static class ScoredParse {
+        private final Tree<String> tree;
+        private final double score;
+
+        ScoredParse(Tree<String> tree, double score) {
+            this.tree = tree;
+            this.score = score;
+        }
+
+        public Tree<String> getTree() {
+            return tree;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * Best k distinct unannotated trees of ROOT over the sentence, best first
+     * @param chart filled by CKY for the sentence, left unchanged
+     * @return fewer than k parses when the chart has fewer, none when ROOT was not built
+     */
+    public List<ScoredParse> extract(CKYChart chart, List<String> sentence, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Number of parses must be positive, not " + k);
+        }
+        List<ScoredParse> parses = new ArrayList<>(k);
+        int n = sentence.size();
+        if (n == 0 || !chart.hasUnary(0, n, 0)) return parses;
+
+        Search search = new Search(chart);
+        Node root = search.node(UNARY, 0, 0, n);
+        Set<String> seen = new HashSet<>();
+        long maxDerivations = (long) k * MAX_DERIVATIONS_PER_PARSE;
+        for (int rank = 1; rank <= maxDerivations && parses.size() < k && search.ensure(root, rank); rank++) {
+            Tree<String> tree = search.buildTree(root, rank, sentence);
+            if (seen.add(tree.toString())) {
+                parses.add(new ScoredParse(tree, root.getScore(rank)));
+            }
+        }
+        return parses;
+    }
+
+    // =========================SEARCH=========================
+    /**
+     * Derivation of a node: its incoming edge (a rule, and a split for binaries) and the rank of the
+     * derivation of each tail, from 1. Ordered best first, ties to the chart back pointer.
+     */
+    private static final class Derivation implements Comparable<Derivation> {
+        final int rule;
+        final int split;
+        final int leftRank;
+        final int rightRank;
+        final double score;
+        final boolean viterbi;
+
+        Derivation(int rule, int split, int leftRank, int rightRank, double score, boolean viterbi) {
+            this.rule = rule;
+            this.split = split;
+            this.leftRank = leftRank;
+            this.rightRank = rightRank;
+            this.score = score;
+            this.viterbi = viterbi;
+        }
+
+        public int compareTo(Derivation other) {
+            int c = Double.compare(other.score, score);
+            if (c != 0) return c;
+            if (viterbi != other.viterbi) return viterbi ? -1 : 1;
+            if (rule != other.rule) return Integer.compare(rule, other.rule);
+            if (split != other.split) return Integer.compare(split, other.split);
+            if (leftRank != other.leftRank) return Integer.compare(leftRank, other.leftRank);
+            return Integer.compare(rightRank, other.rightRank);
+        }
+    }
+
+    /**
+     * Label over [begin, end] in one layer of the chart
+     * Its best derivation is the one of the chart until the node is expanded, then derivations[0]
+     */
+    private static final class Node {
+        final int layer;
+        final int label;
+        final int begin;
+        final int end;
+        final double viterbiScore;
+        final List<Derivation> derivations = new ArrayList<>(2);
+        // null until the node is expanded
+        PriorityQueue<Derivation> candidates;
+        // last derivation popped, its successors not queued yet
+        Derivation pending;
+
+        Node(int layer, int label, int begin, int end, double viterbiScore) {
+            this.layer = layer;
+            this.label = label;
+            this.begin = begin;
+            this.end = end;
+            this.viterbiScore = viterbiScore;
+        }
+
+        double getScore(int rank) {
+            return (rank == 1) ? viterbiScore : derivations.get(rank - 1).score;
+        }
+    }
+
+    /**
+     * Nodes expanded for one chart, and the back pointers of the derivation being built
+     */
+    private final class Search implements ChartBackPointers {
+        final CKYChart chart;
+        final Map<Long, Node> nodes = new HashMap<>();
+        // [end-major cell] => overridden label and back pointer, label -1 for none
+        final int[] unaryLabel;
+        final int[] unaryChild;
+        final int[] binaryLabel;
+        final long[] binaryPointer;
+
+        Search(CKYChart chart) {
+            this.chart = chart;
+            int numCells = chart.length * (chart.length + 1) / 2;
+            this.unaryLabel = new int[numCells];
+            this.unaryChild = new int[numCells];
+            this.binaryLabel = new int[numCells];
+            this.binaryPointer = new long[numCells];
+            Arrays.fill(unaryLabel, -1);
+            Arrays.fill(binaryLabel, -1);
+        }
+
+        Node node(int layer, int label, int begin, int end) {
+            long key = (((long) chart.cellByEnd(begin, end) * numLabels + label) << 1) | layer;
+            Node node = nodes.get(key);
+            if (node == null) {
+                double score = (layer == UNARY) ? chart.getUnaryScore(begin, end, label) : chart.getBinaryScore(begin, end, label);
+                node = new Node(layer, label, begin, end, score);
+                nodes.put(key, node);
+            }
+            return node;
+        }
+
+        /**
+         * Make sure the node has its derivation of the given rank, if it has that many
+         * Recurses into the tails of the derivations, so at most twice the sentence length deep
+         */
+        boolean ensure(Node node, int rank) {
+            if (rank == 1) return true;
+            // tags over one word only come from the lexicon
+            if (node.layer == BINARY && node.end == node.begin + 1) return false;
+            if (node.candidates == null) expand(node);
+            while (node.derivations.size() < rank) {
+                if (node.pending != null) {
+                    queueSuccessors(node, node.pending);
+                    node.pending = null;
+                }
+                Derivation derivation = node.candidates.poll();
+                if (derivation == null) return false;
+                if (node.derivations.isEmpty() && !derivation.viterbi) {
+                    throw new IllegalStateException("Best derivation of " + node.label + " over [" + node.begin + ", "
+                            + node.end + "] is not the one of the chart");
+                }
+                node.derivations.add(derivation);
+                node.pending = derivation;
+            }
+            return true;
+        }
+
+        /**
+         * Queue every incoming edge of the node with the best derivations of its tails
+         */
+        private void expand(Node node) {
+            int A = node.label;
+            int begin = node.begin;
+            int end = node.end;
+            List<Derivation> edges = new ArrayList<>();
+            if (node.layer == UNARY) {
+                // -1 for a tag over its word: the reflexive rule
+                int viterbiChild = chart.getUniBackPointer(begin, end, A);
+                if (viterbiChild < 0) viterbiChild = A;
+                for (int i = unaryClosure.parentStart[A]; i < unaryClosure.parentStart[A + 1]; i++) {
+                    int r = unaryClosure.rulesByParent[i];
+                    double scoreB = chart.getBinaryScore(begin, end, unaryClosure.child[r]);
+                    if (scoreB == Double.NEGATIVE_INFINITY) continue;
+                    edges.add(new Derivation(r, 0, 1, 1, unaryClosure.score[r] + scoreB, unaryClosure.child[r] == viterbiChild));
+                }
+            } else {
+                long backPointer = chart.getBiBackPointer(begin, end, A);
+                for (int i = grammar.parentStart[A]; i < grammar.parentStart[A + 1]; i++) {
+                    int r = grammar.rulesByParent[i];
+                    int B = grammar.leftChild[r];
+                    int C = grammar.rightChild[r];
+                    boolean viterbiRule = B == CKYChart.getLeftChild(backPointer) && C == CKYChart.getRightChild(backPointer);
+                    for (int split = begin + 1; split < end; split++) {
+                        double leftScore = chart.getUnaryScore(begin, split, B);
+                        if (leftScore == Double.NEGATIVE_INFINITY) continue;
+                        double rightScore = chart.getUnaryScore(split, end, C);
+                        if (rightScore == Double.NEGATIVE_INFINITY) continue;
+                        // summed in the order of CKY, so the chart derivation scores exactly the chart score
+                        edges.add(new Derivation(r, split, 1, 1, leftScore + rightScore + grammar.score[r],
+                                viterbiRule && split == CKYChart.getSplit(backPointer)));
+                    }
+                }
+            }
+            node.candidates = new PriorityQueue<>(edges);
+        }
+
+        private void queueSuccessors(Node node, Derivation derivation) {
+            int r = derivation.rule;
+            if (node.layer == UNARY) {
+                Node tail = node(BINARY, unaryClosure.child[r], node.begin, node.end);
+                int rank = derivation.leftRank + 1;
+                if (ensure(tail, rank)) {
+                    node.candidates.add(new Derivation(r, 0, rank, 1, unaryClosure.score[r] + tail.getScore(rank), false));
+                }
+                return;
+            }
+            int split = derivation.split;
+            Node left = node(UNARY, grammar.leftChild[r], node.begin, split);
+            Node right = node(UNARY, grammar.rightChild[r], split, node.end);
+            int leftRank = derivation.leftRank;
+            int rightRank = derivation.rightRank;
+            if (ensure(right, rightRank + 1)) {
+                node.candidates.add(new Derivation(r, split, leftRank, rightRank + 1,
+                        left.getScore(leftRank) + right.getScore(rightRank + 1) + grammar.score[r], false));
+            }
+            if (rightRank == 1 && ensure(left, leftRank + 1)) {
+                node.candidates.add(new Derivation(r, split, leftRank + 1, 1,
+                        left.getScore(leftRank + 1) + right.getScore(1) + grammar.score[r], false));
+            }
+        }
+
+        /**
+         * Unannotated tree of a derivation of the node: the back pointers of the nodes of the derivation
+         * which are not on their best one are overridden while the tree is built
+         */
+        Tree<String> buildTree(Node root, int rank, List<String> sentence) {
+            List<Integer> cells = new ArrayList<>();
+            List<Node> stack = new ArrayList<>();
+            int[] ranks = push(stack, new int[16], root, rank);
+            while (!stack.isEmpty()) {
+                Node node = stack.remove(stack.size() - 1);
+                Derivation derivation = node.derivations.get(ranks[stack.size()] - 1);
+                int cell = chart.cellByEnd(node.begin, node.end);
+                cells.add(cell);
+                int r = derivation.rule;
+                if (node.layer == UNARY) {
+                    int child = unaryClosure.child[r];
+                    unaryLabel[cell] = node.label;
+                    // a tag over its word has no unary back pointer
+                    unaryChild[cell] = (child == node.label && node.end == node.begin + 1) ? -1 : child;
+                    ranks = push(stack, ranks, node(BINARY, child, node.begin, node.end), derivation.leftRank);
+                } else {
+                    binaryLabel[cell] = node.label;
+                    binaryPointer[cell] = CKYChart.packBinaryBackPointer(derivation.split, grammar.leftChild[r],
+                            grammar.rightChild[r]);
+                    ranks = push(stack, ranks, node(UNARY, grammar.leftChild[r], node.begin, derivation.split),
+                            derivation.leftRank);
+                    ranks = push(stack, ranks, node(UNARY, grammar.rightChild[r], derivation.split, node.end),
+                            derivation.rightRank);
+                }
+            }
+            Tree<String> tree = treeBuilder.buildTree(this, sentence, root.label, root.begin, root.end);
+            for (int cell : cells) {
+                unaryLabel[cell] = -1;
+                binaryLabel[cell] = -1;
+            }
+            return tree;
+        }
+
+        /**
+         * Push a tail of a derivation to override, unless it is on its best derivation (that of the chart)
+         */
+        private int[] push(List<Node> stack, int[] ranks, Node node, int rank) {
+            if (rank == 1) return ranks;
+            if (stack.size() == ranks.length) ranks = Arrays.copyOf(ranks, 2 * ranks.length);
+            ranks[stack.size()] = rank;
+            stack.add(node);
+            return ranks;
+        }
+
+        public int getUniBackPointer(int begin, int end, int label) {
+            int cell = chart.cellByEnd(begin, end);
+            return (unaryLabel[cell] == label) ? unaryChild[cell] : chart.getUniBackPointer(begin, end, label);
+        }
+
+        public long getBiBackPointer(int begin, int end, int label) {
+            int cell = chart.cellByEnd(begin, end);
+            return (binaryLabel[cell] == label) ? binaryPointer[cell] : chart.getBiBackPointer(begin, end, label);
+        }
+    }
+    // =========================END OF SEARCH=========================
+}
@@ -0,0 +1,35 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+/**
+ * Maps an annotated (markovized) label to the symbol it stands for in a coarser grammar
+ */
+public interface LabelProjection {
+
+    String project(String label);
+
+    /**
+     * X-bar projection: drops all the vertical and horizontal context, but keeps intermediate
+     * symbols apart from complete constituents.
+     * E.g. NP^S => NP, @NP^S->..._DT_JJ => @NP, NN^NP => NN
+     */
+    LabelProjection X_BAR = new LabelProjection() {
+        public String project(String label) {
+            if (label.startsWith("@")) {
+                return "@" + baseLabel(label.substring(1));
+            }
+            return baseLabel(label);
+        }
+    };
+
+    /**
+     * Cuts anything after the base symbol, as Trees.LabelNormalizer does
+     */
+    static String baseLabel(String label) {
+        int index = -1;
+        for (String delim : new String[] { "=", "<", ">", "^", "_", "->" }) {
+            final int currIndex = label.indexOf(delim);
+            index = index < 0 ? currIndex : (currIndex < 0 ? index : Math.min(currIndex, index));
+        }
+        return index < 0 ? label : label.substring(0, index);
+    }
+}
@@ -0,0 +1,100 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * State of a LatentAnnotationTrainer between two steps, and its binary file format: everything EM needs
+ * to go on over the same training trees, but not the trees nor their counts.
+ *
+ * Header as ParserModelFile (magic, version, payload length and CRC32), then: the base labels, the
+ * number of sub-symbols of each, the numbers of splits and EM iterations done, the seed, and the flat
+ * parameter arrays (binary and unary sub-rule probabilities, expected tagging counts) with the number
+ * of base rules and taggings they were laid out for. Files are written through a temporary file, so a
+ * crash while checkpointing leaves the previous checkpoint in place.
+ */
+class LatentAnnotationCheckpoint {
+    static final int MAGIC = 0x434b594c; // "CKYL"
+    static final int FORMAT_VERSION = 1;
+
+    // =========================FIELDS=========================
+    final List<String> labels;
+    final int[] numSubstates;
+    final int numSplits;
+    final int iterationsSinceSplit;
+    final int numIterations;
+    final long seed;
+    final int numBinaryRules;
+    final int numUnaryRules;
+    final int numTaggings;
+    final double[] binaryProbability;
+    final double[] unaryProbability;
+    final double[] taggingCount;
+    // =========================END OF FIELDS=========================
+
+    LatentAnnotationCheckpoint(List<String> labels, int[] numSubstates, int numSplits, int iterationsSinceSplit,
+                               int numIterations, long seed, int numBinaryRules, int numUnaryRules, int numTaggings,
+                               double[] binaryProbability, double[] unaryProbability, double[] taggingCount) {
+        this.labels = labels;
+        this.numSubstates = numSubstates;
+        this.numSplits = numSplits;
+        this.iterationsSinceSplit = iterationsSinceSplit;
+        this.numIterations = numIterations;
+        this.seed = seed;
+        this.numBinaryRules = numBinaryRules;
+        this.numUnaryRules = numUnaryRules;
+        this.numTaggings = numTaggings;
+        this.binaryProbability = binaryProbability;
+        this.unaryProbability = unaryProbability;
+        this.taggingCount = taggingCount;
+    }
+
+    void write(Path path) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ParserModelFile.writeStrings(out, labels);
+        for (int substates : numSubstates) out.writeInt(substates);
+        out.writeInt(numSplits);
+        out.writeInt(iterationsSinceSplit);
+        out.writeInt(numIterations);
+        out.writeLong(seed);
+        out.writeInt(numBinaryRules);
+        out.writeInt(numUnaryRules);
+        out.writeInt(numTaggings);
+        writeDoubles(out, binaryProbability);
+        writeDoubles(out, unaryProbability);
+        writeDoubles(out, taggingCount);
+        out.flush();
+        ParserModelFile.writeFile(path, MAGIC, FORMAT_VERSION, bytes.toByteArray());
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) out.writeDouble(value);
+    }
+
+    /**
+     * @throws IOException if the file is not a checkpoint of a supported version, or is truncated or corrupted
+     */
+    static LatentAnnotationCheckpoint read(Path path) throws IOException {
+        ByteBuffer buffer = ParserModelFile.readFile(path, MAGIC, FORMAT_VERSION, "latent annotation checkpoint");
+        List<String> labels = ParserModelFile.readStrings(buffer);
+        int[] numSubstates = ParserModelFile.readInts(buffer, labels.size());
+        int numSplits = buffer.getInt();
+        int iterationsSinceSplit = buffer.getInt();
+        int numIterations = buffer.getInt();
+        long seed = buffer.getLong();
+        int numBinaryRules = buffer.getInt();
+        int numUnaryRules = buffer.getInt();
+        int numTaggings = buffer.getInt();
+        double[] binaryProbability = ParserModelFile.readDoubles(buffer, buffer.getInt());
+        double[] unaryProbability = ParserModelFile.readDoubles(buffer, buffer.getInt());
+        double[] taggingCount = ParserModelFile.readDoubles(buffer, buffer.getInt());
+        return new LatentAnnotationCheckpoint(labels, numSubstates, numSplits, iterationsSinceSplit, numIterations, seed,
+                numBinaryRules, numUnaryRules, numTaggings, binaryProbability, unaryProbability, taggingCount);
+    }
+}
@@ -0,0 +1,1003 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.assignments.parsing.BinaryRule;
+import edu.berkeley.nlp.assignments.parsing.UnaryClosure;
+import edu.berkeley.nlp.assignments.parsing.UnaryRule;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Latent-annotation refinement of the markovized grammar (the split step of Petrov et al.'s split-merge
+ * training): each symbol but ROOT is split into sub-symbols, and their rule probabilities and taggings
+ * are fitted by EM over the training trees, whose brackets and symbols are fixed and only the sub-symbols
+ * are latent.
+ *
+ * The trees are markovized and counted once (see TrainingCounts), then encoded as post-order arrays of
+ * node labels, children and the index of their rule or tagging in the counts. Parameters are flat arrays
+ * over those base rules: the sub-rules A_x -> B_y C_z of a binary rule are the kA * kB * kC entries from its
+ * offset, the ones of a unary rule kA * kB entries, the taggings of a word with tag T kT entries.
+ *
+ * E-step: the trees are sharded over a ForkJoinPool (work stealing) in tasks of at most TREES_PER_TASK
+ * trees. Each worker runs inside-outside over the tree structure, in probabilities scaled per node, and adds
+ * the posteriors to its own count buffers, which are summed once all trees are done. Sums over threads are
+ * in no fixed order, so runs on several threads may differ in the last bits.
+ * M-step: relative frequencies of the sub-rules, smoothed toward the mean over the parent's sub-symbols.
+ * Tagging counts are fractional Lexicon counts, scored as Lexicon.scoreTagging scores them.
+ *
+ * After every step (a split or an EM iteration) the state can be checkpointed, and training resumed from
+ * it over the same trees (see train and LatentAnnotationCheckpoint). getModel builds a ParserModel whose
+ * labels are the sub-symbols (NP^S=0, NP^S=1, ...): parsers unannotate them as any other label, and
+ * MaxRuleDecoder sums them back with the X-bar projection. The trainer itself is not thread safe.
+ */
+public class LatentAnnotationTrainer {
+    // weight of the mean over the parent's sub-symbols in the smoothed rule probabilities
+    public static final double DEFAULT_SMOOTHING = 0.01;
+    // relative noise on the probabilities of the sub-rules of a split, which breaks their symmetry
+    private static final double SPLIT_NOISE = 0.01;
+    // sub-rules below this probability are left out of the parser model
+    private static final double MIN_RULE_PROBABILITY = 1e-30;
+    private static final int TREES_PER_TASK = 32;
+    private static final int ENCODING_BATCH_SIZE = 256;
+    private static final int ROOT = 0;
+
+    // =========================FIELDS=========================
+    private final TrainingCounts counts;
+    private final int numThreads;
+    private final double smoothing;
+    private long seed;
+
+    // trees: [tree] => first node, nodes in post order (the root last)
+    // [node] => base label, rule or tagging index, and children (left -1 for a tag, right -1 for a unary)
+    private final int[] treeStart;
+    private final int[] nodeLabel;
+    private final int[] nodeRule;
+    private final int[] nodeLeft;
+    private final int[] nodeRight;
+
+    // base rules and taggings, in the order of the counts
+    private final int numLabels;
+    private final int[] binaryParent;
+    private final int[] binaryLeftChild;
+    private final int[] binaryRightChild;
+    private final int[] unaryParent;
+    private final int[] unaryChild;
+    private final int[] taggingWord;
+    private final int[] taggingTag;
+
+    // refinement: [base label] => number of sub-symbols, and the first sub-symbol in the refined labels
+    private int[] numSubstates;
+    private int[] substateStart;
+    private int numSplits = 0;
+    private int iterationsSinceSplit = 0;
+    private int numIterations = 0;
+    // [rule or tagging] => offset of its sub-rules
+    private int[] binaryOffset;
+    private int[] unaryOffset;
+    private int[] taggingOffset;
+    private double[] binaryProbability;
+    private double[] unaryProbability;
+    private double[] taggingCount;
+    // derived from the tagging counts: [refined tag] => counts, and [tagging sub-rule] => emission probability
+    private double[] tagCount;
+    private double[] typeTagCount;
+    private double[] emission;
+    // =========================END OF FIELDS=========================
+
+    // =========================CONSTRUCTOR=========================
+    public LatentAnnotationTrainer(Iterable<Tree<String>> trainTrees, int verticalOrder, int horizontalOrder, int numThreads) {
+        this(trainTrees, verticalOrder, horizontalOrder, numThreads, DEFAULT_SMOOTHING, 0L);
+    }
+
+    /**
+     * Markovize, count and encode the training trees: the model starts as the one of ParserModel.train,
+     * every symbol having one sub-symbol. The trees are iterated twice.
+     * @param seed seed of the noise of the splits
+     */
+    public LatentAnnotationTrainer(Iterable<Tree<String>> trainTrees, int verticalOrder, int horizontalOrder,
+                                   int numThreads, double smoothing, long seed) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive, not " + numThreads);
+        }
+        if (!(smoothing >= 0.0 && smoothing < 1.0)) {
+            throw new IllegalArgumentException("Smoothing weight must be in [0, 1), not " + smoothing);
+        }
+        this.numThreads = numThreads;
+        this.smoothing = smoothing;
+        this.seed = seed;
+
+        System.out.print("Annotating / binarizing and counting training trees on " + numThreads + " thread(s) ... ");
+        this.counts = TrainingCounts.countTrees(trainTrees, verticalOrder, horizontalOrder, numThreads);
+        System.out.println("done. (" + counts.getNumTrees() + " trees)");
+        if (counts.getNumTrees() == 0) {
+            throw new IllegalArgumentException("No training trees");
+        }
+
+        this.numLabels = counts.labelIndexer.size();
+        int numBinaryRules = counts.binaryCounts.size();
+        this.binaryParent = new int[numBinaryRules];
+        this.binaryLeftChild = new int[numBinaryRules];
+        this.binaryRightChild = new int[numBinaryRules];
+        for (int r = 0; r < numBinaryRules; r++) {
+            long key = counts.binaryCounts.getKey(r);
+            binaryParent[r] = TrainingCounts.getBinaryParent(key);
+            binaryLeftChild[r] = TrainingCounts.getBinaryLeftChild(key);
+            binaryRightChild[r] = TrainingCounts.getBinaryRightChild(key);
+        }
+        int numUnaryRules = counts.unaryCounts.size();
+        this.unaryParent = new int[numUnaryRules];
+        this.unaryChild = new int[numUnaryRules];
+        for (int r = 0; r < numUnaryRules; r++) {
+            long key = counts.unaryCounts.getKey(r);
+            unaryParent[r] = TrainingCounts.getUnaryParent(key);
+            unaryChild[r] = TrainingCounts.getUnaryChild(key);
+        }
+        int numTaggings = counts.taggingCounts.size();
+        this.taggingWord = new int[numTaggings];
+        this.taggingTag = new int[numTaggings];
+        for (int i = 0; i < numTaggings; i++) {
+            long key = counts.taggingCounts.getKey(i);
+            taggingWord[i] = TrainingCounts.getTaggingWord(key);
+            taggingTag[i] = TrainingCounts.getTaggingTag(key);
+        }
+
+        System.out.print("Encoding training trees ... ");
+        EncodedTrees trees = encodeTrees(trainTrees, verticalOrder, horizontalOrder);
+        this.treeStart = Arrays.copyOf(trees.treeStart, trees.numTrees + 1);
+        this.nodeLabel = Arrays.copyOf(trees.label, trees.numNodes);
+        this.nodeRule = Arrays.copyOf(trees.rule, trees.numNodes);
+        this.nodeLeft = Arrays.copyOf(trees.left, trees.numNodes);
+        this.nodeRight = Arrays.copyOf(trees.right, trees.numNodes);
+        System.out.println("done. (" + trees.numNodes + " nodes)");
+
+        // one sub-symbol each: relative frequencies, as Grammar.generativeGrammarFromCounts
+        this.numSubstates = new int[numLabels];
+        Arrays.fill(numSubstates, 1);
+        layOut();
+        double[] symbolCount = new double[numLabels];
+        for (int label = 0; label < numLabels && label < counts.symbolCounts.length; label++) {
+            symbolCount[label] = counts.symbolCounts[label];
+        }
+        for (int r = 0; r < numBinaryRules; r++) {
+            binaryProbability[r] = counts.binaryCounts.getCount(r) / symbolCount[binaryParent[r]];
+        }
+        for (int r = 0; r < numUnaryRules; r++) {
+            unaryProbability[r] = counts.unaryCounts.getCount(r) / symbolCount[unaryParent[r]];
+        }
+        for (int i = 0; i < numTaggings; i++) {
+            taggingCount[i] = counts.taggingCounts.getCount(i);
+        }
+        computeEmissions();
+    }
+
+    /**
+     * Offsets of the sub-rules for the current numbers of sub-symbols, and new parameter arrays
+     */
+    private void layOut() {
+        substateStart = new int[numLabels + 1];
+        for (int label = 0; label < numLabels; label++) {
+            substateStart[label + 1] = substateStart[label] + numSubstates[label];
+        }
+        binaryOffset = new int[binaryParent.length + 1];
+        for (int r = 0; r < binaryParent.length; r++) {
+            binaryOffset[r + 1] = binaryOffset[r]
+                    + numSubstates[binaryParent[r]] * numSubstates[binaryLeftChild[r]] * numSubstates[binaryRightChild[r]];
+        }
+        unaryOffset = new int[unaryParent.length + 1];
+        for (int r = 0; r < unaryParent.length; r++) {
+            unaryOffset[r + 1] = unaryOffset[r] + numSubstates[unaryParent[r]] * numSubstates[unaryChild[r]];
+        }
+        taggingOffset = new int[taggingTag.length + 1];
+        for (int i = 0; i < taggingTag.length; i++) {
+            taggingOffset[i + 1] = taggingOffset[i] + numSubstates[taggingTag[i]];
+        }
+        binaryProbability = new double[binaryOffset[binaryParent.length]];
+        unaryProbability = new double[unaryOffset[unaryParent.length]];
+        taggingCount = new double[taggingOffset[taggingTag.length]];
+    }
+    // =========================END OF CONSTRUCTOR=========================
+
+    // =========================TREE ENCODING=========================
+    /**
+     * Trees as flat post-order arrays, children given as node indices in the arrays
+     */
+    private static final class EncodedTrees {
+        int numTrees = 0;
+        int numNodes = 0;
+        int[] treeStart = new int[64];
+        int[] label = new int[1024];
+        int[] rule = new int[1024];
+        int[] left = new int[1024];
+        int[] right = new int[1024];
+
+        int add(int nodeLabel, int nodeRule, int nodeLeft, int nodeRight) {
+            if (numNodes == label.length) {
+                label = Arrays.copyOf(label, 2 * numNodes);
+                rule = Arrays.copyOf(rule, 2 * numNodes);
+                left = Arrays.copyOf(left, 2 * numNodes);
+                right = Arrays.copyOf(right, 2 * numNodes);
+            }
+            label[numNodes] = nodeLabel;
+            rule[numNodes] = nodeRule;
+            left[numNodes] = nodeLeft;
+            right[numNodes] = nodeRight;
+            return numNodes++;
+        }
+
+        void endTree() {
+            if (numTrees + 2 > treeStart.length) treeStart = Arrays.copyOf(treeStart, 2 * treeStart.length);
+            treeStart[++numTrees] = numNodes;
+        }
+
+        /**
+         * Append the trees of a batch encoded after these ones
+         */
+        void append(EncodedTrees batch) {
+            int base = numNodes;
+            for (int node = 0; node < batch.numNodes; node++) {
+                int left = batch.left[node];
+                int right = batch.right[node];
+                add(batch.label[node], batch.rule[node], (left < 0) ? left : base + left, (right < 0) ? right : base + right);
+            }
+            for (int tree = 0; tree < batch.numTrees; tree++) {
+                if (numTrees + 2 > treeStart.length) treeStart = Arrays.copyOf(treeStart, 2 * treeStart.length);
+                treeStart[numTrees + 1] = treeStart[numTrees] + batch.treeStart[tree + 1] - batch.treeStart[tree];
+                numTrees++;
+            }
+        }
+    }
+
+    /**
+     * Markovize and encode the trees in batches on the threads, appended in order as they are done
+     */
+    private EncodedTrees encodeTrees(Iterable<Tree<String>> trainTrees, final int verticalOrder, final int horizontalOrder) {
+        final ThreadLocal<TreeAnnotator> annotators = new ThreadLocal<TreeAnnotator>() {
+            @Override
+            protected TreeAnnotator initialValue() {
+                return new TreeAnnotator(verticalOrder, horizontalOrder);
+            }
+        };
+        EncodedTrees trees = new EncodedTrees();
+        Iterator<Tree<String>> treeIterator = trainTrees.iterator();
+        Deque<Future<EncodedTrees>> batches = new ArrayDeque<>();
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            while (treeIterator.hasNext()) {
+                final List<Tree<String>> batch = new ArrayList<>(ENCODING_BATCH_SIZE);
+                while (batch.size() < ENCODING_BATCH_SIZE && treeIterator.hasNext()) {
+                    batch.add(treeIterator.next());
+                }
+                batches.addLast(pool.submit(new Callable<EncodedTrees>() {
+                    public EncodedTrees call() {
+                        TreeAnnotator annotator = annotators.get();
+                        EncodedTrees batchTrees = new EncodedTrees();
+                        for (Tree<String> tree : batch) {
+                            int root = encode(annotator.annotateTree(tree), batchTrees);
+                            if (batchTrees.label[root] != ROOT) {
+                                throw new IllegalArgumentException("Training tree is not rooted at "
+                                        + counts.labelIndexer.get(ROOT) + ": " + tree);
+                            }
+                            batchTrees.endTree();
+                        }
+                        return batchTrees;
+                    }
+                }));
+                if (batches.size() >= 2 * numThreads) {
+                    trees.append(batches.removeFirst().get());
+                }
+            }
+            while (!batches.isEmpty()) {
+                trees.append(batches.removeFirst().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while encoding training trees", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Encoding training trees failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        if (trees.numTrees != counts.getNumTrees()) {
+            throw new IllegalStateException("Training trees changed between two iterations: " + counts.getNumTrees()
+                    + " counted, " + trees.numTrees + " encoded");
+        }
+        return trees;
+    }
+
+    /**
+     * Encode a markovized tree after its children, as TrainingCounts counts it
+     * @return its node
+     */
+    private int encode(Tree<String> tree, EncodedTrees trees) {
+        int label = indexOf(counts.labelIndexer.indexOf(tree.getLabel()), tree);
+        if (tree.isPreTerminal()) {
+            int word = indexOf(counts.wordIndexer.indexOf(tree.getChildren().get(0).getLabel()), tree);
+            int tagging = indexOf(counts.taggingCounts.indexOf(TrainingCounts.packTagging(word, label)), tree);
+            return trees.add(label, tagging, -1, -1);
+        }
+        List<Tree<String>> children = tree.getChildren();
+        if (children.size() == 1) {
+            int child = encode(children.get(0), trees);
+            int rule = counts.unaryCounts.indexOf(TrainingCounts.packUnary(label, trees.label[child]));
+            return trees.add(label, indexOf(rule, tree), child, -1);
+        }
+        if (children.size() == 2) {
+            int left = encode(children.get(0), trees);
+            int right = encode(children.get(1), trees);
+            int rule = counts.binaryCounts.indexOf(TrainingCounts.packBinary(label, trees.label[left], trees.label[right]));
+            return trees.add(label, indexOf(rule, tree), left, right);
+        }
+        throw new RuntimeException("Attempted to construct a Grammar with an illegal tree (unbinarized?): " + tree);
+    }
+
+    private static int indexOf(int index, Tree<String> tree) {
+        if (index < 0) {
+            throw new IllegalStateException("Training trees changed between two iterations, not counted: " + tree);
+        }
+        return index;
+    }
+    // =========================END OF TREE ENCODING=========================
+
+    // =========================TRAINING=========================
+    /**
+     * Split and run EM until the grammar was split numSplits times, with iterationsPerSplit EM iterations
+     * after each split. If checkpoint is not null, training resumes from it when the file exists, and it
+     * is written again after every split and every iteration.
+     */
+    public void train(int numSplits, int iterationsPerSplit, Path checkpoint) throws IOException {
+        if (checkpoint != null && Files.exists(checkpoint)) {
+            restoreCheckpoint(checkpoint);
+        }
+        while (true) {
+            if (this.numSplits > 0 && iterationsSinceSplit < iterationsPerSplit) {
+                iterate();
+            } else if (this.numSplits < numSplits) {
+                split();
+            } else {
+                return;
+            }
+            if (checkpoint != null) {
+                saveCheckpoint(checkpoint);
+            }
+        }
+    }
+
+    /**
+     * Split every symbol but ROOT in two: the sub-rules of a rule share its probability, with some noise
+     */
+    public void split() {
+        Random random = new Random(seed + numSplits);
+        int[] oldSubstates = numSubstates;
+        int[] oldBinaryOffset = binaryOffset;
+        int[] oldUnaryOffset = unaryOffset;
+        int[] oldTaggingOffset = taggingOffset;
+        double[] oldBinaryProbability = binaryProbability;
+        double[] oldUnaryProbability = unaryProbability;
+        double[] oldTaggingCount = taggingCount;
+        numSubstates = new int[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            numSubstates[label] = (label == ROOT) ? 1 : 2 * oldSubstates[label];
+        }
+        layOut();
+
+        for (int r = 0; r < binaryParent.length; r++) {
+            int kA = numSubstates[binaryParent[r]], kB = numSubstates[binaryLeftChild[r]], kC = numSubstates[binaryRightChild[r]];
+            int oldKB = oldSubstates[binaryLeftChild[r]], oldKC = oldSubstates[binaryRightChild[r]];
+            int fA = kA / oldSubstates[binaryParent[r]], fB = kB / oldKB, fC = kC / oldKC;
+            int offset = binaryOffset[r];
+            for (int x = 0; x < kA; x++) {
+                for (int y = 0; y < kB; y++) {
+                    for (int z = 0; z < kC; z++) {
+                        double probability = oldBinaryProbability[oldBinaryOffset[r] + ((x / fA) * oldKB + y / fB) * oldKC + z / fC];
+                        binaryProbability[offset + (x * kB + y) * kC + z] = probability / (fB * fC) * noise(random);
+                    }
+                }
+            }
+        }
+        for (int r = 0; r < unaryParent.length; r++) {
+            int kA = numSubstates[unaryParent[r]], kB = numSubstates[unaryChild[r]];
+            int oldKB = oldSubstates[unaryChild[r]];
+            int fA = kA / oldSubstates[unaryParent[r]], fB = kB / oldKB;
+            for (int x = 0; x < kA; x++) {
+                for (int y = 0; y < kB; y++) {
+                    double probability = oldUnaryProbability[oldUnaryOffset[r] + (x / fA) * oldKB + y / fB];
+                    unaryProbability[unaryOffset[r] + x * kB + y] = probability / fB * noise(random);
+                }
+            }
+        }
+        for (int i = 0; i < taggingTag.length; i++) {
+            int kT = numSubstates[taggingTag[i]];
+            int fT = kT / oldSubstates[taggingTag[i]];
+            for (int x = 0; x < kT; x++) {
+                taggingCount[taggingOffset[i] + x] = oldTaggingCount[oldTaggingOffset[i] + x / fT] / fT;
+            }
+        }
+        // the noise leaves the sub-rules of a parent summing to about 1
+        double[] total = parentTotals(binaryProbability, unaryProbability);
+        normalize(binaryProbability, unaryProbability, total, null, null);
+        computeEmissions();
+        numSplits++;
+        iterationsSinceSplit = 0;
+        System.out.println("Split " + numSplits + ": " + substateStart[numLabels] + " sub-symbols, "
+                + binaryProbability.length + " binary and " + unaryProbability.length + " unary sub-rules");
+    }
+
+    private static double noise(Random random) {
+        return 1.0 + SPLIT_NOISE * (2.0 * random.nextDouble() - 1.0);
+    }
+
+    /**
+     * One EM iteration over all the training trees
+     * @return log likelihood of the trees under the model before the iteration
+     */
+    public double iterate() {
+        long nanos = System.nanoTime();
+        final ConcurrentLinkedQueue<ExpectedCounts> buffers = new ConcurrentLinkedQueue<>();
+        final ThreadLocal<ExpectedCounts> threadBuffers = new ThreadLocal<ExpectedCounts>() {
+            @Override
+            protected ExpectedCounts initialValue() {
+                ExpectedCounts buffer = new ExpectedCounts();
+                buffers.add(buffer);
+                return buffer;
+            }
+        };
+        int numTrees = treeStart.length - 1;
+        if (numThreads == 1) {
+            ExpectedCounts buffer = threadBuffers.get();
+            for (int tree = 0; tree < numTrees; tree++) {
+                buffer.addTree(tree);
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try {
+                pool.invoke(new ExpectationTask(0, numTrees, threadBuffers));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // per-thread buffers summed into the first one
+        ExpectedCounts total = buffers.poll();
+        for (ExpectedCounts buffer : buffers) {
+            total.add(buffer);
+        }
+        maximize(total);
+        numIterations++;
+        iterationsSinceSplit++;
+        System.out.println(String.format("EM iteration %d (split %d): log likelihood %.2f, %d tree(s) without a parse,"
+                        + " %d ms on %d thread(s)", numIterations, numSplits, total.logLikelihood, total.numFailedTrees,
+                (System.nanoTime() - nanos) / 1000000, numThreads));
+        return total.logLikelihood;
+    }
+
+    /**
+     * Trees [from, to) halved until they fit in one task, so that idle workers steal the other halves
+     */
+    private final class ExpectationTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final ThreadLocal<ExpectedCounts> buffers;
+
+        ExpectationTask(int from, int to, ThreadLocal<ExpectedCounts> buffers) {
+            this.from = from;
+            this.to = to;
+            this.buffers = buffers;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TREES_PER_TASK) {
+                ExpectedCounts buffer = buffers.get();
+                for (int tree = from; tree < to; tree++) {
+                    buffer.addTree(tree);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ExpectationTask(from, middle, buffers), new ExpectationTask(middle, to, buffers));
+        }
+    }
+    // =========================END OF TRAINING=========================
+
+    // =========================E-STEP=========================
+    /**
+     * Expected counts of the sub-rules over the trees of one thread, laid out as the parameters,
+     * and the scratch space of the inside-outside passes
+     */
+    private final class ExpectedCounts {
+        final double[] binaryCount = new double[binaryProbability.length];
+        final double[] unaryCount = new double[unaryProbability.length];
+        final double[] taggingCount = new double[emission.length];
+        double logLikelihood = 0.0;
+        int numFailedTrees = 0;
+
+        // [node of the tree] => offset of its sub-symbols in inside and outside, and the log scales of both
+        int[] vectorStart = new int[64];
+        double[] insideScale = new double[64];
+        double[] outsideScale = new double[64];
+        double[] inside = new double[256];
+        double[] outside = new double[256];
+
+        void add(ExpectedCounts buffer) {
+            for (int i = 0; i < binaryCount.length; i++) binaryCount[i] += buffer.binaryCount[i];
+            for (int i = 0; i < unaryCount.length; i++) unaryCount[i] += buffer.unaryCount[i];
+            for (int i = 0; i < taggingCount.length; i++) taggingCount[i] += buffer.taggingCount[i];
+            logLikelihood += buffer.logLikelihood;
+            numFailedTrees += buffer.numFailedTrees;
+        }
+
+        /**
+         * Inside-outside over the sub-symbols of the nodes of one tree, and the posteriors of its sub-rules
+         * Vectors are scaled so that their largest entry is 1; the log of the factor is kept per node.
+         */
+        void addTree(int tree) {
+            int first = treeStart[tree];
+            int numNodes = treeStart[tree + 1] - first;
+            if (numNodes + 1 > vectorStart.length) {
+                vectorStart = new int[2 * (numNodes + 1)];
+                insideScale = new double[2 * numNodes];
+                outsideScale = new double[2 * numNodes];
+            }
+            for (int i = 0; i < numNodes; i++) {
+                vectorStart[i + 1] = vectorStart[i] + numSubstates[nodeLabel[first + i]];
+            }
+            if (vectorStart[numNodes] > inside.length) {
+                inside = new double[2 * vectorStart[numNodes]];
+                outside = new double[2 * vectorStart[numNodes]];
+            }
+
+            // inside, children first
+            for (int i = 0; i < numNodes; i++) {
+                int node = first + i;
+                int o = vectorStart[i];
+                int kA = numSubstates[nodeLabel[node]];
+                double scale;
+                if (nodeLeft[node] < 0) {
+                    System.arraycopy(emission, taggingOffset[nodeRule[node]], inside, o, kA);
+                    scale = 0.0;
+                } else if (nodeRight[node] < 0) {
+                    int c = nodeLeft[node] - first;
+                    int oc = vectorStart[c];
+                    int kB = numSubstates[nodeLabel[first + c]];
+                    int p = unaryOffset[nodeRule[node]];
+                    for (int x = 0; x < kA; x++) {
+                        double sum = 0.0;
+                        for (int y = 0; y < kB; y++) {
+                            sum += unaryProbability[p + x * kB + y] * inside[oc + y];
+                        }
+                        inside[o + x] = sum;
+                    }
+                    scale = insideScale[c];
+                } else {
+                    int l = nodeLeft[node] - first;
+                    int r = nodeRight[node] - first;
+                    int ol = vectorStart[l];
+                    int or = vectorStart[r];
+                    int kB = numSubstates[nodeLabel[first + l]];
+                    int kC = numSubstates[nodeLabel[first + r]];
+                    int p = binaryOffset[nodeRule[node]];
+                    for (int x = 0; x < kA; x++) {
+                        double sum = 0.0;
+                        for (int y = 0; y < kB; y++) {
+                            double left = inside[ol + y];
+                            if (left == 0.0) continue;
+                            int rule = p + (x * kB + y) * kC;
+                            double right = 0.0;
+                            for (int z = 0; z < kC; z++) {
+                                right += binaryProbability[rule + z] * inside[or + z];
+                            }
+                            sum += left * right;
+                        }
+                        inside[o + x] = sum;
+                    }
+                    scale = insideScale[l] + insideScale[r];
+                }
+                double max = 0.0;
+                for (int x = 0; x < kA; x++) max = Math.max(max, inside[o + x]);
+                if (max == 0.0) {
+                    numFailedTrees++;
+                    return;
+                }
+                for (int x = 0; x < kA; x++) inside[o + x] /= max;
+                insideScale[i] = scale + Math.log(max);
+            }
+            int root = numNodes - 1;
+            double logZ = insideScale[root] + Math.log(inside[vectorStart[root]]);
+            logLikelihood += logZ;
+
+            // outside and posteriors, parents first
+            outside[vectorStart[root]] = 1.0;
+            outsideScale[root] = 0.0;
+            for (int i = root; i >= 0; i--) {
+                int node = first + i;
+                int o = vectorStart[i];
+                int kA = numSubstates[nodeLabel[node]];
+                if (nodeLeft[node] < 0) {
+                    double factor = Math.exp(outsideScale[i] + insideScale[i] - logZ);
+                    int t = taggingOffset[nodeRule[node]];
+                    for (int x = 0; x < kA; x++) {
+                        taggingCount[t + x] += outside[o + x] * inside[o + x] * factor;
+                    }
+                } else if (nodeRight[node] < 0) {
+                    int c = nodeLeft[node] - first;
+                    int oc = vectorStart[c];
+                    int kB = numSubstates[nodeLabel[first + c]];
+                    int p = unaryOffset[nodeRule[node]];
+                    double factor = Math.exp(outsideScale[i] + insideScale[c] - logZ);
+                    Arrays.fill(outside, oc, oc + kB, 0.0);
+                    for (int x = 0; x < kA; x++) {
+                        double out = outside[o + x];
+                        if (out == 0.0) continue;
+                        for (int y = 0; y < kB; y++) {
+                            double weight = out * unaryProbability[p + x * kB + y];
+                            outside[oc + y] += weight;
+                            unaryCount[p + x * kB + y] += weight * inside[oc + y] * factor;
+                        }
+                    }
+                    outsideScale[c] = outsideScale[i];
+                    rescaleOutside(c);
+                } else {
+                    int l = nodeLeft[node] - first;
+                    int r = nodeRight[node] - first;
+                    int ol = vectorStart[l];
+                    int or = vectorStart[r];
+                    int kB = numSubstates[nodeLabel[first + l]];
+                    int kC = numSubstates[nodeLabel[first + r]];
+                    int p = binaryOffset[nodeRule[node]];
+                    double factor = Math.exp(outsideScale[i] + insideScale[l] + insideScale[r] - logZ);
+                    Arrays.fill(outside, ol, ol + kB, 0.0);
+                    Arrays.fill(outside, or, or + kC, 0.0);
+                    for (int x = 0; x < kA; x++) {
+                        double out = outside[o + x];
+                        if (out == 0.0) continue;
+                        for (int y = 0; y < kB; y++) {
+                            double left = inside[ol + y];
+                            int rule = p + (x * kB + y) * kC;
+                            double leftOutside = 0.0;
+                            for (int z = 0; z < kC; z++) {
+                                double weight = out * binaryProbability[rule + z];
+                                double right = inside[or + z];
+                                leftOutside += weight * right;
+                                outside[or + z] += weight * left;
+                                binaryCount[rule + z] += weight * left * right * factor;
+                            }
+                            outside[ol + y] += leftOutside;
+                        }
+                    }
+                    outsideScale[l] = outsideScale[i] + insideScale[r];
+                    outsideScale[r] = outsideScale[i] + insideScale[l];
+                    rescaleOutside(l);
+                    rescaleOutside(r);
+                }
+            }
+        }
+
+        private void rescaleOutside(int i) {
+            int from = vectorStart[i];
+            int to = vectorStart[i + 1];
+            double max = 0.0;
+            for (int x = from; x < to; x++) max = Math.max(max, outside[x]);
+            if (max == 0.0) return;
+            for (int x = from; x < to; x++) outside[x] /= max;
+            outsideScale[i] += Math.log(max);
+        }
+    }
+    // =========================END OF E-STEP=========================
+
+    // =========================M-STEP=========================
+    private void maximize(ExpectedCounts expected) {
+        double[] total = parentTotals(expected.binaryCount, expected.unaryCount);
+        normalize(expected.binaryCount, expected.unaryCount, total, binaryProbability, unaryProbability);
+        binaryProbability = expected.binaryCount;
+        unaryProbability = expected.unaryCount;
+        if (smoothing > 0.0) {
+            for (int r = 0; r < binaryParent.length; r++) {
+                smooth(binaryProbability, binaryOffset[r], numSubstates[binaryParent[r]],
+                        numSubstates[binaryLeftChild[r]] * numSubstates[binaryRightChild[r]]);
+            }
+            for (int r = 0; r < unaryParent.length; r++) {
+                smooth(unaryProbability, unaryOffset[r], numSubstates[unaryParent[r]], numSubstates[unaryChild[r]]);
+            }
+        }
+        taggingCount = expected.taggingCount;
+        computeEmissions();
+    }
+
+    /**
+     * [refined label] => sum of the values of the sub-rules it is the parent of
+     */
+    private double[] parentTotals(double[] binaryValues, double[] unaryValues) {
+        double[] total = new double[substateStart[numLabels]];
+        for (int r = 0; r < binaryParent.length; r++) {
+            int start = substateStart[binaryParent[r]];
+            int kA = numSubstates[binaryParent[r]];
+            int n = (binaryOffset[r + 1] - binaryOffset[r]) / kA;
+            for (int x = 0; x < kA; x++) {
+                int rule = binaryOffset[r] + x * n;
+                for (int j = 0; j < n; j++) total[start + x] += binaryValues[rule + j];
+            }
+        }
+        for (int r = 0; r < unaryParent.length; r++) {
+            int start = substateStart[unaryParent[r]];
+            int kA = numSubstates[unaryParent[r]];
+            int n = numSubstates[unaryChild[r]];
+            for (int x = 0; x < kA; x++) {
+                int rule = unaryOffset[r] + x * n;
+                for (int j = 0; j < n; j++) total[start + x] += unaryValues[rule + j];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Divide the values of the sub-rules by the total of their parent; the sub-rules of a parent with no
+     * total take their previous probabilities (if given)
+     */
+    private void normalize(double[] binaryValues, double[] unaryValues, double[] total,
+                           double[] previousBinary, double[] previousUnary) {
+        for (int r = 0; r < binaryParent.length; r++) {
+            int start = substateStart[binaryParent[r]];
+            int kA = numSubstates[binaryParent[r]];
+            int n = (binaryOffset[r + 1] - binaryOffset[r]) / kA;
+            for (int x = 0; x < kA; x++) {
+                int rule = binaryOffset[r] + x * n;
+                for (int j = 0; j < n; j++) {
+                    binaryValues[rule + j] = (total[start + x] > 0.0) ? binaryValues[rule + j] / total[start + x]
+                            : (previousBinary != null) ? previousBinary[rule + j] : 0.0;
+                }
+            }
+        }
+        for (int r = 0; r < unaryParent.length; r++) {
+            int start = substateStart[unaryParent[r]];
+            int kA = numSubstates[unaryParent[r]];
+            int n = numSubstates[unaryChild[r]];
+            for (int x = 0; x < kA; x++) {
+                int rule = unaryOffset[r] + x * n;
+                for (int j = 0; j < n; j++) {
+                    unaryValues[rule + j] = (total[start + x] > 0.0) ? unaryValues[rule + j] / total[start + x]
+                            : (previousUnary != null) ? previousUnary[rule + j] : 0.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Mix the probabilities of the kA parent sub-symbols of a rule (n children sub-rules each) with their mean
+     */
+    private void smooth(double[] probability, int offset, int kA, int n) {
+        if (kA == 1) return;
+        for (int j = 0; j < n; j++) {
+            double mean = 0.0;
+            for (int x = 0; x < kA; x++) mean += probability[offset + x * n + j];
+            mean /= kA;
+            for (int x = 0; x < kA; x++) {
+                probability[offset + x * n + j] = (1.0 - smoothing) * probability[offset + x * n + j] + smoothing * mean;
+            }
+        }
+    }
+
+    /**
+     * Tag counts of the sub-symbols and emission probabilities of the taggings, from the tagging counts
+     * The word types first seen with a tag are shared among its sub-symbols as its tokens are.
+     */
+    private void computeEmissions() {
+        int numRefinedLabels = substateStart[numLabels];
+        tagCount = new double[numRefinedLabels];
+        typeTagCount = new double[numRefinedLabels];
+        for (int i = 0; i < taggingTag.length; i++) {
+            int start = substateStart[taggingTag[i]];
+            for (int x = 0; x < numSubstates[taggingTag[i]]; x++) {
+                tagCount[start + x] += taggingCount[taggingOffset[i] + x];
+            }
+        }
+        for (int tag = 0; tag < numLabels && tag < counts.typeTagCounts.length; tag++) {
+            if (counts.typeTagCounts[tag] == 0) continue;
+            int start = substateStart[tag];
+            double sum = 0.0;
+            for (int x = 0; x < numSubstates[tag]; x++) sum += tagCount[start + x];
+            for (int x = 0; x < numSubstates[tag]; x++) {
+                typeTagCount[start + x] = (sum > 0.0) ? counts.typeTagCounts[tag] * tagCount[start + x] / sum
+                        : counts.typeTagCounts[tag] / (double) numSubstates[tag];
+            }
+        }
+        emission = new double[taggingCount.length];
+        for (int i = 0; i < taggingTag.length; i++) {
+            int start = substateStart[taggingTag[i]];
+            for (int x = 0; x < numSubstates[taggingTag[i]]; x++) {
+                emission[taggingOffset[i] + x] = Math.exp(scoreTagging(counts.wordCounts[taggingWord[i]],
+                        taggingCount[taggingOffset[i] + x], tagCount[start + x], typeTagCount[start + x]));
+            }
+        }
+    }
+
+    /**
+     * Lexicon.scoreTagging over the counts of a sub-symbol
+     */
+    private double scoreTagging(double wordCount, double taggingCount, double tagCount, double typeTagCount) {
+        if (tagCount == 0.0) return Double.NEGATIVE_INFINITY;
+        double p_tag = tagCount / counts.totalTokens;
+        double c_word = wordCount;
+        double c_tag_and_word = taggingCount;
+        if (c_word < 10) { // rare or unknown
+            c_word += 1.0;
+            c_tag_and_word += typeTagCount / counts.totalWordTypes;
+        }
+        double p_word = (1.0 + c_word) / (counts.totalTokens + 1.0);
+        double p_tag_given_word = c_tag_and_word / c_word;
+        return Math.log(p_tag_given_word / p_tag * p_word);
+    }
+    // =========================END OF M-STEP=========================
+
+    // =========================MODEL=========================
+    /**
+     * Parser model over the sub-symbols: sub-rules (but the ones below MIN_RULE_PROBABILITY) scored by
+     * their log probability, and a lexicon of the expected tagging counts
+     */
+    public ParserModel getModel() {
+        System.out.print("Building latent annotation grammar ... ");
+        Indexer<String> labelIndexer = new Indexer<>();
+        for (int label = 0; label < numLabels; label++) {
+            String baseLabel = counts.labelIndexer.get(label);
+            for (int x = 0; x < numSubstates[label]; x++) {
+                labelIndexer.add((numSubstates[label] == 1) ? baseLabel : baseLabel + "=" + x);
+            }
+        }
+        List<BinaryRule> binaryRules = new ArrayList<>();
+        for (int r = 0; r < binaryParent.length; r++) {
+            int kA = numSubstates[binaryParent[r]], kB = numSubstates[binaryLeftChild[r]], kC = numSubstates[binaryRightChild[r]];
+            for (int x = 0; x < kA; x++) {
+                for (int y = 0; y < kB; y++) {
+                    for (int z = 0; z < kC; z++) {
+                        double probability = binaryProbability[binaryOffset[r] + (x * kB + y) * kC + z];
+                        if (probability < MIN_RULE_PROBABILITY) continue;
+                        BinaryRule rule = new BinaryRule(substateStart[binaryParent[r]] + x,
+                                substateStart[binaryLeftChild[r]] + y, substateStart[binaryRightChild[r]] + z);
+                        rule.setScore(Math.log(probability));
+                        binaryRules.add(rule);
+                    }
+                }
+            }
+        }
+        List<UnaryRule> unaryRules = new ArrayList<>();
+        for (int r = 0; r < unaryParent.length; r++) {
+            int kA = numSubstates[unaryParent[r]], kB = numSubstates[unaryChild[r]];
+            for (int x = 0; x < kA; x++) {
+                for (int y = 0; y < kB; y++) {
+                    double probability = unaryProbability[unaryOffset[r] + x * kB + y];
+                    if (probability < MIN_RULE_PROBABILITY) continue;
+                    UnaryRule rule = new UnaryRule(substateStart[unaryParent[r]] + x, substateStart[unaryChild[r]] + y);
+                    rule.setScore(Math.log(probability));
+                    unaryRules.add(rule);
+                }
+            }
+        }
+        Grammar grammar = Grammar.fromRules(labelIndexer, unaryRules, binaryRules);
+        System.out.println("done. (" + labelIndexer.size() + " states, " + binaryRules.size() + " binary and "
+                + unaryRules.size() + " unary rules)");
+
+        Lexicon lexicon = new Lexicon();
+        for (int i = 0; i < taggingTag.length; i++) {
+            String word = counts.wordIndexer.get(taggingWord[i]);
+            int start = substateStart[taggingTag[i]];
+            for (int x = 0; x < numSubstates[taggingTag[i]]; x++) {
+                double count = taggingCount[taggingOffset[i] + x];
+                if (count > 0.0) lexicon.wordToTagCounters.setCount(word, labelIndexer.get(start + x), count);
+            }
+        }
+        for (int word = 0; word < counts.wordIndexer.size(); word++) {
+            lexicon.wordCounter.setCount(counts.wordIndexer.get(word), counts.wordCounts[word]);
+        }
+        for (int label = 0; label < tagCount.length; label++) {
+            if (tagCount[label] > 0.0) lexicon.tagCounter.setCount(labelIndexer.get(label), tagCount[label]);
+            if (typeTagCount[label] > 0.0) lexicon.typeTagCounter.setCount(labelIndexer.get(label), typeTagCount[label]);
+        }
+        lexicon.totalTokens = counts.totalTokens;
+        lexicon.totalWordTypes = counts.totalWordTypes;
+
+        System.out.println("Init unary closure...");
+        UnaryClosure unaryClosure = new UnaryClosure(labelIndexer, unaryRules);
+        return new ParserModel(grammar, lexicon, unaryClosure);
+    }
+
+    public int getNumSplits() {
+        return numSplits;
+    }
+
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    /**
+     * Number of sub-symbols of an annotated (unsplit) label, e.g. NP^S
+     */
+    public int getNumSubstates(String label) {
+        int index = counts.labelIndexer.indexOf(label);
+        if (index < 0) {
+            throw new IllegalArgumentException("Not a label of the training trees: " + label);
+        }
+        return numSubstates[index];
+    }
+    // =========================END OF MODEL=========================
+
+    // =========================CHECKPOINTS=========================
+    public void saveCheckpoint(Path path) throws IOException {
+        List<String> labels = new ArrayList<>(numLabels);
+        for (int label = 0; label < numLabels; label++) {
+            labels.add(counts.labelIndexer.get(label));
+        }
+        new LatentAnnotationCheckpoint(labels, numSubstates, numSplits, iterationsSinceSplit, numIterations, seed,
+                binaryParent.length, unaryParent.length, taggingTag.length, binaryProbability, unaryProbability,
+                taggingCount).write(path);
+    }
+
+    /**
+     * Go on from a checkpoint saved by a trainer over the same training trees and markovization orders
+     * @throws IllegalArgumentException if the checkpoint was saved over other trees
+     */
+    public void restoreCheckpoint(Path path) throws IOException {
+        LatentAnnotationCheckpoint checkpoint = LatentAnnotationCheckpoint.read(path);
+        if (checkpoint.labels.size() != numLabels || checkpoint.numBinaryRules != binaryParent.length
+                || checkpoint.numUnaryRules != unaryParent.length || checkpoint.numTaggings != taggingTag.length) {
+            throw new IllegalArgumentException("Checkpoint " + path + " was saved over other training trees: "
+                    + checkpoint.labels.size() + " labels, " + checkpoint.numBinaryRules + " binary and "
+                    + checkpoint.numUnaryRules + " unary rules and " + checkpoint.numTaggings + " taggings, not "
+                    + numLabels + ", " + binaryParent.length + ", " + unaryParent.length + " and " + taggingTag.length);
+        }
+        for (int label = 0; label < numLabels; label++) {
+            if (!checkpoint.labels.get(label).equals(counts.labelIndexer.get(label))) {
+                throw new IllegalArgumentException("Checkpoint " + path + " was saved over other training trees: label "
+                        + label + " is " + checkpoint.labels.get(label) + ", not " + counts.labelIndexer.get(label));
+            }
+            if (checkpoint.numSubstates[label] < 1 || (label == ROOT && checkpoint.numSubstates[label] != 1)) {
+                throw new IllegalArgumentException("Checkpoint " + path + " has " + checkpoint.numSubstates[label]
+                        + " sub-symbols of " + checkpoint.labels.get(label));
+            }
+        }
+        long binarySize = 0, unarySize = 0, taggingSize = 0;
+        int[] k = checkpoint.numSubstates;
+        for (int r = 0; r < binaryParent.length; r++) {
+            binarySize += (long) k[binaryParent[r]] * k[binaryLeftChild[r]] * k[binaryRightChild[r]];
+        }
+        for (int r = 0; r < unaryParent.length; r++) {
+            unarySize += (long) k[unaryParent[r]] * k[unaryChild[r]];
+        }
+        for (int i = 0; i < taggingTag.length; i++) {
+            taggingSize += k[taggingTag[i]];
+        }
+        if (checkpoint.binaryProbability.length != binarySize || checkpoint.unaryProbability.length != unarySize
+                || checkpoint.taggingCount.length != taggingSize) {
+            throw new IllegalArgumentException("Checkpoint " + path + " has parameter arrays of other sizes than its sub-symbols");
+        }
+        numSubstates = k.clone();
+        layOut();
+        binaryProbability = checkpoint.binaryProbability;
+        unaryProbability = checkpoint.unaryProbability;
+        taggingCount = checkpoint.taggingCount;
+        computeEmissions();
+        numSplits = checkpoint.numSplits;
+        iterationsSinceSplit = checkpoint.iterationsSinceSplit;
+        numIterations = checkpoint.numIterations;
+        seed = checkpoint.seed;
+        System.out.println("Resumed latent annotation training after " + numSplits + " split(s) and "
+                + numIterations + " EM iteration(s) from " + path);
+    }
+    // =========================END OF CHECKPOINTS=========================
+}
@@ -39,6 +39,62 @@ public class Lexicon {
         }
     }
 
+    /**
+     * Empty lexicon, filled by ParserModelFile
+     */
+    Lexicon() {
+    }
+
+    /**
+     * Same lexicon as over the trees the counts were tallied from, with words and tags in first occurrence order
+     */
+    public Lexicon(TrainingCounts counts) {
+        for (int i = 0; i < counts.taggingCounts.size(); i++) {
+            long key = counts.taggingCounts.getKey(i);
+            wordToTagCounters.incrementCount(counts.wordIndexer.get(TrainingCounts.getTaggingWord(key)),
+                    counts.labelIndexer.get(TrainingCounts.getTaggingTag(key)), counts.taggingCounts.getCount(i));
+        }
+        for (int word = 0; word < counts.wordIndexer.size(); word++) {
+            wordCounter.incrementCount(counts.wordIndexer.get(word), counts.wordCounts[word]);
+        }
+        for (int tag = 0; tag < counts.tagCounts.length && tag < counts.labelIndexer.size(); tag++) {
+            if (counts.tagCounts[tag] > 0) {
+                tagCounter.incrementCount(counts.labelIndexer.get(tag), counts.tagCounts[tag]);
+            }
+            if (tag < counts.typeTagCounts.length && counts.typeTagCounts[tag] > 0) {
+                typeTagCounter.incrementCount(counts.labelIndexer.get(tag), counts.typeTagCounts[tag]);
+            }
+        }
+        totalTokens = counts.totalTokens;
+        totalWordTypes = counts.totalWordTypes;
+    }
+
+    /**
+     * Add the counts of a batch of trees following the ones counted so far (see IncrementalTrainer):
+     * same lexicon as over all the trees, the batch's new words and tags coming last
+     */
+    void addCounts(TrainingCounts batch) {
+        for (int word = 0; word < batch.wordIndexer.size(); word++) {
+            String w = batch.wordIndexer.get(word);
+            if (!isKnown(w)) {
+                totalWordTypes += 1;
+                typeTagCounter.incrementCount(batch.labelIndexer.get(batch.wordFirstTags[word]), 1.0);
+            }
+            wordCounter.incrementCount(w, batch.wordCounts[word]);
+        }
+        for (int tag = 0; tag < batch.tagCounts.length && tag < batch.labelIndexer.size(); tag++) {
+            if (batch.tagCounts[tag] > 0) {
+                tagCounter.incrementCount(batch.labelIndexer.get(tag), batch.tagCounts[tag]);
+            }
+        }
+        for (int i = 0; i < batch.taggingCounts.size(); i++) {
+            long key = batch.taggingCounts.getKey(i);
+            wordToTagCounters.incrementCount(batch.wordIndexer.get(TrainingCounts.getTaggingWord(key)),
+                    batch.labelIndexer.get(TrainingCounts.getTaggingTag(key)), batch.taggingCounts.getCount(i));
+        }
+        totalTokens += batch.totalTokens;
+    }
+
     public Set<String> getAllTags() {
         return tagCounter.keySet();
     }
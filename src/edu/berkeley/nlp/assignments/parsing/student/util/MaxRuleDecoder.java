@@ -0,0 +1,408 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.assignments.parsing.UnaryRule;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Max-rule-product decoding (Petrov & Klein 2007) instead of the Viterbi parse: the tree maximizing the
+ * product of the posteriors of its anchored rules, where a rule is over projected symbols (e.g. X-bar:
+ * NP^S and NP^VP are both NP, all the @NP->... states are @NP), so the mass the Viterbi parse splits
+ * among annotations and markovization histories is summed.
+ *
+ * The posteriors come from InsideOutside over the annotated grammar. A second CKY pass over the
+ * projected symbols then sums, for each cell and split, the posteriors of the annotated rules
+ * A -> B C by projected rule, and keeps the best product of each projected symbol:
+ *   q(X -> Y Z, begin, split, end) = sum of outside(A, begin, end) * P(A -> B C) * inside(B, begin, split)
+ *                                    * inside(C, split, end) / Z  over the A -> B C projecting to it
+ * Closed unary rules are summed the same way (an annotated rule within one projected symbol counts as
+ * no unary, with a factor of 1), and tags by their posterior. The tree over projected symbols is
+ * debinarized by ChartTreeBuilder, each projected unary rule expanding to the projected path of its
+ * best annotated closed rule.
+ *
+ * Only the items that survived inside-outside are visited, and parents and left children whose log
+ * posterior is below pruningThreshold are skipped (their mass is left out of the sums).
+ *
+ * Thread safe: the passes of each sentence work on their own pooled charts.
+ */
+public class MaxRuleDecoder {
+    // pruning threshold on the log posterior of the annotated items: none in practice change the tree
+    public static final double DEFAULT_PRUNING_THRESHOLD = -12.0;
+
+    // =========================FIELDS=========================
+    private final InsideOutside insideOutside;
+    private final double pruningThreshold;
+
+    // annotated binary rules by left child (shared with the CompiledGrammar), and their projected rule
+    private final int[] binaryStart;
+    private final int[] binaryParent;
+    private final int[] binaryRightChild;
+    private final double[] binaryProbability;
+    private final int[] binaryProjection;
+    // annotated closed unary rules by parent, and their projected rule (-1 for a rule within one symbol)
+    private final int[] unaryByParentStart;
+    private final int[] unaryByParentChild;
+    private final double[] unaryByParentProbability;
+    private final int[] unaryProjection;
+
+    // projected symbols and rules
+    private final int numLabels;
+    private final int numProjectedLabels;
+    private final int[] labelProjection;
+    private final int projectedRoot;
+    private final int[] projectedBinaryParent;
+    private final int[] projectedBinaryLeftChild;
+    private final int[] projectedBinaryRightChild;
+    private final int[] projectedUnaryParent;
+    private final int[] projectedUnaryChild;
+    private final ChartTreeBuilder treeBuilder;
+
+    private final ConcurrentLinkedDeque<Workspace> idleWorkspaces = new ConcurrentLinkedDeque<>();
+    // =========================END OF FIELDS=========================
+
+    // =========================CONSTRUCTOR=========================
+    public MaxRuleDecoder(ParserModel model, LabelProjection projection, double pruningThreshold) {
+        if (!(pruningThreshold <= 0.0)) {
+            throw new IllegalArgumentException("Pruning threshold is a log posterior <= 0, not " + pruningThreshold);
+        }
+        this.insideOutside = new InsideOutside(model);
+        this.pruningThreshold = pruningThreshold;
+
+        // projected symbols, in the order of the annotated labels: ROOT stays first
+        Indexer<String> labels = model.getGrammar().getLabelIndexer();
+        Indexer<String> projectedLabels = new Indexer<>();
+        this.numLabels = labels.size();
+        this.labelProjection = new int[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            labelProjection[label] = projectedLabels.addAndGetIndex(projection.project(labels.get(label)));
+        }
+        this.numProjectedLabels = projectedLabels.size();
+        this.projectedRoot = labelProjection[0];
+
+        CompiledGrammar grammar = model.getCompiledGrammar();
+        binaryStart = grammar.leftChildStart;
+        binaryParent = grammar.parent;
+        binaryRightChild = grammar.rightChild;
+        binaryProbability = new double[grammar.numBinaryRules];
+        binaryProjection = new int[grammar.numBinaryRules];
+        Map<List<Integer>, Integer> projectedBinaryRules = new HashMap<>();
+        for (int r = 0; r < grammar.numBinaryRules; r++) {
+            binaryProbability[r] = Math.exp(grammar.score[r]);
+            binaryProjection[r] = indexOf(projectedBinaryRules, labelProjection[grammar.parent[r]],
+                    labelProjection[grammar.leftChild[r]], labelProjection[grammar.rightChild[r]]);
+        }
+        this.projectedBinaryParent = new int[projectedBinaryRules.size()];
+        this.projectedBinaryLeftChild = new int[projectedBinaryRules.size()];
+        this.projectedBinaryRightChild = new int[projectedBinaryRules.size()];
+        for (Map.Entry<List<Integer>, Integer> entry : projectedBinaryRules.entrySet()) {
+            projectedBinaryParent[entry.getValue()] = entry.getKey().get(0);
+            projectedBinaryLeftChild[entry.getValue()] = entry.getKey().get(1);
+            projectedBinaryRightChild[entry.getValue()] = entry.getKey().get(2);
+        }
+
+        CompiledUnaryClosure unaryClosure = model.getCompiledUnaryClosure();
+        unaryByParentStart = unaryClosure.parentStart;
+        unaryByParentChild = new int[unaryClosure.numRules];
+        unaryByParentProbability = new double[unaryClosure.numRules];
+        unaryProjection = new int[unaryClosure.numRules];
+        Map<List<Integer>, Integer> projectedUnaryRules = new HashMap<>();
+        for (int u = 0; u < unaryClosure.numRules; u++) {
+            int r = unaryClosure.rulesByParent[u];
+            unaryByParentChild[u] = unaryClosure.child[r];
+            unaryByParentProbability[u] = Math.exp(unaryClosure.score[r]);
+            int X = labelProjection[unaryClosure.parent[r]];
+            int Y = labelProjection[unaryClosure.child[r]];
+            unaryProjection[u] = (X == Y) ? -1 : indexOf(projectedUnaryRules, X, Y);
+        }
+        this.projectedUnaryParent = new int[projectedUnaryRules.size()];
+        this.projectedUnaryChild = new int[projectedUnaryRules.size()];
+        for (Map.Entry<List<Integer>, Integer> entry : projectedUnaryRules.entrySet()) {
+            projectedUnaryParent[entry.getValue()] = entry.getKey().get(0);
+            projectedUnaryChild[entry.getValue()] = entry.getKey().get(1);
+        }
+
+        // the unary chain of each projected rule is the path of its best annotated closed rule, projected:
+        // a closure over the projected unary rules would chain maxima of different annotations instead
+        int[] bestRule = new int[projectedUnaryParent.length];
+        Arrays.fill(bestRule, -1);
+        for (int u = 0; u < unaryClosure.numRules; u++) {
+            int rule = unaryProjection[u];
+            if (rule < 0) continue;
+            int r = unaryClosure.rulesByParent[u];
+            if (bestRule[rule] < 0 || unaryClosure.score[r] > unaryClosure.score[bestRule[rule]]) bestRule[rule] = r;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<UnaryRule>[] rulesByChild = new List[numProjectedLabels];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<UnaryRule>[] rulesByParent = new List[numProjectedLabels];
+        for (int X = 0; X < numProjectedLabels; X++) {
+            rulesByChild[X] = new ArrayList<>();
+            rulesByParent[X] = new ArrayList<>();
+        }
+        Map<UnaryRule, List<Integer>> paths = new HashMap<>();
+        for (int u = 0; u < projectedUnaryParent.length; u++) {
+            int r = bestRule[u];
+            UnaryRule rule = new UnaryRule(projectedUnaryParent[u], projectedUnaryChild[u]);
+            rule.setScore(unaryClosure.score[r]);
+            List<Integer> path = new ArrayList<>();
+            path.add(rule.getParent());
+            for (int i = unaryClosure.pathStart[r]; i < unaryClosure.pathStart[r + 1]; i++) {
+                int label = labelProjection[unaryClosure.pathLabels[i]];
+                if (label != path.get(path.size() - 1) && label != rule.getChild()) path.add(label);
+            }
+            path.add(rule.getChild());
+            rulesByChild[rule.getChild()].add(rule);
+            rulesByParent[rule.getParent()].add(rule);
+            paths.put(rule, path);
+        }
+        CompiledUnaryClosure projectedClosure = new CompiledUnaryClosure(
+                new StoredUnaryClosure(projectedLabels, rulesByChild, rulesByParent, paths), numProjectedLabels);
+        this.treeBuilder = new ChartTreeBuilder(projectedLabels, projectedClosure);
+    }
+
+    private static int indexOf(Map<List<Integer>, Integer> rules, Integer... symbols) {
+        List<Integer> key = Arrays.asList(symbols);
+        Integer index = rules.get(key);
+        if (index == null) {
+            index = rules.size();
+            rules.put(key, index);
+        }
+        return index;
+    }
+    // =========================END OF CONSTRUCTOR=========================
+
+    /**
+     * Per-thread charts and scratch space, always left zeroed
+     */
+    private final class Workspace {
+        final CKYChart chart = new CKYChart(numProjectedLabels);
+        final double[] binarySum = new double[projectedBinaryParent.length];
+        final int[] touchedBinary = new int[projectedBinaryParent.length];
+        final double[] unarySum = new double[projectedUnaryParent.length];
+        final int[] touchedUnary = new int[projectedUnaryParent.length];
+        final double[] labelSum = new double[numProjectedLabels];
+        final int[] touchedLabels = new int[numProjectedLabels];
+        // [annotated label] => scaled outside or inside probability of the cell being decoded
+        final double[] parentProbability = new double[numLabels];
+        final double[] childProbability = new double[numLabels];
+    }
+
+    /**
+     * Max-rule-product tree of the sentence, unannotated
+     * @return null when the sentence has no parse, or none made of items above the pruning threshold
+     */
+    public Tree<String> decode(List<String> sentence) {
+        int n = sentence.size();
+        if (n == 0) return null;
+        InsideOutsideChart posteriors = insideOutside.compute(sentence);
+        Workspace workspace = idleWorkspaces.pollFirst();
+        if (workspace == null) workspace = new Workspace();
+        try {
+            if (!posteriors.hasParse()) return null;
+            CKYChart chart = workspace.chart;
+            chart.reset(n);
+            for (int span = 1; span <= n; span++) {
+                for (int begin = 0; begin <= n - span; begin++) {
+                    int end = begin + span;
+                    if (posteriors.cellScale[posteriors.inside.cell(begin, end)] == Double.NEGATIVE_INFINITY) continue;
+                    if (span == 1) {
+                        tags(posteriors, workspace, begin);
+                    } else {
+                        binaries(posteriors, workspace, begin, end);
+                    }
+                    unaries(posteriors, workspace, begin, end);
+                }
+            }
+            if (!chart.hasUnary(0, n, projectedRoot)) return null;
+            return treeBuilder.buildTree(chart, sentence, projectedRoot, 0, n);
+        } finally {
+            insideOutside.release(posteriors);
+            idleWorkspaces.offerFirst(workspace);
+        }
+    }
+
+    // =========================MAX-RULE PASS=========================
+    /**
+     * Projected tags of a word, scored by the summed posteriors of their annotated tags
+     */
+    private void tags(InsideOutsideChart posteriors, Workspace workspace, int i) {
+        double[] sum = workspace.labelSum;
+        int[] touched = workspace.touchedLabels;
+        int numTouched = 0;
+        for (int k = 0; k < posteriors.getNumBinaryLabels(i, i + 1); k++) {
+            int tag = posteriors.getBinaryLabel(i, i + 1, k);
+            double logPosterior = posteriors.getBinaryLogPosterior(i, i + 1, tag);
+            if (logPosterior < pruningThreshold) continue;
+            double posterior = Math.exp(logPosterior);
+            if (posterior == 0.0) continue;
+            int T = labelProjection[tag];
+            if (sum[T] == 0.0) touched[numTouched++] = T;
+            sum[T] += posterior;
+        }
+        for (int t = 0; t < numTouched; t++) {
+            int T = touched[t];
+            workspace.chart.setLexical(i, T, Math.log(sum[T]));
+            sum[T] = 0.0;
+        }
+    }
+
+    /**
+     * Projected binary rules over [begin, end]: the posteriors of the annotated rules are summed by
+     * projected rule for each split, as probabilities scaled like the ones of InsideOutside
+     */
+    private void binaries(InsideOutsideChart posteriors, Workspace workspace, int begin, int end) {
+        CKYChart inside = posteriors.inside;
+        CKYChart chart = workspace.chart;
+        int cell = inside.cell(begin, end);
+        int offset = cell * numLabels;
+        double logZ = posteriors.logZ;
+
+        double[] parentProbability = workspace.parentProbability;
+        double outsideScale = Double.NEGATIVE_INFINITY;
+        for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+            int A = inside.binaryLabels[offset + l];
+            if (posteriors.getBinaryLogPosterior(begin, end, A) < pruningThreshold) continue;
+            outsideScale = Math.max(outsideScale, posteriors.outsideBinaryScore[offset + A]);
+        }
+        if (outsideScale == Double.NEGATIVE_INFINITY) return;
+        for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+            int A = inside.binaryLabels[offset + l];
+            if (posteriors.getBinaryLogPosterior(begin, end, A) < pruningThreshold) continue;
+            parentProbability[A] = Math.exp(posteriors.outsideBinaryScore[offset + A] - outsideScale);
+        }
+
+        double[] sum = workspace.binarySum;
+        int[] touched = workspace.touchedBinary;
+        for (int split = begin + 1; split < end; split++) {
+            int leftCell = inside.cell(begin, split);
+            int rightCell = inside.cell(split, end);
+            double leftScale = posteriors.cellScale[leftCell];
+            double rightScale = posteriors.cellScale[rightCell];
+            if (leftScale == Double.NEGATIVE_INFINITY || rightScale == Double.NEGATIVE_INFINITY) continue;
+            int leftOffset = leftCell * numLabels;
+            int rightOffset = rightCell * numLabels;
+
+            int numTouched = 0;
+            for (int l = 0; l < inside.numUnaryLabels[leftCell]; l++) {
+                int B = inside.unaryLabels[leftOffset + l];
+                double leftProbability = posteriors.scaledInside[leftOffset + B];
+                if (leftProbability == 0.0 || posteriors.getLogPosterior(begin, split, B) < pruningThreshold) continue;
+                for (int r = binaryStart[B]; r < binaryStart[B + 1]; r++) {
+                    double outsideProbability = parentProbability[binaryParent[r]];
+                    if (outsideProbability == 0.0) continue;
+                    double rightProbability = posteriors.scaledInside[rightOffset + binaryRightChild[r]];
+                    if (rightProbability == 0.0) continue;
+                    double probability = outsideProbability * binaryProbability[r] * leftProbability * rightProbability;
+                    if (probability == 0.0) continue;
+                    int rule = binaryProjection[r];
+                    if (sum[rule] == 0.0) touched[numTouched++] = rule;
+                    sum[rule] += probability;
+                }
+            }
+
+            double scale = outsideScale + leftScale + rightScale - logZ;
+            for (int t = 0; t < numTouched; t++) {
+                int rule = touched[t];
+                double ruleScore = Math.log(sum[rule]) + scale;
+                sum[rule] = 0.0;
+                int X = projectedBinaryParent[rule];
+                int Y = projectedBinaryLeftChild[rule];
+                int Z = projectedBinaryRightChild[rule];
+                double leftScore = chart.getUnaryScore(begin, split, Y);
+                if (leftScore == Double.NEGATIVE_INFINITY) continue;
+                double rightScore = chart.getUnaryScore(split, end, Z);
+                if (rightScore == Double.NEGATIVE_INFINITY) continue;
+                double score = leftScore + rightScore + ruleScore;
+                if (score > chart.getBinaryScore(begin, end, X)) {
+                    chart.setBinary(begin, end, X, score, split, Y, Z);
+                }
+            }
+        }
+        for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+            parentProbability[inside.binaryLabels[offset + l]] = 0.0;
+        }
+    }
+
+    /**
+     * Projected symbols after unaries over [begin, end]: each symbol before unaries is kept as is,
+     * unless a projected closed unary rule does better
+     */
+    private void unaries(InsideOutsideChart posteriors, Workspace workspace, int begin, int end) {
+        CKYChart inside = posteriors.inside;
+        CKYChart chart = workspace.chart;
+        int cell = inside.cell(begin, end);
+        int offset = cell * numLabels;
+        int projectedCell = chart.cell(begin, end);
+        int projectedOffset = projectedCell * numProjectedLabels;
+
+        // over one word, setLexical already made each tag its own symbol after unaries
+        if (end > begin + 1) {
+            for (int l = 0; l < chart.numBinaryLabels[projectedCell]; l++) {
+                int Y = chart.binaryLabels[projectedOffset + l];
+                chart.setUnary(begin, end, Y, chart.binaryScore[projectedOffset + Y], Y);
+            }
+        }
+        if (chart.numBinaryLabels[projectedCell] == 0) return;
+
+        double outsideScale = Double.NEGATIVE_INFINITY;
+        for (int l = 0; l < inside.numUnaryLabels[cell]; l++) {
+            int A = inside.unaryLabels[offset + l];
+            if (posteriors.getLogPosterior(begin, end, A) < pruningThreshold) continue;
+            outsideScale = Math.max(outsideScale, posteriors.outsideScore[offset + A]);
+        }
+        if (outsideScale == Double.NEGATIVE_INFINITY) return;
+        double[] childProbability = workspace.childProbability;
+        double insideScale = Double.NEGATIVE_INFINITY;
+        for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+            insideScale = Math.max(insideScale, inside.binaryScore[offset + inside.binaryLabels[offset + l]]);
+        }
+        for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+            int B = inside.binaryLabels[offset + l];
+            childProbability[B] = Math.exp(inside.binaryScore[offset + B] - insideScale);
+        }
+
+        double[] sum = workspace.unarySum;
+        int[] touched = workspace.touchedUnary;
+        int numTouched = 0;
+        for (int l = 0; l < inside.numUnaryLabels[cell]; l++) {
+            int A = inside.unaryLabels[offset + l];
+            if (posteriors.getLogPosterior(begin, end, A) < pruningThreshold) continue;
+            double outsideProbability = Math.exp(posteriors.outsideScore[offset + A] - outsideScale);
+            if (outsideProbability == 0.0) continue;
+            for (int u = unaryByParentStart[A]; u < unaryByParentStart[A + 1]; u++) {
+                int rule = unaryProjection[u];
+                if (rule < 0) continue;
+                double probability = outsideProbability * unaryByParentProbability[u] * childProbability[unaryByParentChild[u]];
+                if (probability == 0.0) continue;
+                if (sum[rule] == 0.0) touched[numTouched++] = rule;
+                sum[rule] += probability;
+            }
+        }
+        for (int l = 0; l < inside.numBinaryLabels[cell]; l++) {
+            childProbability[inside.binaryLabels[offset + l]] = 0.0;
+        }
+
+        double scale = outsideScale + insideScale - posteriors.logZ;
+        for (int t = 0; t < numTouched; t++) {
+            int rule = touched[t];
+            double ruleScore = Math.log(sum[rule]) + scale;
+            sum[rule] = 0.0;
+            int X = projectedUnaryParent[rule];
+            int Y = projectedUnaryChild[rule];
+            double childScore = chart.getBinaryScore(begin, end, Y);
+            if (childScore == Double.NEGATIVE_INFINITY) continue;
+            double score = ruleScore + childScore;
+            if (score > chart.getUnaryScore(begin, end, X)) {
+                chart.setUnary(begin, end, X, score, Y);
+            }
+        }
+    }
+    // =========================END OF MAX-RULE PASS=========================
+}
@@ -0,0 +1,231 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Context summary (SX) outside estimates of Klein & Manning's A* parser: for each label and each
+ * context of (left, right) words around its span, a grammar-only upper bound of its best outside score:
+ * the best score of the rules of an outside tree, with every tag score taken as 0. Adding the tag
+ * scores of the actual words outside the span (or bounds of them) gives a bound of the outside score
+ * in a sentence. They only depend on the grammar, so they are computed once and saved with the model
+ * (see ParserModel.getOutsideEstimates and ParserModelFile).
+ *
+ * There is one table per layer of the CKY chart: labels after unaries (what binary rules read) and
+ * before unaries (binaries, or tags for spans of one word). Both are computed in the exact recursion
+ * of the chart, from bounds of the inside scores by span length where every tag scores 0. Estimates
+ * are stored as floats rounded up, so they stay upper bounds, and are only kept for contexts of at
+ * most maxContext words: beyond that getters answer 0, which no rule score sum exceeds.
+ *
+ * Double.NEGATIVE_INFINITY means that no sentence has the label in that context.
+ */
+public class OutsideEstimates {
+    public static final int DEFAULT_MAX_CONTEXT = 30;
+
+    // =========================FIELDS=========================
+    private final int numLabels;
+    private final int maxContext;
+    // [context(left, right) * numLabels + label] => estimate, after and before unaries
+    private final float[] unaryOutside;
+    private final float[] binaryOutside;
+    // =========================END OF FIELDS=========================
+
+    /**
+     * Tables read back from a model file (see ParserModelFile)
+     */
+    OutsideEstimates(int numLabels, int maxContext, float[] unaryOutside, float[] binaryOutside) {
+        int size = numContexts(maxContext) * numLabels;
+        if (unaryOutside.length != size || binaryOutside.length != size) {
+            throw new IllegalArgumentException("Outside estimate tables of " + unaryOutside.length + " and "
+                    + binaryOutside.length + " entries, expected " + size);
+        }
+        this.numLabels = numLabels;
+        this.maxContext = maxContext;
+        this.unaryOutside = unaryOutside;
+        this.binaryOutside = binaryOutside;
+    }
+
+    // =========================COMPUTATION=========================
+    /**
+     * Compute the estimates of a model for contexts of up to maxContext words
+     * Costs O(binary rules * maxContext^3 + closed unary rules * maxContext^2)
+     */
+    public static OutsideEstimates compute(ParserModel model, int maxContext) {
+        if (maxContext < 0) {
+            throw new IllegalArgumentException("Context length must not be negative, not " + maxContext);
+        }
+        long nanos = System.nanoTime();
+        System.out.print("Computing outside estimates for contexts up to " + maxContext + " words ... ");
+        int numLabels = model.getNumNonTerminals();
+        CompiledGrammar grammar = model.getCompiledGrammar();
+        CompiledUnaryClosure closure = model.getCompiledUnaryClosure();
+
+        // inside bounds, [length * numLabels + label] for lengths 1 .. maxContext
+        double[] insideBinary = newTable((maxContext + 1) * numLabels);
+        double[] insideUnary = newTable((maxContext + 1) * numLabels);
+        for (int tag : tagLabels(model.getCompiledLexicon())) {
+            insideBinary[numLabels + tag] = 0.0;
+        }
+        for (int length = 1; length <= maxContext; length++) {
+            int offset = length * numLabels;
+            for (int leftLength = 1; leftLength < length; leftLength++) {
+                int leftOffset = leftLength * numLabels;
+                int rightOffset = (length - leftLength) * numLabels;
+                for (int r = 0; r < grammar.numBinaryRules; r++) {
+                    double score = insideUnary[leftOffset + grammar.leftChild[r]]
+                            + insideUnary[rightOffset + grammar.rightChild[r]] + grammar.score[r];
+                    if (score > insideBinary[offset + grammar.parent[r]]) insideBinary[offset + grammar.parent[r]] = score;
+                }
+            }
+            closeUnaries(insideBinary, insideUnary, offset, numLabels, closure);
+        }
+
+        // outside bounds, by increasing context: the parent of a child in context (left, right) has a
+        // shorter context, as its sibling takes some of the words
+        int numContexts = numContexts(maxContext);
+        double[] unaryOutside = newTable(numContexts * numLabels);
+        double[] binaryOutside = newTable(numContexts * numLabels);
+        unaryOutside[0] = 0.0; // ROOT (label 0) over the whole sentence
+        fromUnaryParents(unaryOutside, binaryOutside, 0, numLabels, closure);
+        for (int contextLength = 1; contextLength <= maxContext; contextLength++) {
+            for (int left = 0; left <= contextLength; left++) {
+                int right = contextLength - left;
+                int offset = context(left, right) * numLabels;
+                for (int r = 0; r < grammar.numBinaryRules; r++) {
+                    int A = grammar.parent[r];
+                    double ruleScore = grammar.score[r];
+                    // left child, its sibling takes k words of the right context
+                    int B = grammar.leftChild[r];
+                    for (int k = 1; k <= right; k++) {
+                        double score = binaryOutside[context(left, right - k) * numLabels + A] + ruleScore
+                                + insideUnary[k * numLabels + grammar.rightChild[r]];
+                        if (score > unaryOutside[offset + B]) unaryOutside[offset + B] = score;
+                    }
+                    // right child, its sibling takes k words of the left context
+                    int C = grammar.rightChild[r];
+                    for (int k = 1; k <= left; k++) {
+                        double score = binaryOutside[context(left - k, right) * numLabels + A] + ruleScore
+                                + insideUnary[k * numLabels + B];
+                        if (score > unaryOutside[offset + C]) unaryOutside[offset + C] = score;
+                    }
+                }
+                fromUnaryParents(unaryOutside, binaryOutside, offset, numLabels, closure);
+            }
+        }
+        OutsideEstimates estimates = new OutsideEstimates(numLabels, maxContext, roundUp(unaryOutside), roundUp(binaryOutside));
+        System.out.println("done. (" + (System.nanoTime() - nanos) / 1000000 + " millis)");
+        return estimates;
+    }
+
+    /**
+     * Labels of the tags of any word, the unknown one included
+     */
+    private static Set<Integer> tagLabels(CompiledLexicon lexicon) {
+        Set<Integer> tags = new HashSet<>();
+        for (int wordId = CompiledLexicon.UNKNOWN_WORD; wordId < lexicon.getNumWords(); wordId++) {
+            for (int tag : lexicon.getTags(wordId)) tags.add(tag);
+        }
+        return tags;
+    }
+
+    /**
+     * Inside bounds after unaries of the labels of one length: a label keeps its own bound
+     * (tags are their own unary label), and gets the ones of its closed unary children
+     */
+    private static void closeUnaries(double[] binary, double[] unary, int offset, int numLabels,
+                                     CompiledUnaryClosure closure) {
+        System.arraycopy(binary, offset, unary, offset, numLabels);
+        for (int B = 0; B < numLabels; B++) {
+            double scoreB = binary[offset + B];
+            if (scoreB == Double.NEGATIVE_INFINITY) continue;
+            for (int r = closure.childStart[B]; r < closure.childStart[B + 1]; r++) {
+                double score = closure.score[r] + scoreB;
+                int A = closure.parent[r];
+                if (score > unary[offset + A]) unary[offset + A] = score;
+            }
+        }
+    }
+
+    /**
+     * Outside bounds before unaries of one context: a label keeps its own bound after unaries
+     * (tags are their own unary label), and gets the ones of its closed unary parents
+     */
+    private static void fromUnaryParents(double[] unary, double[] binary, int offset, int numLabels,
+                                         CompiledUnaryClosure closure) {
+        for (int B = 0; B < numLabels; B++) {
+            double best = unary[offset + B];
+            for (int r = closure.childStart[B]; r < closure.childStart[B + 1]; r++) {
+                best = Math.max(best, closure.score[r] + unary[offset + closure.parent[r]]);
+            }
+            binary[offset + B] = best;
+        }
+    }
+
+    private static double[] newTable(int size) {
+        double[] table = new double[size];
+        Arrays.fill(table, Double.NEGATIVE_INFINITY);
+        return table;
+    }
+
+    /**
+     * Float copy of the table, never below the double value
+     */
+    private static float[] roundUp(double[] table) {
+        float[] rounded = new float[table.length];
+        for (int i = 0; i < table.length; i++) {
+            float value = (float) table[i];
+            rounded[i] = (value < table[i]) ? Math.nextUp(value) : value;
+        }
+        return rounded;
+    }
+    // =========================END OF COMPUTATION=========================
+
+    // =========================LAYOUT=========================
+    private static int numContexts(int maxContext) {
+        return (maxContext + 1) * (maxContext + 2) / 2;
+    }
+
+    /**
+     * Index of the context (left, right): contexts are sorted by length, then by left
+     */
+    private static int context(int left, int right) {
+        int length = left + right;
+        return length * (length + 1) / 2 + left;
+    }
+    // =========================END OF LAYOUT=========================
+
+    // =========================GETTERS=========================
+    /**
+     * Estimate of the label after unaries, with left words before its span and right words after it
+     */
+    public double getUnaryOutside(int label, int left, int right) {
+        if (left + right > maxContext) return 0.0;
+        return unaryOutside[context(left, right) * numLabels + label];
+    }
+
+    /**
+     * Estimate of the label before unaries, with left words before its span and right words after it
+     */
+    public double getBinaryOutside(int label, int left, int right) {
+        if (left + right > maxContext) return 0.0;
+        return binaryOutside[context(left, right) * numLabels + label];
+    }
+
+    public int getNumLabels() {
+        return numLabels;
+    }
+
+    public int getMaxContext() {
+        return maxContext;
+    }
+
+    float[] getUnaryTable() {
+        return unaryOutside;
+    }
+
+    float[] getBinaryTable() {
+        return binaryOutside;
+    }
+    // =========================END OF GETTERS=========================
+}
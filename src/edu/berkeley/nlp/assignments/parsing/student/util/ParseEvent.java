@@ -0,0 +1,83 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event of one parse, committed by ParseMetrics.record from its ParseStats
+ * (recorded by any running flight recording, e.g. java -XX:StartFlightRecording=filename=parse.jfr)
+ */
+@Name("edu.berkeley.nlp.Parse")
+@Label("Parse")
+@Category("Parser")
+@Description("One CKY parse, with the time of each phase")
+public class ParseEvent extends Event {
+
+    @Label("Sentence Length")
+    int sentenceLength;
+
+    @Label("Parsed")
+    boolean parsed;
+
+    @Label("Lexical")
+    @Timespan
+    long lexical;
+
+    @Label("Binary")
+    @Timespan
+    long binary;
+
+    @Label("Unary")
+    @Timespan
+    long unary;
+
+    @Label("Backtrace")
+    @Timespan
+    long backtrace;
+
+    @Label("Unannotate")
+    @Timespan
+    long unannotate;
+
+    @Label("Cells Filled")
+    int cellsFilled;
+
+    @Label("Labels per Cell")
+    double labelsPerCell;
+
+    @Label("Binary Rule Applications")
+    long binaryRuleApplications;
+
+    @Label("Unary Rule Applications")
+    long unaryRuleApplications;
+
+    @Label("Chart Size")
+    @DataAmount
+    long chartBytes;
+
+    /**
+     * Commit an event with the figures of the parse, if the event is enabled in a running recording
+     */
+    static void commit(ParseStats stats) {
+        ParseEvent event = new ParseEvent();
+        if (!event.shouldCommit()) return;
+        event.sentenceLength = stats.getSentenceLength();
+        event.parsed = stats.isParsed();
+        event.lexical = stats.getLexicalNanos();
+        event.binary = stats.getBinaryNanos();
+        event.unary = stats.getUnaryNanos();
+        event.backtrace = stats.getBacktraceNanos();
+        event.unannotate = stats.getUnannotateNanos();
+        event.cellsFilled = stats.getCellsFilled();
+        event.labelsPerCell = stats.getLabelsPerCell();
+        event.binaryRuleApplications = stats.getBinaryRuleApplications();
+        event.unaryRuleApplications = stats.getUnaryRuleApplications();
+        event.chartBytes = stats.getPeakChartBytes();
+        event.commit();
+    }
+}
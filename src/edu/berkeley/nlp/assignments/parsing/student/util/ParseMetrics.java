@@ -0,0 +1,132 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregate of the ParseStats of many parses: latency histograms by sentence length, and the time
+ * spent in each phase. Set it on a parser with CKYNaiveParser.setParseMetrics; each parse is also
+ * committed as a ParseEvent when a flight recording is running.
+ *
+ * Sentence lengths are grouped by 10 words (the last group holds all sentences of 100 words or more),
+ * latencies in power of two buckets of microseconds. Thread safe: parsers of a batch record concurrently.
+ */
+public class ParseMetrics {
+
+    // =========================FIELDS=========================
+    private static final int LENGTH_GROUP = 10;
+    private static final int NUM_LENGTH_GROUPS = 11;
+    // bucket b holds latencies in [2^(b-1), 2^b) microseconds, bucket 0 latencies under 1 microsecond
+    private static final int NUM_LATENCY_BUCKETS = 40;
+    private static final String[] PHASES = { "lexical", "binary", "unary", "backtrace", "unannotate" };
+
+    // [length group * NUM_LATENCY_BUCKETS + bucket] => number of parses
+    private final AtomicLongArray latencyCounts = new AtomicLongArray(NUM_LENGTH_GROUPS * NUM_LATENCY_BUCKETS);
+    // [length group] => number of parses, of failed parses, total and max latency
+    private final AtomicLongArray parses = new AtomicLongArray(NUM_LENGTH_GROUPS);
+    private final AtomicLongArray failures = new AtomicLongArray(NUM_LENGTH_GROUPS);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(NUM_LENGTH_GROUPS);
+    private final AtomicLongArray maxNanos = new AtomicLongArray(NUM_LENGTH_GROUPS);
+    // [phase] => total time, in the order of PHASES
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(PHASES.length);
+    private final AtomicLongArray ruleApplications = new AtomicLongArray(2);
+    // =========================END OF FIELDS=========================
+
+    public void record(ParseStats stats) {
+        int group = Math.min(stats.getSentenceLength() / LENGTH_GROUP, NUM_LENGTH_GROUPS - 1);
+        long nanos = stats.getTotalNanos();
+        latencyCounts.incrementAndGet(group * NUM_LATENCY_BUCKETS + latencyBucket(nanos));
+        parses.incrementAndGet(group);
+        if (!stats.isParsed()) failures.incrementAndGet(group);
+        totalNanos.addAndGet(group, nanos);
+        long max;
+        while (nanos > (max = maxNanos.get(group)) && !maxNanos.compareAndSet(group, max, nanos)) {
+        }
+        phaseNanos.addAndGet(0, stats.getLexicalNanos());
+        phaseNanos.addAndGet(1, stats.getBinaryNanos());
+        phaseNanos.addAndGet(2, stats.getUnaryNanos());
+        phaseNanos.addAndGet(3, stats.getBacktraceNanos());
+        phaseNanos.addAndGet(4, stats.getUnannotateNanos());
+        ruleApplications.addAndGet(0, stats.getBinaryRuleApplications());
+        ruleApplications.addAndGet(1, stats.getUnaryRuleApplications());
+        ParseEvent.commit(stats);
+    }
+
+    private static int latencyBucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_LATENCY_BUCKETS - 1);
+    }
+
+    // =========================SNAPSHOT=========================
+    /**
+     * Latency histogram of the sentences of lengths [10 * group, 10 * group + 9]
+     * @return [b] => number of parses with a latency in [2^(b-1), 2^b) microseconds
+     */
+    public long[] getLatencyHistogram(int lengthGroup) {
+        long[] histogram = new long[NUM_LATENCY_BUCKETS];
+        for (int b = 0; b < NUM_LATENCY_BUCKETS; b++) {
+            histogram[b] = latencyCounts.get(lengthGroup * NUM_LATENCY_BUCKETS + b);
+        }
+        return histogram;
+    }
+
+    /**
+     * Upper bound of the latency bucket holding the given quantile, in microseconds
+     */
+    public long getLatencyQuantileMicros(int lengthGroup, double quantile) {
+        long[] histogram = getLatencyHistogram(lengthGroup);
+        long count = 0;
+        for (long c : histogram) count += c;
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int b = 0; b < NUM_LATENCY_BUCKETS; b++) {
+            seen += histogram[b];
+            if (seen >= rank) return 1L << b;
+        }
+        return 1L << (NUM_LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Flat snapshot of the metrics, to export to a monitoring system or print
+     * Keys are "parse.len<from>-<to>.<metric>" for each length group with parses (count, failures,
+     * mean_us, p50_us, p90_us, p99_us, max_us), then "parse.<phase>_ms" and "parse.<binary|unary>_rule_applications"
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (int group = 0; group < NUM_LENGTH_GROUPS; group++) {
+            long count = parses.get(group);
+            if (count == 0) continue;
+            String prefix = "parse." + lengthGroupName(group) + ".";
+            snapshot.put(prefix + "count", count);
+            snapshot.put(prefix + "failures", failures.get(group));
+            snapshot.put(prefix + "mean_us", totalNanos.get(group) / count / 1000);
+            snapshot.put(prefix + "p50_us", getLatencyQuantileMicros(group, 0.5));
+            snapshot.put(prefix + "p90_us", getLatencyQuantileMicros(group, 0.9));
+            snapshot.put(prefix + "p99_us", getLatencyQuantileMicros(group, 0.99));
+            snapshot.put(prefix + "max_us", maxNanos.get(group) / 1000);
+        }
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            snapshot.put("parse." + PHASES[phase] + "_ms", phaseNanos.get(phase) / 1000000);
+        }
+        snapshot.put("parse.binary_rule_applications", ruleApplications.get(0));
+        snapshot.put("parse.unary_rule_applications", ruleApplications.get(1));
+        return snapshot;
+    }
+
+    private static String lengthGroupName(int group) {
+        if (group == NUM_LENGTH_GROUPS - 1) return "len" + (group * LENGTH_GROUP) + "+";
+        return "len" + (group * LENGTH_GROUP) + "-" + (group * LENGTH_GROUP + LENGTH_GROUP - 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            sb.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+    // =========================END OF SNAPSHOT=========================
+}
@@ -0,0 +1,137 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+/**
+ * What one call to CKYNaiveParser.getBestParse did, to find out why a sentence is slow.
+ * Only filled when a ParseStats is passed to the parser (or a ParseMetrics is set on it),
+ * parses without one do not time anything.
+ *
+ * Times are in nanoseconds. When the cells of a span are filled concurrently (see setParallelCKY)
+ * the binary and unary times are summed over the threads which filled them.
+ * Rule applications count the (binary rule, split) pairs tried within the extents of the children,
+ * and the closed unary rules tried on the labels of each cell.
+ * CKYNaiveParser unannotates its trees within the backtrace (see ChartTreeBuilder), so its unannotate
+ * time is 0: the phase is kept for parsers which still unannotate a separate annotated tree.
+ */
+public class ParseStats {
+
+    // =========================FIELDS=========================
+    private final int sentenceLength;
+    private long lexicalNanos;
+    private long binaryNanos;
+    private long unaryNanos;
+    private long backtraceNanos;
+    private long unannotateNanos;
+    private long binaryRuleApplications;
+    private long unaryRuleApplications;
+    // cells with at least one label after unaries, and their labels
+    private int cellsFilled;
+    private long labels;
+    private int maxCellLabels;
+    private long peakChartBytes;
+    private boolean parsed;
+    // =========================END OF FIELDS=========================
+
+    public ParseStats(int sentenceLength) {
+        this.sentenceLength = sentenceLength;
+    }
+
+    // =========================RECORDING=========================
+    public void addLexical(long nanos) {
+        lexicalNanos += nanos;
+    }
+
+    public void addBacktrace(long nanos) {
+        backtraceNanos += nanos;
+    }
+
+    public void addUnannotate(long nanos) {
+        unannotateNanos += nanos;
+    }
+
+    /**
+     * Binary then unary pass over the cell(s) of span 1 or more
+     * Synchronized: cells of the same span may be filled concurrently
+     */
+    public synchronized void addCell(long binaryNanos, long binaryRuleApplications, long unaryNanos,
+                                     long unaryRuleApplications) {
+        this.binaryNanos += binaryNanos;
+        this.binaryRuleApplications += binaryRuleApplications;
+        this.unaryNanos += unaryNanos;
+        this.unaryRuleApplications += unaryRuleApplications;
+    }
+
+    /**
+     * Count the labels of the chart once CKY is done, and its size
+     */
+    public void addChart(CKYChart chart) {
+        for (int begin = 0; begin < chart.length; begin++) {
+            for (int end = begin + 1; end <= chart.length; end++) {
+                int cellLabels = chart.numUnaryLabels[chart.cell(begin, end)];
+                if (cellLabels == 0) continue;
+                cellsFilled++;
+                labels += cellLabels;
+                maxCellLabels = Math.max(maxCellLabels, cellLabels);
+            }
+        }
+        peakChartBytes = Math.max(peakChartBytes, chart.getAllocatedBytes());
+    }
+
+    public void setParsed(boolean parsed) {
+        this.parsed = parsed;
+    }
+    // =========================END OF RECORDING=========================
+
+    // =========================GETTERS=========================
+    public int getSentenceLength() {
+        return sentenceLength;
+    }
+    public long getLexicalNanos() {
+        return lexicalNanos;
+    }
+    public long getBinaryNanos() {
+        return binaryNanos;
+    }
+    public long getUnaryNanos() {
+        return unaryNanos;
+    }
+    public long getBacktraceNanos() {
+        return backtraceNanos;
+    }
+    public long getUnannotateNanos() {
+        return unannotateNanos;
+    }
+    public long getTotalNanos() {
+        return lexicalNanos + binaryNanos + unaryNanos + backtraceNanos + unannotateNanos;
+    }
+    public long getBinaryRuleApplications() {
+        return binaryRuleApplications;
+    }
+    public long getUnaryRuleApplications() {
+        return unaryRuleApplications;
+    }
+    public int getCellsFilled() {
+        return cellsFilled;
+    }
+    public double getLabelsPerCell() {
+        return (cellsFilled == 0) ? 0.0 : labels / (double) cellsFilled;
+    }
+    public int getMaxCellLabels() {
+        return maxCellLabels;
+    }
+    public long getPeakChartBytes() {
+        return peakChartBytes;
+    }
+    public boolean isParsed() {
+        return parsed;
+    }
+    // =========================END OF GETTERS=========================
+
+    @Override
+    public String toString() {
+        return String.format("length %d%s: %.3f ms (lexical %.3f, binary %.3f, unary %.3f, backtrace %.3f, unannotate %.3f),"
+                        + " %d cells filled, %.1f labels/cell (max %d), %d binary and %d unary rule applications, %d chart bytes",
+                sentenceLength, parsed ? "" : " (no parse)", getTotalNanos() / 1e6, lexicalNanos / 1e6, binaryNanos / 1e6,
+                unaryNanos / 1e6, backtraceNanos / 1e6, unannotateNanos / 1e6, cellsFilled, getLabelsPerCell(),
+                maxCellLabels, binaryRuleApplications, unaryRuleApplications, peakChartBytes);
+    }
+}
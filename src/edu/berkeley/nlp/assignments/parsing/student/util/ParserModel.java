@@ -0,0 +1,190 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.assignments.parsing.UnaryClosure;
+import edu.berkeley.nlp.ling.Tree;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trained model of a CKY parser: grammar, lexicon and unary closure over the markovized trees,
+ * with their compiled forms for the parsing loops.
+ * It is never modified once built, except by the IncrementalTrainer which built it (between parses),
+ * so one instance can be shared by any number of parsing threads.
+ */
+public class ParserModel {
+
+    private final Grammar grammar;
+    private final CompiledGrammar compiledGrammar;
+    private final Lexicon lexicon;
+    private final CompiledLexicon compiledLexicon;
+    private final UnaryClosure unaryClosure;
+    private final CompiledUnaryClosure compiledUnaryClosure;
+    private int numNonTerminals;
+    // A* outside estimates, computed the first time they are asked for unless read from a model file
+    private volatile OutsideEstimates outsideEstimates;
+
+    public ParserModel(Grammar grammar, Lexicon lexicon, UnaryClosure unaryClosure) {
+        this(grammar, lexicon, new CompiledLexicon(lexicon, grammar.getLabelIndexer()), unaryClosure);
+    }
+
+    ParserModel(Grammar grammar, Lexicon lexicon, CompiledLexicon compiledLexicon, UnaryClosure unaryClosure) {
+        this(grammar, lexicon, compiledLexicon, unaryClosure, null);
+    }
+
+    ParserModel(Grammar grammar, Lexicon lexicon, CompiledLexicon compiledLexicon, UnaryClosure unaryClosure,
+                OutsideEstimates outsideEstimates) {
+        this.grammar = grammar;
+        this.compiledGrammar = new CompiledGrammar(grammar);
+        this.lexicon = lexicon;
+        this.compiledLexicon = compiledLexicon;
+        this.unaryClosure = unaryClosure;
+        this.numNonTerminals = grammar.getLabelIndexer().size();
+        this.compiledUnaryClosure = new CompiledUnaryClosure(unaryClosure, numNonTerminals);
+        this.outsideEstimates = outsideEstimates;
+    }
+
+    /**
+     * Markovize the training trees, then build grammar, lexicon and unary closure from them
+     * Counting is spread over all available processors (see TrainingCounts)
+     * @param trainTrees
+     * @param verticalOrder
+     * @param horizontalOrder
+     * @return
+     */
+    public static ParserModel train(Iterable<Tree<String>> trainTrees, int verticalOrder, int horizontalOrder) {
+        return train(trainTrees, verticalOrder, horizontalOrder, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Same model as the serial training, whatever the number of threads
+     * The trees are only iterated once, so they can be streamed from the treebank (see TreebankStream)
+     */
+    public static ParserModel train(Iterable<Tree<String>> trainTrees, int verticalOrder, int horizontalOrder, int numThreads) {
+        System.out.print("Annotating / binarizing and counting training trees on " + numThreads + " thread(s) ... ");
+        TrainingCounts counts = TrainingCounts.countTrees(trainTrees, verticalOrder, horizontalOrder, numThreads);
+        System.out.println("done. (" + counts.getNumTrees() + " trees)");
+        return fromCounts(counts);
+    }
+
+    /**
+     * Build grammar, lexicon and unary closure from trees which are already markovized / binarized
+     * @param annotatedTrainTrees
+     * @return
+     */
+    public static ParserModel fromAnnotatedTrees(List<Tree<String>> annotatedTrainTrees) {
+        return fromCounts(TrainingCounts.countAnnotatedTrees(annotatedTrainTrees));
+    }
+
+    /**
+     * Build grammar, lexicon and unary closure from the counts of markovized trees
+     */
+    public static ParserModel fromCounts(TrainingCounts counts) {
+        System.out.print("Building grammar ... ");
+        Grammar grammar = Grammar.generativeGrammarFromCounts(counts);
+        System.out.println("done. (" + grammar.getLabelIndexer().size() + " states)");
+        System.out.println("Building lexicon...");
+        Lexicon lexicon = new Lexicon(counts);
+
+        System.out.println("There are " + grammar.getLabelIndexer().size() + " non terminals after training");
+        System.out.println("done. with lexicon size of " + lexicon.getAllTags().size());
+
+        // this should be done only after all grammar and lexicon are done
+        System.out.println("Init unary closure...");
+        UnaryClosure unaryClosure = new UnaryClosure(grammar.getLabelIndexer(), grammar.getUnaryRules());
+        return new ParserModel(grammar, lexicon, unaryClosure);
+    }
+
+    /**
+     * Save the model in the binary format of ParserModelFile, without its outside estimates
+     */
+    public void save(Path path) throws IOException {
+        ParserModelFile.write(this, path, false);
+    }
+
+    /**
+     * Save the model with its outside estimates (computed first if they were never asked for),
+     * so that A* parsers over the loaded model start without computing them
+     */
+    public void saveWithOutsideEstimates(Path path) throws IOException {
+        ParserModelFile.write(this, path, true);
+    }
+
+    /**
+     * Load a model saved by save(path): it parses exactly as the saved model
+     */
+    public static ParserModel load(Path path) throws IOException {
+        return ParserModelFile.read(path);
+    }
+
+    /**
+     * Do the markovization of trees before training (and so testing)
+     * Same trees as TreeMarkovAnnotation.annotateTree, built on symbol ids (see TreeAnnotator)
+     */
+    public static List<Tree<String>> annotateTrees(List<Tree<String>> trees, int verticalOrder, int horizontalOrder) {
+        TreeAnnotator annotator = new TreeAnnotator(verticalOrder, horizontalOrder);
+        List<Tree<String>> annotatedTrees = new ArrayList<>();
+        for (Tree<String> tree : trees) {
+            annotatedTrees.add(annotator.annotateTree(tree));
+        }
+        return annotatedTrees;
+    }
+
+    public Grammar getGrammar() {
+        return grammar;
+    }
+
+    public CompiledGrammar getCompiledGrammar() {
+        return compiledGrammar;
+    }
+
+    public Lexicon getLexicon() {
+        return lexicon;
+    }
+
+    public CompiledLexicon getCompiledLexicon() {
+        return compiledLexicon;
+    }
+
+    public UnaryClosure getUnaryClosure() {
+        return unaryClosure;
+    }
+
+    public CompiledUnaryClosure getCompiledUnaryClosure() {
+        return compiledUnaryClosure;
+    }
+
+    public int getNumNonTerminals() {
+        return numNonTerminals;
+    }
+
+    /**
+     * Called by the IncrementalTrainer once it changed grammar, lexicon and closure in place:
+     * labels may have been added, and the outside estimates are computed again when next asked for
+     */
+    void afterUpdate() {
+        this.numNonTerminals = grammar.getLabelIndexer().size();
+        this.outsideEstimates = null;
+    }
+
+    /**
+     * Outside estimates of the A* parser (see AStarParser), for contexts of up to
+     * OutsideEstimates.DEFAULT_MAX_CONTEXT words unless they were read from a model file
+     * Computed once, by the first thread asking for them
+     */
+    public OutsideEstimates getOutsideEstimates() {
+        OutsideEstimates estimates = outsideEstimates;
+        if (estimates == null) {
+            synchronized (this) {
+                estimates = outsideEstimates;
+                if (estimates == null) {
+                    estimates = OutsideEstimates.compute(this, OutsideEstimates.DEFAULT_MAX_CONTEXT);
+                    outsideEstimates = estimates;
+                }
+            }
+        }
+        return estimates;
+    }
+}
@@ -0,0 +1,446 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.assignments.parsing.BinaryRule;
+import edu.berkeley.nlp.assignments.parsing.UnaryClosure;
+import edu.berkeley.nlp.assignments.parsing.UnaryRule;
+import edu.berkeley.nlp.util.Counter;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file format of a trained ParserModel, loaded through a memory-mapped file.
+ *
+ * Header: magic, format version, payload length and CRC32 of the payload. The payload holds, in order:
+ * the labels, the binary and unary rules in Grammar order, the unary closure (closed rules by child,
+ * their paths and the order of the rules by parent), the words, the compiled lexicon tables, the
+ * lexicon counts and the A* outside estimates: always there in version 2, and since version 3 only if
+ * they were asked for when saving (a flag, then the tables). Numbers are big-endian, arrays are written
+ * whole, strings are UTF-8 with their length. Files of versions 1 and 2 are still read. A model read
+ * without estimates computes them when they are first asked for.
+ *
+ * Every score and count is stored as is, so a loaded model parses exactly as the model it was saved from,
+ * and nothing is recomputed on load but the CompiledGrammar and CompiledUnaryClosure (flat copies of
+ * the rules).
+ *
+ * The mapping only makes the load a sequential read: every table is copied into heap objects (Grammar,
+ * Lexicon, compiled arrays), so processes loading the same file share nothing but the page cache while
+ * they read it, and each holds its own copy of the model.
+ */
+public class ParserModelFile {
+    public static final int MAGIC = 0x434b594d; // "CKYM"
+    public static final int FORMAT_VERSION = 3;
+    private static final int FIRST_VERSION_WITH_ESTIMATES = 2;
+    private static final int FIRST_VERSION_WITH_OPTIONAL_ESTIMATES = 3;
+    private static final int HEADER_SIZE = 24;
+    static final int VERSION_POSITION = 4;
+
+    private ParserModelFile() {
+    }
+
+    // =========================WRITING=========================
+    /**
+     * Write the model to path, through a temporary file renamed over it
+     * @param withOutsideEstimates also store the A* outside estimates, computed first if they were never
+     *                             asked for (seconds and tens of MB for a full grammar)
+     */
+    public static void write(ParserModel model, Path path, boolean withOutsideEstimates) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Grammar grammar = model.getGrammar();
+        Indexer<String> labelIndexer = grammar.getLabelIndexer();
+        writeLabels(out, labelIndexer);
+        writeBinaryRules(out, grammar.getBinaryRules());
+        writeUnaryRules(out, grammar.getUnaryRules());
+        writeUnaryClosure(out, model.getUnaryClosure(), labelIndexer.size());
+        String[] words = model.getCompiledLexicon().getWords();
+        writeStrings(out, Arrays.asList(words));
+        writeCompiledLexicon(out, model.getCompiledLexicon());
+        writeLexicon(out, model.getLexicon(), model.getCompiledLexicon(), labelIndexer);
+        out.writeBoolean(withOutsideEstimates);
+        if (withOutsideEstimates) {
+            writeOutsideEstimates(out, model.getOutsideEstimates());
+        }
+        out.flush();
+        writeFile(path, MAGIC, FORMAT_VERSION, bytes.toByteArray());
+    }
+
+    /**
+     * Write a header (magic, version, payload length and CRC32) and the payload to path, through a
+     * temporary file renamed over it, so that path never holds a partial file
+     */
+    static void writeFile(Path path, int magic, int version, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(magic).putInt(version).putLong(payload.length).putLong(crc.getValue());
+        header.flip();
+
+        Path directory = path.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer body = ByteBuffer.wrap(payload);
+                while (header.hasRemaining()) channel.write(header);
+                while (body.hasRemaining()) channel.write(body);
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void writeLabels(DataOutputStream out, Indexer<String> labelIndexer) throws IOException {
+        List<String> labels = new ArrayList<>();
+        for (int label = 0; label < labelIndexer.size(); label++) {
+            labels.add(labelIndexer.get(label));
+        }
+        writeStrings(out, labels);
+    }
+
+    private static void writeBinaryRules(DataOutputStream out, List<BinaryRule> rules) throws IOException {
+        out.writeInt(rules.size());
+        for (BinaryRule rule : rules) out.writeInt(rule.getParent());
+        for (BinaryRule rule : rules) out.writeInt(rule.getLeftChild());
+        for (BinaryRule rule : rules) out.writeInt(rule.getRightChild());
+        for (BinaryRule rule : rules) out.writeDouble(rule.getScore());
+    }
+
+    private static void writeUnaryRules(DataOutputStream out, List<UnaryRule> rules) throws IOException {
+        out.writeInt(rules.size());
+        for (UnaryRule rule : rules) out.writeInt(rule.getParent());
+        for (UnaryRule rule : rules) out.writeInt(rule.getChild());
+        for (UnaryRule rule : rules) out.writeDouble(rule.getScore());
+    }
+
+    private static void writeUnaryClosure(DataOutputStream out, UnaryClosure closure, int numLabels) throws IOException {
+        List<UnaryRule> rules = new ArrayList<>();
+        Map<UnaryRule, Integer> ruleIndices = new IdentityHashMap<>();
+        for (int child = 0; child < numLabels; child++) {
+            for (UnaryRule rule : closure.getClosedUnaryRulesByChild(child)) {
+                ruleIndices.put(rule, rules.size());
+                rules.add(rule);
+            }
+        }
+        writeUnaryRules(out, rules);
+        for (UnaryRule rule : rules) out.writeInt(closure.getPath(rule).size());
+        for (UnaryRule rule : rules) {
+            for (int label : closure.getPath(rule)) out.writeInt(label);
+        }
+        // rules by parent, as indices in the list above
+        for (int parent = 0; parent < numLabels; parent++) {
+            for (UnaryRule rule : closure.getClosedUnaryRulesByParent(parent)) {
+                Integer index = ruleIndices.get(rule);
+                if (index == null) {
+                    throw new IllegalArgumentException("Closed unary rule by parent not in the rules by child: " + rule);
+                }
+                out.writeInt(index);
+            }
+        }
+    }
+
+    private static void writeCompiledLexicon(DataOutputStream out, CompiledLexicon lexicon) throws IOException {
+        int numWords = lexicon.getNumWords();
+        for (int word = 0; word < numWords; word++) out.writeInt(lexicon.getTags(word).length);
+        for (int word = 0; word < numWords; word++) {
+            for (int tag : lexicon.getTags(word)) out.writeInt(tag);
+        }
+        for (int word = 0; word < numWords; word++) {
+            for (double score : lexicon.getScores(word)) out.writeDouble(score);
+        }
+        int[] unknownTags = lexicon.getTags(CompiledLexicon.UNKNOWN_WORD);
+        out.writeInt(unknownTags.length);
+        for (int tag : unknownTags) out.writeInt(tag);
+        for (double score : lexicon.getScores(CompiledLexicon.UNKNOWN_WORD)) out.writeDouble(score);
+    }
+
+    private static void writeLexicon(DataOutputStream out, Lexicon lexicon, CompiledLexicon compiledLexicon,
+                                     Indexer<String> labelIndexer) throws IOException {
+        out.writeInt(lexicon.totalTokens);
+        out.writeInt(lexicon.totalWordTypes);
+        for (String word : compiledLexicon.getWords()) out.writeDouble(lexicon.wordCounter.getCount(word));
+        writeTagCounter(out, lexicon.tagCounter, labelIndexer);
+        writeTagCounter(out, lexicon.typeTagCounter, labelIndexer);
+
+        List<Integer> words = new ArrayList<>();
+        List<Integer> tags = new ArrayList<>();
+        List<Double> counts = new ArrayList<>();
+        for (String word : compiledLexicon.getWords()) {
+            Counter<String> tagCounter = lexicon.wordToTagCounters.getCounter(word);
+            for (String tag : tagCounter.keySet()) {
+                words.add(compiledLexicon.getWordId(word));
+                tags.add(getTagLabel(labelIndexer, tag));
+                counts.add(tagCounter.getCount(tag));
+            }
+        }
+        out.writeInt(counts.size());
+        for (int word : words) out.writeInt(word);
+        for (int tag : tags) out.writeInt(tag);
+        for (double count : counts) out.writeDouble(count);
+    }
+
+    private static void writeTagCounter(DataOutputStream out, Counter<String> counter, Indexer<String> labelIndexer) throws IOException {
+        out.writeInt(counter.keySet().size());
+        for (String tag : counter.keySet()) out.writeInt(getTagLabel(labelIndexer, tag));
+        for (String tag : counter.keySet()) out.writeDouble(counter.getCount(tag));
+    }
+
+    private static int getTagLabel(Indexer<String> labelIndexer, String tag) {
+        int label = labelIndexer.indexOf(tag);
+        if (label < 0) {
+            throw new IllegalArgumentException("Lexicon tag is not a grammar label: " + tag);
+        }
+        return label;
+    }
+
+    private static void writeOutsideEstimates(DataOutputStream out, OutsideEstimates estimates) throws IOException {
+        out.writeInt(estimates.getMaxContext());
+        for (float estimate : estimates.getUnaryTable()) out.writeFloat(estimate);
+        for (float estimate : estimates.getBinaryTable()) out.writeFloat(estimate);
+    }
+
+    static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+    // =========================END OF WRITING=========================
+
+    // =========================READING=========================
+    /**
+     * Map the file and rebuild the model from it
+     * @throws IOException if the file is not a model file of a supported version, or is truncated or corrupted
+     */
+    public static ParserModel read(Path path) throws IOException {
+        ByteBuffer buffer = readFile(path, MAGIC, FORMAT_VERSION, "parser model");
+        int version = buffer.getInt(VERSION_POSITION);
+
+        Indexer<String> labelIndexer = new Indexer<>();
+        List<String> labels = readStrings(buffer);
+        for (String label : labels) {
+            labelIndexer.add(label);
+        }
+        if (labelIndexer.size() != labels.size()) {
+            throw new IOException("Duplicate labels in parser model file: " + path);
+        }
+        List<BinaryRule> binaryRules = readBinaryRules(buffer);
+        List<UnaryRule> unaryRules = readUnaryRules(buffer);
+        Grammar grammar = Grammar.fromRules(labelIndexer, unaryRules, binaryRules);
+        UnaryClosure unaryClosure = readUnaryClosure(buffer, labelIndexer);
+        String[] words = readStrings(buffer).toArray(new String[0]);
+        CompiledLexicon compiledLexicon = readCompiledLexicon(buffer, words);
+        Lexicon lexicon = readLexicon(buffer, words, labelIndexer);
+        boolean hasOutsideEstimates = (version >= FIRST_VERSION_WITH_OPTIONAL_ESTIMATES)
+                ? buffer.get() != 0 : version >= FIRST_VERSION_WITH_ESTIMATES;
+        OutsideEstimates outsideEstimates = hasOutsideEstimates ? readOutsideEstimates(buffer, labelIndexer.size()) : null;
+        if (buffer.hasRemaining()) {
+            throw new IOException("Unexpected data at the end of parser model file: " + path);
+        }
+        return new ParserModel(grammar, lexicon, compiledLexicon, unaryClosure, outsideEstimates);
+    }
+
+    /**
+     * Map a file written by writeFile and check its header and checksum
+     * @return the mapped file, positioned at the payload: its version is the int at VERSION_POSITION
+     * @throws IOException if the file is not a kind file of version 1 to maxVersion, or is truncated or corrupted
+     */
+    static ByteBuffer readFile(Path path, int magic, int maxVersion, String kind) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a " + kind + " file (too short): " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != magic) {
+            throw new IOException("Not a " + kind + " file: " + path);
+        }
+        int version = buffer.getInt();
+        if (version < 1 || version > maxVersion) {
+            throw new IOException("Unsupported " + kind + " format version " + version + " (expected 1 to " + maxVersion + "): " + path);
+        }
+        long payloadLength = buffer.getLong();
+        long checksum = buffer.getLong();
+        if (payloadLength != buffer.remaining()) {
+            throw new IOException("Truncated " + kind + " file (" + buffer.remaining() + " of " + payloadLength + " bytes): " + path);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if (crc.getValue() != checksum) {
+            throw new IOException("Corrupted " + kind + " file (checksum mismatch): " + path);
+        }
+        return buffer;
+    }
+
+    private static List<BinaryRule> readBinaryRules(ByteBuffer buffer) {
+        int numRules = buffer.getInt();
+        int[] parents = readInts(buffer, numRules);
+        int[] leftChildren = readInts(buffer, numRules);
+        int[] rightChildren = readInts(buffer, numRules);
+        double[] scores = readDoubles(buffer, numRules);
+        List<BinaryRule> rules = new ArrayList<>(numRules);
+        for (int r = 0; r < numRules; r++) {
+            BinaryRule rule = new BinaryRule(parents[r], leftChildren[r], rightChildren[r]);
+            rule.setScore(scores[r]);
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    private static List<UnaryRule> readUnaryRules(ByteBuffer buffer) {
+        int numRules = buffer.getInt();
+        int[] parents = readInts(buffer, numRules);
+        int[] children = readInts(buffer, numRules);
+        double[] scores = readDoubles(buffer, numRules);
+        List<UnaryRule> rules = new ArrayList<>(numRules);
+        for (int r = 0; r < numRules; r++) {
+            UnaryRule rule = new UnaryRule(parents[r], children[r]);
+            rule.setScore(scores[r]);
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    private static UnaryClosure readUnaryClosure(ByteBuffer buffer, Indexer<String> labelIndexer) {
+        int numLabels = labelIndexer.size();
+        List<UnaryRule> rules = readUnaryRules(buffer);
+        int[] pathLengths = readInts(buffer, rules.size());
+        Map<UnaryRule, List<Integer>> paths = new HashMap<>();
+        List<UnaryRule>[] rulesByChild = newRuleLists(numLabels);
+        for (int r = 0; r < rules.size(); r++) {
+            int[] path = readInts(buffer, pathLengths[r]);
+            List<Integer> pathList = new ArrayList<>(path.length);
+            for (int label : path) pathList.add(label);
+            paths.put(rules.get(r), pathList);
+            rulesByChild[rules.get(r).getChild()].add(rules.get(r));
+        }
+        List<UnaryRule>[] rulesByParent = newRuleLists(numLabels);
+        for (int index : readInts(buffer, rules.size())) {
+            rulesByParent[rules.get(index).getParent()].add(rules.get(index));
+        }
+        return new StoredUnaryClosure(labelIndexer, rulesByChild, rulesByParent, paths);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<UnaryRule>[] newRuleLists(int numLabels) {
+        List<UnaryRule>[] lists = new List[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            lists[label] = new ArrayList<UnaryRule>();
+        }
+        return lists;
+    }
+
+    private static CompiledLexicon readCompiledLexicon(ByteBuffer buffer, String[] words) {
+        int[] numTags = readInts(buffer, words.length);
+        int[][] wordTags = new int[words.length][];
+        for (int word = 0; word < words.length; word++) {
+            wordTags[word] = readInts(buffer, numTags[word]);
+        }
+        double[][] wordScores = new double[words.length][];
+        for (int word = 0; word < words.length; word++) {
+            wordScores[word] = readDoubles(buffer, numTags[word]);
+        }
+        int numUnknownTags = buffer.getInt();
+        int[] unknownWordTags = readInts(buffer, numUnknownTags);
+        double[] unknownWordScores = readDoubles(buffer, numUnknownTags);
+        return new CompiledLexicon(words, wordTags, wordScores, unknownWordTags, unknownWordScores);
+    }
+
+    private static Lexicon readLexicon(ByteBuffer buffer, String[] words, Indexer<String> labelIndexer) {
+        Lexicon lexicon = new Lexicon();
+        lexicon.totalTokens = buffer.getInt();
+        lexicon.totalWordTypes = buffer.getInt();
+        double[] wordCounts = readDoubles(buffer, words.length);
+        for (int word = 0; word < words.length; word++) {
+            lexicon.wordCounter.setCount(words[word], wordCounts[word]);
+        }
+        readTagCounter(buffer, lexicon.tagCounter, labelIndexer);
+        readTagCounter(buffer, lexicon.typeTagCounter, labelIndexer);
+        int numTaggings = buffer.getInt();
+        int[] taggingWords = readInts(buffer, numTaggings);
+        int[] taggingTags = readInts(buffer, numTaggings);
+        double[] taggingCounts = readDoubles(buffer, numTaggings);
+        for (int i = 0; i < numTaggings; i++) {
+            lexicon.wordToTagCounters.setCount(words[taggingWords[i]], labelIndexer.get(taggingTags[i]), taggingCounts[i]);
+        }
+        return lexicon;
+    }
+
+    private static void readTagCounter(ByteBuffer buffer, Counter<String> counter, Indexer<String> labelIndexer) {
+        int numTags = buffer.getInt();
+        int[] tags = readInts(buffer, numTags);
+        double[] counts = readDoubles(buffer, numTags);
+        for (int i = 0; i < numTags; i++) {
+            counter.setCount(labelIndexer.get(tags[i]), counts[i]);
+        }
+    }
+
+    private static OutsideEstimates readOutsideEstimates(ByteBuffer buffer, int numLabels) {
+        int maxContext = buffer.getInt();
+        int size = (maxContext + 1) * (maxContext + 2) / 2 * numLabels;
+        float[] unaryOutside = readFloats(buffer, size);
+        float[] binaryOutside = readFloats(buffer, size);
+        return new OutsideEstimates(numLabels, maxContext, unaryOutside, binaryOutside);
+    }
+
+    static List<String> readStrings(ByteBuffer buffer) {
+        int numStrings = buffer.getInt();
+        List<String> strings = new ArrayList<>(numStrings);
+        byte[] utf8 = new byte[64];
+        for (int i = 0; i < numStrings; i++) {
+            int length = buffer.getInt();
+            if (length > utf8.length) utf8 = new byte[Math.max(length, 2 * utf8.length)];
+            buffer.get(utf8, 0, length);
+            strings.add(new String(utf8, 0, length, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+
+    static int[] readInts(ByteBuffer buffer, int length) {
+        int[] values = new int[length];
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.get(values);
+        buffer.position(buffer.position() + 4 * length);
+        return values;
+    }
+
+    private static float[] readFloats(ByteBuffer buffer, int length) {
+        float[] values = new float[length];
+        FloatBuffer floats = buffer.asFloatBuffer();
+        floats.get(values);
+        buffer.position(buffer.position() + 4 * length);
+        return values;
+    }
+
+    static double[] readDoubles(ByteBuffer buffer, int length) {
+        double[] values = new double[length];
+        DoubleBuffer doubles = buffer.asDoubleBuffer();
+        doubles.get(values);
+        buffer.position(buffer.position() + 8 * length);
+        return values;
+    }
+    // =========================END OF READING=========================
+}
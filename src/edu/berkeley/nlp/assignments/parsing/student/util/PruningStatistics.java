@@ -0,0 +1,95 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how much of the chart a pruning pass removed, over all sentences parsed so far.
+ * Safe to update from several parsing threads.
+ */
+public class PruningStatistics {
+
+    private final AtomicLong numSentences = new AtomicLong();
+    private final AtomicLong numCells = new AtomicLong();
+    private final AtomicLong numOpenCells = new AtomicLong();
+    private final AtomicLong numItems = new AtomicLong();
+    private final AtomicLong numKeptItems = new AtomicLong();
+    private final AtomicLong numFallbacks = new AtomicLong();
+    private final AtomicLong numFailures = new AtomicLong();
+
+    /**
+     * @param cells cells in the chart
+     * @param openCells cells where at least one label survived
+     * @param items (cell, label) items built by the pruning pass
+     * @param keptItems items which survived
+     */
+    public void recordSentence(long cells, long openCells, long items, long keptItems) {
+        numSentences.incrementAndGet();
+        numCells.addAndGet(cells);
+        numOpenCells.addAndGet(openCells);
+        numItems.addAndGet(items);
+        numKeptItems.addAndGet(keptItems);
+    }
+
+    /**
+     * One more sentence whose cells are recorded one by one (see recordCell)
+     */
+    public void recordSentence() {
+        numSentences.incrementAndGet();
+    }
+
+    /**
+     * @param items labels of the cell before pruning
+     * @param keptItems labels which survived
+     */
+    public void recordCell(long items, long keptItems) {
+        numCells.incrementAndGet();
+        if (keptItems > 0) numOpenCells.incrementAndGet();
+        numItems.addAndGet(items);
+        numKeptItems.addAndGet(keptItems);
+    }
+
+    /**
+     * The pruned chart had no parse although pruning removed labels from it, and the sentence was not
+     * parsed again. Sentences with no parse even unpruned are not failures of the pruning.
+     */
+    public void recordFailure() {
+        numFailures.incrementAndGet();
+    }
+
+    /**
+     * The pruned chart had no parse, so the sentence was parsed again without pruning
+     */
+    public void recordFallback() {
+        numFallbacks.incrementAndGet();
+    }
+
+    public long getNumSentences() {
+        return numSentences.get();
+    }
+
+    public long getNumFallbacks() {
+        return numFallbacks.get();
+    }
+
+    public long getNumFailures() {
+        return numFailures.get();
+    }
+
+    public double getOpenCellRatio() {
+        return ratio(numOpenCells.get(), numCells.get());
+    }
+
+    public double getKeptItemRatio() {
+        return ratio(numKeptItems.get(), numItems.get());
+    }
+
+    private static double ratio(long part, long total) {
+        return total == 0 ? 0.0 : (double) part / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Pruning: %d sentences, %.1f%% of cells open, %.1f%% of labels kept, %d fallbacks to unpruned parsing, %d parse failures",
+                getNumSentences(), 100 * getOpenCellRatio(), 100 * getKeptItemRatio(), getNumFallbacks(), getNumFailures());
+    }
+}
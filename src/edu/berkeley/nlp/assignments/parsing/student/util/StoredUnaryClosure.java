@@ -0,0 +1,94 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.assignments.parsing.UnaryClosure;
+import edu.berkeley.nlp.assignments.parsing.UnaryRule;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unary closure whose closed rules and paths are given, not computed again from the unary rules:
+ * read back from a model file (see ParserModelFile), or kept up to date rule by rule (see IncrementalTrainer),
+ * which appends new rules at the end of their lists
+ */
+class StoredUnaryClosure extends UnaryClosure {
+    private List<UnaryRule>[] rulesByChild;
+    private List<UnaryRule>[] rulesByParent;
+    private final Map<UnaryRule, List<Integer>> paths;
+
+    StoredUnaryClosure(Indexer<String> labelIndexer, List<UnaryRule>[] rulesByChild, List<UnaryRule>[] rulesByParent,
+                       Map<UnaryRule, List<Integer>> paths) {
+        // the closure of no rules is cheap: this class answers from the given tables
+        super(labelIndexer, Collections.<UnaryRule>emptyList());
+        this.rulesByChild = rulesByChild;
+        this.rulesByParent = rulesByParent;
+        this.paths = paths;
+    }
+
+    /**
+     * Closure with the same rules, lists and paths as the given one, in lists which can be added to
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static StoredUnaryClosure copyOf(UnaryClosure closure, Indexer<String> labelIndexer) {
+        int numLabels = labelIndexer.size();
+        List<UnaryRule>[] rulesByChild = new List[numLabels];
+        List<UnaryRule>[] rulesByParent = new List[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            rulesByChild[label] = new ArrayList<>(closure.getClosedUnaryRulesByChild(label));
+            rulesByParent[label] = new ArrayList<>(closure.getClosedUnaryRulesByParent(label));
+        }
+        return new StoredUnaryClosure(labelIndexer, rulesByChild, rulesByParent, new HashMap<>(closure.getPathMap()));
+    }
+
+    /**
+     * Make room for the labels appended to the indexer, with no rules yet
+     */
+    void addLabels(int numLabels) {
+        int numOldLabels = rulesByChild.length;
+        if (numLabels == numOldLabels) return;
+        rulesByChild = Arrays.copyOf(rulesByChild, numLabels);
+        rulesByParent = Arrays.copyOf(rulesByParent, numLabels);
+        for (int label = numOldLabels; label < numLabels; label++) {
+            rulesByChild[label] = new ArrayList<>();
+            rulesByParent[label] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Append a closed rule to the lists of its child and parent
+     */
+    void addRule(UnaryRule rule, List<Integer> path) {
+        rulesByChild[rule.getChild()].add(rule);
+        rulesByParent[rule.getParent()].add(rule);
+        paths.put(rule, path);
+    }
+
+    void setPath(UnaryRule rule, List<Integer> path) {
+        paths.put(rule, path);
+    }
+
+    @Override
+    public List<UnaryRule> getClosedUnaryRulesByChild(int child) {
+        return rulesByChild[child];
+    }
+
+    @Override
+    public List<UnaryRule> getClosedUnaryRulesByParent(int parent) {
+        return rulesByParent[parent];
+    }
+
+    @Override
+    public List<Integer> getPath(UnaryRule unaryRule) {
+        return paths.get(unaryRule);
+    }
+
+    @Override
+    public Map<UnaryRule, List<Integer>> getPathMap() {
+        return paths;
+    }
+}
@@ -0,0 +1,393 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Counts of the markovized training trees which Grammar and Lexicon are estimated from, in primitive tables.
+ *
+ * Labels, words, rules and taggings are kept in the order of their first occurrence, which is the order
+ * in which the Grammar and Lexicon constructors first see them. Counts of disjoint shards of the treebank
+ * can then be tallied on separate threads and merged in shard order: the merged tables have the same
+ * label indices, the same key orders and the same (integer) counts as tallying all trees serially, so
+ * the models built from them are bit-identical to the ones built from the trees.
+ */
+public class TrainingCounts {
+
+    // =========================FIELDS=========================
+    final Indexer<String> labelIndexer = new Indexer<>();
+    // [label] => number of unary and binary rules it is the parent of
+    int[] symbolCounts = new int[64];
+    // unary rule: parent << 32 | child; binary rule: parent << 42 | left child << 21 | right child
+    final LongCounter unaryCounts = new LongCounter();
+    final LongCounter binaryCounts = new LongCounter();
+
+    final Indexer<String> wordIndexer = new Indexer<>();
+    int[] wordCounts = new int[64];
+    // [word] => tag label of its first occurrence (the tag counted for new word types)
+    int[] wordFirstTags = new int[64];
+    // word << 32 | tag label
+    final LongCounter taggingCounts = new LongCounter();
+    int[] tagCounts = new int[64];
+    int[] typeTagCounts = new int[64];
+    int totalTokens = 0;
+    int totalWordTypes = 0;
+    int numTrees = 0;
+    // =========================END OF FIELDS=========================
+
+    // =========================COUNTING=========================
+    // trees per batch counted on a thread, and batches in flight per thread when streaming
+    private static final int BATCH_SIZE = 256;
+    private static final int BATCHES_PER_THREAD = 2;
+
+    /**
+     * Markovize and count the trees on numThreads threads, or on the calling thread if numThreads is 1
+     *
+     * Trees are pulled from the iterable one batch at a time, as the threads need them, and every batch
+     * is merged into the result in order as soon as it and all the ones before it are counted. Only the
+     * batches in flight are held besides the count tables, so the trees can be a lazy stream over a
+     * treebank of any size (see TreebankStream).
+     */
+    public static TrainingCounts countTrees(Iterable<Tree<String>> trees, final int verticalOrder,
+                                            final int horizontalOrder, int numThreads) {
+        Iterator<Tree<String>> treeIterator = trees.iterator();
+        if (numThreads <= 1) {
+            TreeAnnotator annotator = new TreeAnnotator(verticalOrder, horizontalOrder);
+            TrainingCounts counts = new TrainingCounts();
+            while (treeIterator.hasNext()) {
+                counts.addTree(annotator.annotateTree(treeIterator.next()));
+            }
+            return counts;
+        }
+        // symbols interned by an annotator are reused by all the batches of its thread
+        final ThreadLocal<TreeAnnotator> annotators = new ThreadLocal<TreeAnnotator>() {
+            @Override
+            protected TreeAnnotator initialValue() {
+                return new TreeAnnotator(verticalOrder, horizontalOrder);
+            }
+        };
+        TrainingCounts counts = new TrainingCounts();
+        Deque<Future<TrainingCounts>> batches = new ArrayDeque<>();
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            while (treeIterator.hasNext()) {
+                final List<Tree<String>> batch = new ArrayList<>(BATCH_SIZE);
+                while (batch.size() < BATCH_SIZE && treeIterator.hasNext()) {
+                    batch.add(treeIterator.next());
+                }
+                batches.addLast(pool.submit(new Callable<TrainingCounts>() {
+                    public TrainingCounts call() {
+                        TreeAnnotator annotator = annotators.get();
+                        TrainingCounts batchCounts = new TrainingCounts();
+                        for (Tree<String> tree : batch) {
+                            batchCounts.addTree(annotator.annotateTree(tree));
+                        }
+                        return batchCounts;
+                    }
+                }));
+                if (batches.size() >= BATCHES_PER_THREAD * numThreads) {
+                    counts.add(batches.removeFirst().get());
+                }
+            }
+            while (!batches.isEmpty()) {
+                counts.add(batches.removeFirst().get());
+            }
+            return counts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while counting training trees", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Counting training trees failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Count trees which are already markovized / binarized
+     */
+    public static TrainingCounts countAnnotatedTrees(Iterable<Tree<String>> annotatedTrees) {
+        TrainingCounts counts = new TrainingCounts();
+        for (Tree<String> tree : annotatedTrees) {
+            counts.addTree(tree);
+        }
+        return counts;
+    }
+
+    /**
+     * Count one markovized tree: its labels (as Grammar.addTreeLabels), rules (as Grammar.tallyTree)
+     * and taggings (as Lexicon.tallyTagging)
+     */
+    public void addTree(Tree<String> tree) {
+        numTrees++;
+        addTreeLabels(tree);
+        tallyTree(tree);
+        List<String> words = tree.getYield();
+        List<String> tags = tree.getPreTerminalYield();
+        for (int position = 0; position < words.size(); position++) {
+            tallyTagging(words.get(position), labelIndexer.indexOf(tags.get(position)));
+        }
+    }
+
+    private void addTreeLabels(Tree<String> tree) {
+        if (tree.isLeaf()) return;
+        labelIndexer.addAndGetIndex(tree.getLabel());
+        for (Tree<String> child : tree.getChildren()) {
+            addTreeLabels(child);
+        }
+    }
+
+    private void tallyTree(Tree<String> tree) {
+        if (tree.isLeaf()) return;
+        if (tree.isPreTerminal()) return;
+        List<Tree<String>> children = tree.getChildren();
+        int parent = labelIndexer.indexOf(tree.getLabel());
+        if (children.size() == 1) {
+            incrementSymbol(parent);
+            unaryCounts.increment(packUnary(parent, labelIndexer.indexOf(children.get(0).getLabel())), 1);
+        }
+        if (children.size() == 2) {
+            incrementSymbol(parent);
+            binaryCounts.increment(packBinary(parent, labelIndexer.indexOf(children.get(0).getLabel()),
+                    labelIndexer.indexOf(children.get(1).getLabel())), 1);
+        }
+        if (children.size() < 1 || children.size() > 2) {
+            throw new RuntimeException("Attempted to construct a Grammar with an illegal tree (unbinarized?): " + tree);
+        }
+        for (Tree<String> child : children) {
+            tallyTree(child);
+        }
+    }
+
+    private void incrementSymbol(int label) {
+        symbolCounts = ensureSize(symbolCounts, label);
+        symbolCounts[label]++;
+    }
+
+    private void tallyTagging(String word, int tag) {
+        int wordId = wordIndexer.addAndGetIndex(word);
+        wordCounts = ensureSize(wordCounts, wordId);
+        wordFirstTags = ensureSize(wordFirstTags, wordId);
+        if (wordCounts[wordId] == 0) {
+            wordFirstTags[wordId] = tag;
+            totalWordTypes++;
+            typeTagCounts = ensureSize(typeTagCounts, tag);
+            typeTagCounts[tag]++;
+        }
+        wordCounts[wordId]++;
+        totalTokens++;
+        tagCounts = ensureSize(tagCounts, tag);
+        tagCounts[tag]++;
+        taggingCounts.increment(packTagging(wordId, tag), 1);
+    }
+    // =========================END OF COUNTING=========================
+
+    // =========================MERGING=========================
+    /**
+     * Counts of the concatenation of the shards' trees, in shard order
+     */
+    public static TrainingCounts merge(List<TrainingCounts> shards) {
+        TrainingCounts merged = new TrainingCounts();
+        for (TrainingCounts shard : shards) {
+            merged.add(shard);
+        }
+        return merged;
+    }
+
+    /**
+     * Add the counts of the trees following the ones counted so far
+     */
+    void add(TrainingCounts shard) {
+        // shard label / word index => merged index; new ones are appended in the shard's order
+        int[] labels = new int[shard.labelIndexer.size()];
+        for (int label = 0; label < labels.length; label++) {
+            labels[label] = labelIndexer.addAndGetIndex(shard.labelIndexer.get(label));
+        }
+        for (int label = 0; label < labels.length && label < shard.symbolCounts.length; label++) {
+            symbolCounts = ensureSize(symbolCounts, labels[label]);
+            symbolCounts[labels[label]] += shard.symbolCounts[label];
+        }
+        for (int i = 0; i < shard.unaryCounts.size(); i++) {
+            long key = shard.unaryCounts.getKey(i);
+            unaryCounts.increment(packUnary(labels[getUnaryParent(key)], labels[getUnaryChild(key)]),
+                    shard.unaryCounts.getCount(i));
+        }
+        for (int i = 0; i < shard.binaryCounts.size(); i++) {
+            long key = shard.binaryCounts.getKey(i);
+            binaryCounts.increment(packBinary(labels[getBinaryParent(key)], labels[getBinaryLeftChild(key)],
+                    labels[getBinaryRightChild(key)]), shard.binaryCounts.getCount(i));
+        }
+
+        int[] words = new int[shard.wordIndexer.size()];
+        for (int word = 0; word < words.length; word++) {
+            int mergedWord = wordIndexer.addAndGetIndex(shard.wordIndexer.get(word));
+            words[word] = mergedWord;
+            wordCounts = ensureSize(wordCounts, mergedWord);
+            wordFirstTags = ensureSize(wordFirstTags, mergedWord);
+            if (wordCounts[mergedWord] == 0) {
+                // first seen in this shard: its first occurrence is the shard's first one
+                int tag = labels[shard.wordFirstTags[word]];
+                wordFirstTags[mergedWord] = tag;
+                totalWordTypes++;
+                typeTagCounts = ensureSize(typeTagCounts, tag);
+                typeTagCounts[tag]++;
+            }
+            wordCounts[mergedWord] += shard.wordCounts[word];
+        }
+        for (int label = 0; label < labels.length && label < shard.tagCounts.length; label++) {
+            tagCounts = ensureSize(tagCounts, labels[label]);
+            tagCounts[labels[label]] += shard.tagCounts[label];
+        }
+        for (int i = 0; i < shard.taggingCounts.size(); i++) {
+            long key = shard.taggingCounts.getKey(i);
+            taggingCounts.increment(packTagging(words[getTaggingWord(key)], labels[getTaggingTag(key)]),
+                    shard.taggingCounts.getCount(i));
+        }
+        totalTokens += shard.totalTokens;
+        numTrees += shard.numTrees;
+    }
+    // =========================END OF MERGING=========================
+
+    public int getNumTrees() {
+        return numTrees;
+    }
+
+    // =========================KEY PACKING=========================
+    private static final int LABEL_BITS = 21;
+    private static final long LABEL_MASK = (1L << LABEL_BITS) - 1;
+
+    static long packUnary(int parent, int child) {
+        return ((long) parent << 32) | child;
+    }
+
+    static int getUnaryParent(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int getUnaryChild(long key) {
+        return (int) key;
+    }
+
+    static long packBinary(int parent, int leftChild, int rightChild) {
+        return ((long) parent << (2 * LABEL_BITS)) | ((long) leftChild << LABEL_BITS) | rightChild;
+    }
+
+    static int getBinaryParent(long key) {
+        return (int) (key >>> (2 * LABEL_BITS));
+    }
+
+    static int getBinaryLeftChild(long key) {
+        return (int) ((key >>> LABEL_BITS) & LABEL_MASK);
+    }
+
+    static int getBinaryRightChild(long key) {
+        return (int) (key & LABEL_MASK);
+    }
+
+    static long packTagging(int word, int tag) {
+        return ((long) word << 32) | tag;
+    }
+
+    static int getTaggingWord(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int getTaggingTag(long key) {
+        return (int) key;
+    }
+    // =========================END OF KEY PACKING=========================
+
+    private static int[] ensureSize(int[] array, int index) {
+        if (index < array.length) return array;
+        return Arrays.copyOf(array, Math.max(index + 1, 2 * array.length));
+    }
+
+    /**
+     * Counts of long keys, kept in insertion order (open addressing over the key indices)
+     */
+    static class LongCounter {
+        private long[] keys = new long[64];
+        private int[] counts = new int[64];
+        private int size = 0;
+        // slot => key index + 1, 0 if empty
+        private int[] slots = new int[128];
+
+        int size() {
+            return size;
+        }
+
+        long getKey(int i) {
+            return keys[i];
+        }
+
+        int getCount(int i) {
+            return counts[i];
+        }
+
+        void increment(long key, int count) {
+            int mask = slots.length - 1;
+            int slot = hash(key) & mask;
+            while (slots[slot] != 0) {
+                int i = slots[slot] - 1;
+                if (keys[i] == key) {
+                    counts[i] += count;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                counts = Arrays.copyOf(counts, 2 * size);
+            }
+            keys[size] = key;
+            counts[size] = count;
+            size++;
+            slots[slot] = size;
+            if (2 * size > slots.length) {
+                rehash();
+            }
+        }
+
+        /**
+         * Index of the key in insertion order, or -1 if it was never counted
+         */
+        int indexOf(long key) {
+            int mask = slots.length - 1;
+            int slot = hash(key) & mask;
+            while (slots[slot] != 0) {
+                int i = slots[slot] - 1;
+                if (keys[i] == key) return i;
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void rehash() {
+            slots = new int[2 * slots.length];
+            int mask = slots.length - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = hash(keys[i]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+        }
+
+        private static int hash(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32));
+        }
+    }
+}
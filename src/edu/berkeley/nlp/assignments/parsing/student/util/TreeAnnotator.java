@@ -0,0 +1,224 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Markovization of training trees on interned symbol ids, building exactly the trees of
+ * TreeMarkovAnnotation.annotateTree without building and splitting label strings.
+ *
+ * Vertical context (the parent labels) and horizontal context (the siblings kept in an intermediate
+ * label) are small tuples of base label ids. Every distinct annotated symbol is interned once, with
+ * its string built the first time it is seen; the trees produced share these strings.
+ *
+ * The string pipeline parses labels back with split("_") and split("^"), which the ids can only
+ * reproduce when no label contains '_' or '^' (true of the Penn treebank) and when the horizontal
+ * order is at most 2 or infinite (-1). Other trees or orders go through TreeMarkovAnnotation.
+ *
+ * An annotator is not thread safe: use one per thread.
+ */
+public class TreeAnnotator {
+
+    // =========================FIELDS=========================
+    private final int verticalOrder;
+    private final int horizontalOrder;
+
+    private final Indexer<String> baseLabels = new Indexer<>();
+    // annotated symbols: tuple key => id => string
+    private final Map<IntTuple, Integer> symbolIds = new HashMap<>();
+    private final List<String> symbols = new ArrayList<>();
+    // reused for lookups, copied when a new symbol is interned
+    private final IntTuple lookupKey = new IntTuple(new int[16], 0);
+
+    private static final int VERTICAL = 0;
+    private static final int INTERMEDIATE = 1;
+    private static final int INTERMEDIATE_ELLIPSIS = 2;
+    // =========================END OF FIELDS=========================
+
+    public TreeAnnotator(int verticalOrder, int horizontalOrder) {
+        this.verticalOrder = verticalOrder;
+        this.horizontalOrder = horizontalOrder;
+    }
+
+    public Tree<String> annotateTree(Tree<String> tree) {
+        if (horizontalOrder > 2 || horizontalOrder < -1 || !isSupported(tree)) {
+            return TreeMarkovAnnotation.annotateTree(tree, verticalOrder, horizontalOrder);
+        }
+        return annotate(tree, new int[0], verticalOrder);
+    }
+
+    public int getNumSymbols() {
+        return symbols.size();
+    }
+
+    private static boolean isSupported(Tree<String> tree) {
+        if (tree.isLeaf()) return true;
+        String label = tree.getLabel();
+        if (label.indexOf('_') >= 0 || label.indexOf('^') >= 0) return false;
+        List<Tree<String>> children = tree.getChildren();
+        for (Tree<String> child : children) {
+            // words are never annotated: they would be split as labels in intermediate symbols
+            if (children.size() > 2 && child.isLeaf()) return false;
+            if (!isSupported(child)) return false;
+        }
+        return true;
+    }
+
+    // =========================ANNOTATION=========================
+    /**
+     * Same recursion as TreeMarkovAnnotation.verticallyMarkovize followed by binarizeTree
+     * @param parents base label ids of the vertical context, in the order they are appended
+     */
+    private Tree<String> annotate(Tree<String> tree, int[] parents, int verticalOrder) {
+        verticalOrder--;
+        if (tree.isLeaf()) {
+            return new Tree<>(tree.getLabel());
+        }
+        int base = baseLabels.addAndGetIndex(tree.getLabel());
+        int symbol = verticalSymbol(base, parents);
+
+        // forget parent(s) based on order, then reverse
+        int[] newParents = Arrays.copyOf(parents, parents.length + 1);
+        newParents[parents.length] = base;
+        if (newParents.length > verticalOrder) {
+            newParents = Arrays.copyOfRange(newParents, 1, newParents.length);
+        }
+        for (int i = 0, j = newParents.length - 1; i < j; i++, j--) {
+            int parent = newParents[i];
+            newParents[i] = newParents[j];
+            newParents[j] = parent;
+        }
+
+        List<Tree<String>> children = tree.getChildren();
+        int numChildren = children.size();
+        List<Tree<String>> annotatedChildren = new ArrayList<>(numChildren);
+        for (Tree<String> child : children) {
+            annotatedChildren.add(annotate(child, newParents, verticalOrder));
+        }
+        if (numChildren <= 2) {
+            return new Tree<>(symbols.get(symbol), annotatedChildren);
+        }
+
+        // @X->_C0_C1..., built right to left: the last intermediate node only has the last child
+        int[] childBases = new int[numChildren];
+        for (int k = 0; k < numChildren; k++) {
+            childBases[k] = baseLabels.indexOf(children.get(k).getLabel());
+        }
+        Tree<String> rightTree = null;
+        for (int k = numChildren - 1; k >= 1; k--) {
+            List<Tree<String>> intermediateChildren = (rightTree == null)
+                    ? Collections.singletonList(annotatedChildren.get(k))
+                    : Arrays.asList(annotatedChildren.get(k), rightTree);
+            rightTree = new Tree<>(symbols.get(intermediateSymbol(symbol, childBases, k)), intermediateChildren);
+        }
+        return new Tree<>(symbols.get(symbol), Arrays.asList(annotatedChildren.get(0), rightTree));
+    }
+
+    /**
+     * label^parent1^parent2...
+     */
+    private int verticalSymbol(int base, int[] parents) {
+        lookupKey.clear();
+        lookupKey.add(VERTICAL);
+        lookupKey.add(base);
+        for (int parent : parents) {
+            lookupKey.add(parent);
+        }
+        Integer id = symbolIds.get(lookupKey);
+        if (id != null) return id;
+
+        StringBuilder sb = new StringBuilder(baseLabels.get(base));
+        for (int parent : parents) {
+            sb.append('^').append(baseLabels.get(parent));
+        }
+        return intern(sb.toString());
+    }
+
+    /**
+     * Label of the intermediate node holding the children k, k + 1, ... of a node with symbol parent,
+     * i.e. processRightChildLabelHorizontally("@parent->_C0_..._C(k-1)", horizontalOrder)
+     */
+    private int intermediateSymbol(int parent, int[] childBases, int k) {
+        // fields of the split: "@parent->" then the k previous children
+        int numFields = k + 1;
+        boolean ellipsis = horizontalOrder != -1 && numFields > 2;
+        int from = (horizontalOrder == -1 || numFields == 2) ? 1 : numFields - horizontalOrder;
+
+        lookupKey.clear();
+        lookupKey.add(ellipsis ? INTERMEDIATE_ELLIPSIS : INTERMEDIATE);
+        lookupKey.add(parent);
+        for (int field = from; field < numFields; field++) {
+            lookupKey.add(childBases[field - 1]);
+        }
+        Integer id = symbolIds.get(lookupKey);
+        if (id != null) return id;
+
+        StringBuilder sb = new StringBuilder("@").append(symbols.get(parent)).append("->");
+        if (ellipsis) sb.append("...");
+        for (int field = from; field < numFields; field++) {
+            sb.append('_').append(baseLabels.get(childBases[field - 1]));
+        }
+        return intern(sb.toString());
+    }
+
+    private int intern(String symbol) {
+        int id = symbols.size();
+        symbols.add(symbol);
+        symbolIds.put(lookupKey.copy(), id);
+        return id;
+    }
+    // =========================END OF ANNOTATION=========================
+
+    /**
+     * Growable tuple of ints with value equality, used as symbol key
+     */
+    private static class IntTuple {
+        private int[] values;
+        private int size;
+
+        IntTuple(int[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+            values[size++] = value;
+        }
+
+        IntTuple copy() {
+            return new IntTuple(Arrays.copyOf(values, size), size);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IntTuple)) return false;
+            IntTuple other = (IntTuple) o;
+            if (size != other.size) return false;
+            for (int i = 0; i < size; i++) {
+                if (values[i] != other.values[i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = size;
+            for (int i = 0; i < size; i++) {
+                hash = 31 * hash + values[i];
+            }
+            return hash;
+        }
+    }
+}
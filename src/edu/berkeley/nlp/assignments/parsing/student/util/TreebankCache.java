@@ -0,0 +1,286 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.io.PennTreebankReader;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.ling.Trees;
+import edu.berkeley.nlp.util.Indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary cache of the normalized treebank, so that experiments do not parse the .mrg files again.
+ *
+ * The cache is built once from a treebank directory: every tree is read with PennTreebankReader and
+ * normalized with Trees.StandardTreeNormalizer, exactly as the testers' readTrees do. Labels and words
+ * are interned in one symbol table; each tree is its preorder list of (symbol, number of children),
+ * along with its file number and yield length. Trees are kept in the order PennTreebankReader reads
+ * the files, so reading a file range gives the same trees in the same order as readTrees.
+ *
+ * The file is framed as ParserModelFile files (magic, version, payload length, CRC32, written through
+ * a temporary file) and is memory-mapped on open: trees are built from the mapped arrays without any
+ * tokenizing.
+ */
+public class TreebankCache {
+    public static final int MAGIC = 0x5753_4a43; // "WSJC"
+    public static final int FORMAT_VERSION = 1;
+
+    // =========================FIELDS=========================
+    private final String[] symbols;
+    // [tree]
+    private final int[] fileNumbers;
+    private final int[] yieldLengths;
+    private final int[] treeStarts;
+    // [node], in preorder over all trees (mapped, not copied)
+    private final IntBuffer nodeSymbols;
+    private final IntBuffer nodeNumChildren;
+    // =========================END OF FIELDS=========================
+
+    private TreebankCache(String[] symbols, int[] fileNumbers, int[] yieldLengths, int[] treeStarts,
+                          IntBuffer nodeSymbols, IntBuffer nodeNumChildren) {
+        this.symbols = symbols;
+        this.fileNumbers = fileNumbers;
+        this.yieldLengths = yieldLengths;
+        this.treeStarts = treeStarts;
+        this.nodeSymbols = nodeSymbols;
+        this.nodeNumChildren = nodeNumChildren;
+    }
+
+    /**
+     * Trees of files low to high with at most maxLength words, from the cache at cachePath
+     * The cache is built from basePath first if the file does not exist
+     */
+    public static List<Tree<String>> readTrees(String basePath, String cachePath, int low, int high, int maxLength) {
+        return openOrBuild(basePath, cachePath).readTrees(low, high, maxLength);
+    }
+
+    /**
+     * Open the cache at cachePath, building it from basePath first if the file does not exist
+     */
+    public static TreebankCache openOrBuild(String basePath, String cachePath) {
+        Path cacheFile = Paths.get(cachePath);
+        try {
+            if (!Files.exists(cacheFile)) {
+                System.out.print("(building treebank cache " + cacheFile + ") ");
+                build(basePath, cacheFile);
+            }
+            return open(cacheFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read treebank cache " + cacheFile, e);
+        }
+    }
+
+    // =========================BUILDING=========================
+    /**
+     * Read and normalize all the .mrg files under basePath, and write them to cacheFile
+     */
+    public static void build(String basePath, Path cacheFile) throws IOException {
+        List<File> files = new ArrayList<>();
+        addFilesUnder(new File(basePath), files);
+        if (files.isEmpty()) {
+            throw new IOException("No .mrg files under " + basePath);
+        }
+
+        Indexer<String> symbolIndexer = new Indexer<>();
+        Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
+        IntList fileNumbers = new IntList();
+        IntList yieldLengths = new IntList();
+        IntList treeStarts = new IntList();
+        IntList nodeSymbols = new IntList();
+        IntList nodeNumChildren = new IntList();
+        for (File file : files) {
+            int fileNumber = getFileNumber(file.getName());
+            for (Tree<String> tree : PennTreebankReader.readTrees(file.getPath(), fileNumber, fileNumber)) {
+                Tree<String> normalizedTree = treeTransformer.transformTree(tree);
+                fileNumbers.add(fileNumber);
+                yieldLengths.add(normalizedTree.getYield().size());
+                treeStarts.add(nodeSymbols.size());
+                addNodes(normalizedTree, symbolIndexer, nodeSymbols, nodeNumChildren);
+            }
+        }
+        treeStarts.add(nodeSymbols.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ParserModelFile.writeStrings(out, symbolIndexer);
+        out.writeInt(fileNumbers.size());
+        fileNumbers.writeTo(out);
+        yieldLengths.writeTo(out);
+        treeStarts.writeTo(out);
+        out.writeInt(nodeSymbols.size());
+        nodeSymbols.writeTo(out);
+        nodeNumChildren.writeTo(out);
+        out.flush();
+        ParserModelFile.writeFile(cacheFile, MAGIC, FORMAT_VERSION, bytes.toByteArray());
+    }
+
+    /**
+     * Same walk as PennTreebankReader: directories in listing order, .mrg files with a number in their name
+     */
+    private static void addFilesUnder(File root, List<File> files) {
+        if (root.isFile()) {
+            if (root.getName().endsWith(".mrg") && getFileNumber(root.getName()) >= 0) files.add(root);
+            return;
+        }
+        File[] children = root.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            addFilesUnder(child, files);
+        }
+    }
+
+    /**
+     * Last number in a file name (wsj_0200.mrg => 200), or -1
+     */
+    private static int getFileNumber(String name) {
+        int end = name.length();
+        while (end > 0 && !Character.isDigit(name.charAt(end - 1))) end--;
+        int begin = end;
+        while (begin > 0 && Character.isDigit(name.charAt(begin - 1))) begin--;
+        return (begin == end) ? -1 : Integer.parseInt(name.substring(begin, end));
+    }
+
+    private static void addNodes(Tree<String> tree, Indexer<String> symbolIndexer, IntList nodeSymbols, IntList nodeNumChildren) {
+        nodeSymbols.add(symbolIndexer.addAndGetIndex(tree.getLabel()));
+        nodeNumChildren.add(tree.getChildren().size());
+        for (Tree<String> child : tree.getChildren()) {
+            addNodes(child, symbolIndexer, nodeSymbols, nodeNumChildren);
+        }
+    }
+    // =========================END OF BUILDING=========================
+
+    // =========================READING=========================
+    /**
+     * Map a cache file written by build
+     * @throws IOException if it is not a treebank cache of this version, or is truncated or corrupted
+     */
+    public static TreebankCache open(Path cacheFile) throws IOException {
+        ByteBuffer buffer = ParserModelFile.readFile(cacheFile, MAGIC, FORMAT_VERSION, "treebank cache");
+        String[] symbols = ParserModelFile.readStrings(buffer).toArray(new String[0]);
+        int numTrees = buffer.getInt();
+        int[] fileNumbers = ParserModelFile.readInts(buffer, numTrees);
+        int[] yieldLengths = ParserModelFile.readInts(buffer, numTrees);
+        int[] treeStarts = ParserModelFile.readInts(buffer, numTrees + 1);
+        int numNodes = buffer.getInt();
+        IntBuffer nodeSymbols = sliceInts(buffer, numNodes);
+        IntBuffer nodeNumChildren = sliceInts(buffer, numNodes);
+        if (buffer.hasRemaining()) {
+            throw new IOException("Unexpected data at the end of treebank cache: " + cacheFile);
+        }
+        return new TreebankCache(symbols, fileNumbers, yieldLengths, treeStarts, nodeSymbols, nodeNumChildren);
+    }
+
+    private static IntBuffer sliceInts(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(4 * length);
+        buffer.position(buffer.position() + 4 * length);
+        return slice.asIntBuffer();
+    }
+
+    public int getNumTrees() {
+        return fileNumbers.length;
+    }
+
+    /**
+     * Trees of files low to high (inclusive) with at most maxLength words, in treebank order
+     */
+    public List<Tree<String>> readTrees(int low, int high, int maxLength) {
+        List<Tree<String>> trees = new ArrayList<>();
+        for (Tree<String> tree : iterateTrees(low, high, maxLength)) {
+            trees.add(tree);
+        }
+        return trees;
+    }
+
+    /**
+     * Same trees as readTrees, each built only when the iterator gets to it
+     */
+    public Iterable<Tree<String>> iterateTrees(final int low, final int high, final int maxLength) {
+        return new Iterable<Tree<String>>() {
+            public Iterator<Tree<String>> iterator() {
+                return new Iterator<Tree<String>>() {
+                    private int tree = nextTree(0);
+
+                    private int nextTree(int tree) {
+                        while (tree < fileNumbers.length && (fileNumbers[tree] < low || fileNumbers[tree] > high
+                                || yieldLengths[tree] > maxLength)) {
+                            tree++;
+                        }
+                        return tree;
+                    }
+
+                    public boolean hasNext() {
+                        return tree < fileNumbers.length;
+                    }
+
+                    public Tree<String> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        Tree<String> next = buildTree(new int[] { treeStarts[tree] });
+                        tree = nextTree(tree + 1);
+                        return next;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Subtree in preorder at position[0], which is moved past it
+     */
+    private Tree<String> buildTree(int[] position) {
+        int node = position[0]++;
+        String label = symbols[nodeSymbols.get(node)];
+        int numChildren = nodeNumChildren.get(node);
+        if (numChildren == 0) {
+            return new Tree<>(label);
+        }
+        List<Tree<String>> children = new ArrayList<>(numChildren);
+        for (int child = 0; child < numChildren; child++) {
+            children.add(buildTree(position));
+        }
+        return new Tree<>(label, children);
+    }
+    // =========================END OF READING=========================
+
+    /**
+     * Growable int array, written whole
+     */
+    private static class IntList {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[2 * size];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                out.writeInt(values[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package edu.berkeley.nlp.assignments.parsing.student.util;
+
+import edu.berkeley.nlp.io.PennTreebankReader;
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.ling.Trees;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy view of the normalized trees of a treebank, the trees the testers' readTrees return:
+ * each tree is read, normalized and filtered by length only when it is asked for, so streaming
+ * them into TrainingCounts never holds more than the trees being counted.
+ */
+public class TreebankStream {
+
+    private TreebankStream() {
+    }
+
+    /**
+     * Normalized trees of files low to high with at most maxLength words, read from the .mrg files
+     * Every iteration reads the files again
+     */
+    public static Iterable<Tree<String>> readTrees(final String basePath, final int low, final int high, final int maxLength) {
+        return new Iterable<Tree<String>>() {
+            public Iterator<Tree<String>> iterator() {
+                return new NormalizingIterator(PennTreebankReader.readTrees(basePath, low, high).iterator(), maxLength);
+            }
+        };
+    }
+
+    /**
+     * Same trees, from a TreebankCache if cachePath is not null (built from basePath if it does not exist)
+     */
+    public static Iterable<Tree<String>> readTrees(String basePath, String cachePath, int low, int high, int maxLength) {
+        if (cachePath == null) {
+            return readTrees(basePath, low, high, maxLength);
+        }
+        return TreebankCache.openOrBuild(basePath, cachePath).iterateTrees(low, high, maxLength);
+    }
+
+    private static class NormalizingIterator implements Iterator<Tree<String>> {
+        private final Iterator<Tree<String>> trees;
+        private final int maxLength;
+        private final Trees.TreeTransformer<String> treeTransformer = new Trees.StandardTreeNormalizer();
+        private Tree<String> next;
+
+        NormalizingIterator(Iterator<Tree<String>> trees, int maxLength) {
+            this.trees = trees;
+            this.maxLength = maxLength;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && trees.hasNext()) {
+                Tree<String> normalizedTree = treeTransformer.transformTree(trees.next());
+                if (normalizedTree.getYield().size() <= maxLength) {
+                    next = normalizedTree;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Tree<String> next() {
+            if (next == null) throw new NoSuchElementException();
+            Tree<String> tree = next;
+            advance();
+            return tree;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}